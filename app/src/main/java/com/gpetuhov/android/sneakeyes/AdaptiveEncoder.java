@@ -0,0 +1,202 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.gpetuhov.android.sneakeyes.utils.UtilsNet;
+
+import java.util.List;
+
+// Chooses EncodingProfile of the photos, so that upload of one cycle fits upload time target.
+// Upload throughput is tracked separately for every network class (WiFi, fast and slow mobile),
+// and JPEG size (bytes per pixel) is tracked for every profile.
+// Before throughput of the network class is measured, profile is limited by network class only:
+// WiFi - HIGH, metered or fast mobile - MEDIUM, slow mobile - LOW.
+// Throughput is measured on file uploads to VK upload server only
+// (VK API requests, throttling and retries are dominated by latency, not by photo size).
+// Estimates are saved in SharedPreferences, because cycles usually run in a new process.
+
+// Sequence of execution: 1. chooseProfile(), 2. onPhotosEncoded(), 3. onUploadFinished()
+
+public class AdaptiveEncoder {
+
+    private static final String TAG = "AdaptiveEncoder";
+
+    // Default upload time target of one cycle in milliseconds
+    public static final long DEFAULT_UPLOAD_TIME_TARGET = 10000;
+
+    // Weight of the newest sample in estimates (exponential moving average)
+    private static final float SAMPLE_WEIGHT = 0.3f;
+
+    // Uploads smaller than this are dominated by request latency and are not measured
+    private static final long MIN_MEASURED_BYTES = 16 * 1024;
+
+    // Number of photos in one cycle, until the first cycle is encoded
+    private static final int DEFAULT_PHOTOS_PER_CYCLE = 2;
+
+    // Name of SharedPreferences file with estimates
+    private static final String PREFS_NAME = "adaptive_encoder";
+
+    private static final String KEY_THROUGHPUT_PREFIX = "throughput_";
+    private static final String KEY_BYTES_PER_PIXEL_PREFIX = "bytes_per_pixel_";
+    private static final String KEY_PHOTOS_PER_CYCLE = "photos_per_cycle";
+
+    // Needed to check network state
+    private Context mContext;
+
+    // Keeps estimates between processes
+    private SharedPreferences mSharedPreferences;
+
+    // Upload time target of one cycle
+    private long mUploadTimeTarget = DEFAULT_UPLOAD_TIME_TARGET;
+
+    // Upload throughput in bytes per second for every network class (0 if not measured yet)
+    private float[] mThroughput = new float[UtilsNet.NETWORK_CLASS_COUNT];
+
+    // JPEG size in bytes per pixel for every profile (index in EncodingProfile.PROFILES)
+    private float[] mBytesPerPixel = new float[EncodingProfile.PROFILES.length];
+
+    // Number of photos in the last cycle
+    private int mPhotosPerCycle;
+
+    public AdaptiveEncoder(Context context) {
+        mContext = context;
+        mSharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+
+        for (int i = 0; i < mThroughput.length; i++) {
+            mThroughput[i] = mSharedPreferences.getFloat(KEY_THROUGHPUT_PREFIX + i, 0);
+        }
+
+        for (int i = 0; i < EncodingProfile.PROFILES.length; i++) {
+            mBytesPerPixel[i] = mSharedPreferences.getFloat(KEY_BYTES_PER_PIXEL_PREFIX + i,
+                    EncodingProfile.PROFILES[i].getInitialBytesPerPixel());
+        }
+
+        mPhotosPerCycle = mSharedPreferences.getInt(KEY_PHOTOS_PER_CYCLE, DEFAULT_PHOTOS_PER_CYCLE);
+    }
+
+    // Return index of the profile in EncodingProfile.PROFILES
+    public static int indexOf(EncodingProfile profile) {
+        for (int i = 0; i < EncodingProfile.PROFILES.length; i++) {
+            if (EncodingProfile.PROFILES[i] == profile) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    // Set upload time target of one cycle in milliseconds
+    public void setUploadTimeTarget(long uploadTimeTarget) {
+        mUploadTimeTarget = uploadTimeTarget;
+    }
+
+    // Return the largest profile, that is expected to be uploaded within upload time target
+    public EncodingProfile chooseProfile() {
+        int networkClass = UtilsNet.getNetworkClass(mContext);
+
+        int first = getLargestAllowedProfile(networkClass);
+        EncodingProfile profile = EncodingProfile.PROFILES[first];
+
+        float throughput = mThroughput[networkClass];
+
+        if (throughput > 0) {
+            // Byte budget of one photo
+            float photoBudget = throughput * mUploadTimeTarget / 1000 / mPhotosPerCycle;
+
+            // Use the smallest profile, if none of them fits
+            profile = EncodingProfile.PROFILES[EncodingProfile.PROFILES.length - 1];
+
+            for (int i = first; i < EncodingProfile.PROFILES.length; i++) {
+                if (getExpectedBytes(i) <= photoBudget) {
+                    profile = EncodingProfile.PROFILES[i];
+                    break;
+                }
+            }
+        }
+
+        Log.d(TAG, "Profile " + profile + " for network class " + networkClass
+                + ", throughput " + (int) throughput + " bytes/s");
+
+        return profile;
+    }
+
+    // Record size of the photos, encoded with provided profile
+    public void onPhotosEncoded(EncodingProfile profile, List<Photo> photos) {
+        long bytes = 0;
+        for (Photo photo : photos) {
+            bytes += photo.getSizeBytes();
+        }
+
+        if (!photos.isEmpty()) {
+            mPhotosPerCycle = photos.size();
+
+            int index = indexOf(profile);
+            float bytesPerPixel = (float) bytes / photos.size() / profile.getPixelCount();
+            mBytesPerPixel[index] = average(mBytesPerPixel[index], bytesPerPixel);
+
+            mSharedPreferences
+                    .edit()
+                    .putInt(KEY_PHOTOS_PER_CYCLE, mPhotosPerCycle)
+                    .putFloat(KEY_BYTES_PER_PIXEL_PREFIX + index, mBytesPerPixel[index])
+                    .apply();
+        }
+
+        Log.d(TAG, "Cycle encoded with profile " + profile + ": "
+                + photos.size() + " photos, " + bytes + " bytes");
+    }
+
+    // Record file upload of provided size and duration (on the current network)
+    public void onUploadFinished(long bytes, long uploadTime) {
+        if (bytes < MIN_MEASURED_BYTES || uploadTime <= 0) {
+            return;
+        }
+
+        int networkClass = UtilsNet.getNetworkClass(mContext);
+        float throughput = bytes * 1000f / uploadTime;
+
+        mThroughput[networkClass] = mThroughput[networkClass] > 0
+                ? average(mThroughput[networkClass], throughput)
+                : throughput;
+
+        mSharedPreferences
+                .edit()
+                .putFloat(KEY_THROUGHPUT_PREFIX + networkClass, mThroughput[networkClass])
+                .apply();
+    }
+
+    // Return estimated upload throughput of the current network in bytes per second (0 if unknown)
+    public float getThroughput() {
+        return mThroughput[UtilsNet.getNetworkClass(mContext)];
+    }
+
+    // Return index of the largest profile allowed on the network of provided class
+    private int getLargestAllowedProfile(int networkClass) {
+        EncodingProfile largest;
+
+        switch (networkClass) {
+            case UtilsNet.NETWORK_WIFI:
+                largest = UtilsNet.isNetworkMetered(mContext) ? EncodingProfile.MEDIUM : EncodingProfile.HIGH;
+                break;
+            case UtilsNet.NETWORK_SLOW_MOBILE:
+                largest = EncodingProfile.LOW;
+                break;
+            default:
+                // Fast mobile network, or no network (photos are kept in spool
+                // and uploaded later on unknown network)
+                largest = EncodingProfile.MEDIUM;
+                break;
+        }
+
+        return indexOf(largest);
+    }
+
+    // Return expected JPEG size of the profile with provided index in bytes
+    private float getExpectedBytes(int index) {
+        return mBytesPerPixel[index] * EncodingProfile.PROFILES[index].getPixelCount();
+    }
+
+    private float average(float oldValue, float newValue) {
+        return oldValue + SAMPLE_WEIGHT * (newValue - oldValue);
+    }
+}
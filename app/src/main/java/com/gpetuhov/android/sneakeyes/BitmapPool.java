@@ -0,0 +1,180 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+// Keeps Bitmaps, that are no longer needed, for reuse in next decodes.
+// Decoding into pooled Bitmap (BitmapFactory.Options.inBitmap) avoids
+// large allocations and GC pauses on every sneak cycle.
+// Pool size is limited by byte budget. Least recently returned Bitmaps are recycled first.
+
+// Sequence of execution: 1. decodeByteArray(), 2. put()
+
+public class BitmapPool {
+
+    // Default byte budget of the pool
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    // Keeps pooled Bitmaps. Most recently returned Bitmaps are at the beginning.
+    private LinkedList<Bitmap> mBitmaps = new LinkedList<>();
+
+    // Byte budget of the pool
+    private long mMaxBytes;
+
+    // Total size of pooled Bitmaps in bytes
+    private long mSizeBytes;
+
+    // Number of decodes, that reused pooled Bitmap
+    private int mHits;
+
+    // Number of decodes, that had to allocate new Bitmap
+    private int mMisses;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    // Decode byte array into pooled Bitmap (if there is suitable one) or into new Bitmap.
+    // Expected width and height of decoded Bitmap (taking inSampleSize into account) must be provided.
+    // Returned Bitmap is mutable and should be returned to the pool with put(), when no longer needed.
+    public Bitmap decodeByteArray(byte[] data, BitmapFactory.Options options, int width, int height) {
+        options.inMutable = true;
+
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+
+        // Before KitKat Bitmap can be reused only if it has exactly the same size
+        // and no sampling is done.
+        boolean canReuse = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || options.inSampleSize <= 1;
+
+        Bitmap candidate = null;
+        if (canReuse) {
+            candidate = get(width, height, config);
+        } else {
+            synchronized (this) {
+                mMisses++;
+            }
+        }
+
+        if (candidate != null) {
+            options.inBitmap = candidate;
+            try {
+                return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            } catch (IllegalArgumentException e) {
+                // Pooled Bitmap doesn't suit this decode. Decode into new Bitmap.
+                options.inBitmap = null;
+                put(candidate);
+            }
+        }
+
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    // Return Bitmap with at least width x height pixels of provided config or null, if there is none
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        long neededBytes = (long) width * height * getBytesPerPixel(config);
+
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+
+            boolean suits;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                // Since KitKat any Bitmap, that is big enough, can be reconfigured
+                suits = bitmap.getConfig() == config && bitmap.getAllocationByteCount() >= neededBytes;
+            } else {
+                suits = bitmap.getConfig() == config && bitmap.getWidth() == width && bitmap.getHeight() == height;
+            }
+
+            if (suits) {
+                iterator.remove();
+                mSizeBytes -= getSizeBytes(bitmap);
+                mHits++;
+                return bitmap;
+            }
+        }
+
+        mMisses++;
+        return null;
+    }
+
+    // Return Bitmap to the pool.
+    // Bitmap must not be used after it is returned.
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        if (!bitmap.isMutable() || getSizeBytes(bitmap) > mMaxBytes) {
+            // Bitmap can't be reused
+            bitmap.recycle();
+            return;
+        }
+
+        mBitmaps.addFirst(bitmap);
+        mSizeBytes += getSizeBytes(bitmap);
+
+        trimToSize(mMaxBytes);
+    }
+
+    // Trim pool according to the level, received in onTrimMemory()
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Process is likely to be killed or system is very low on memory
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+    }
+
+    // Set byte budget of the pool
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trimToSize(mMaxBytes);
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    // Recycle least recently returned Bitmaps until pool size is not more than maxBytes
+    private void trimToSize(long maxBytes) {
+        while (mSizeBytes > maxBytes && !mBitmaps.isEmpty()) {
+            Bitmap bitmap = mBitmaps.removeLast();
+            mSizeBytes -= getSizeBytes(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    private static long getSizeBytes(Bitmap bitmap) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                ? bitmap.getAllocationByteCount()
+                : bitmap.getByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Keeps captured photos and location on disk until they are posted to VK.
+// Every sneak cycle is appended to the spool as one entry (directory with JPEG files
+// and location file), so cycles without network are queued instead of being dropped.
+// Spool is limited by total size and entry age. Oldest entries are evicted first.
+// Permanently failed posts of the entry are counted (not network errors or VK outages),
+// and the entry is dropped after MAX_ENTRY_FAILURES,
+// so that the entry, that can never be posted, doesn't block the entries after it.
+
+// Sequence of execution: 1. enqueue(), 2. peekOldest() (one entry or several oldest entries),
+// 3. remove() or recordFailure()
+
+public class CaptureSpool {
+
+    private static final String TAG = "CaptureSpool";
+
+    // Name of the spool directory inside application files directory
+    private static final String SPOOL_DIR_NAME = "spool";
+
+    // Prefix of the entry directory, while the entry is being written
+    private static final String TEMP_PREFIX = "tmp-";
+
+    // Names of the files inside entry directory
+    private static final String PHOTO_FILE_PREFIX = "photo_";
+    private static final String PHOTO_FILE_SUFFIX = ".jpg";
+    private static final String LOCATION_FILE_NAME = "location";
+    private static final String FAILURES_FILE_NAME = "failures";
+
+    // Maximum total size of the spool in bytes
+    public static final long MAX_SPOOL_BYTES = 20 * 1024 * 1024;
+
+    // Maximum age of the spool entry in milliseconds (one week)
+    public static final long MAX_ENTRY_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+    // Maximum number of failed posts of the spool entry
+    public static final int MAX_ENTRY_FAILURES = 5;
+
+    // Directory, where entries are kept
+    private File mSpoolDir;
+
+    // Sequence number makes entry names unique, if several entries are created in the same millisecond
+    private int mSequence;
+
+    // One entry of the spool (photos and location of one sneak cycle)
+    public static class SpoolEntry {
+        private File mDir;
+        private long mCaptureTime;
+
+        SpoolEntry(File dir, long captureTime) {
+            mDir = dir;
+            mCaptureTime = captureTime;
+        }
+
+        // Return time, when photos of this entry were taken
+        public long getCaptureTime() {
+            return mCaptureTime;
+        }
+
+        // Return JPEG files of this entry in capture order
+        public List<File> getPhotoFiles() {
+            List<File> photoFiles = new ArrayList<>();
+
+            File[] files = mDir.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.getName().startsWith(PHOTO_FILE_PREFIX)) {
+                        photoFiles.add(file);
+                    }
+                }
+            }
+
+            return photoFiles;
+        }
+
+        // Return location of this entry or null, if location was not available
+        public Location getLocation() {
+            File locationFile = new File(mDir, LOCATION_FILE_NAME);
+
+            if (!locationFile.exists()) {
+                return null;
+            }
+
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(locationFile));
+                Location location = new Location(SPOOL_DIR_NAME);
+                location.setLatitude(in.readDouble());
+                location.setLongitude(in.readDouble());
+                location.setTime(in.readLong());
+                return location;
+            } catch (IOException e) {
+                // Location file is broken, post photos without location
+                return null;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        // Return size of this entry on disk in bytes
+        public long getSizeBytes() {
+            return getDirSize(mDir);
+        }
+    }
+
+    public CaptureSpool(Context context) {
+        mSpoolDir = new File(context.getFilesDir(), SPOOL_DIR_NAME);
+        mSpoolDir.mkdirs();
+
+        // Entries, that were not completely written (process was killed), are useless
+        deleteTempEntries();
+    }
+
+    // Append photos and location of one sneak cycle to the spool.
+    // Return true, if the entry is written.
+    public synchronized boolean enqueue(List<Photo> photos, Location location) {
+        long captureTime = System.currentTimeMillis();
+        String entryName = String.format(Locale.US, "%013d-%04d", captureTime, mSequence++ % 10000);
+
+        // Entry is written into temporary directory first
+        // and then renamed, so that half-written entries never get into the queue.
+        File tempDir = new File(mSpoolDir, TEMP_PREFIX + entryName);
+
+        try {
+            if (!tempDir.mkdirs()) {
+                throw new IOException("Unable to create " + tempDir);
+            }
+
+            for (int i = 0; i < photos.size(); i++) {
+                // Index is zero-padded, so that sorting by name keeps capture order
+                String photoName = String.format(Locale.US, "%s%02d%s", PHOTO_FILE_PREFIX, i, PHOTO_FILE_SUFFIX);
+                writePhoto(new File(tempDir, photoName), photos.get(i));
+            }
+
+            if (location != null) {
+                writeLocation(new File(tempDir, LOCATION_FILE_NAME), location);
+            }
+
+            if (!tempDir.renameTo(new File(mSpoolDir, entryName))) {
+                throw new IOException("Unable to commit " + entryName);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing spool entry", e);
+            deleteDir(tempDir);
+            return false;
+        }
+
+        // Keep the spool within limits
+        evict();
+
+        return true;
+    }
+
+    // Return oldest entry or null, if the spool is empty
+    public synchronized SpoolEntry peekOldest() {
+        List<File> entryDirs = listEntryDirs();
+        return entryDirs.isEmpty() ? null : createEntry(entryDirs.get(0));
+    }
+
+    // Return up to maxCount oldest entries (from oldest to newest)
+    public synchronized List<SpoolEntry> peekOldest(int maxCount) {
+        List<SpoolEntry> entries = new ArrayList<>();
+
+        for (File entryDir : listEntryDirs()) {
+            if (entries.size() >= maxCount) {
+                break;
+            }
+            entries.add(createEntry(entryDir));
+        }
+
+        return entries;
+    }
+
+    // Remove entry from the spool (must be called after the entry is posted)
+    public synchronized void remove(SpoolEntry entry) {
+        deleteDir(entry.mDir);
+    }
+
+    // Count failed post of the entry.
+    // Return true, if the entry has failed too many times and is removed from the spool.
+    public synchronized boolean recordFailure(SpoolEntry entry) {
+        File failuresFile = new File(entry.mDir, FAILURES_FILE_NAME);
+
+        int failures = 0;
+
+        if (failuresFile.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(failuresFile));
+                failures = in.readInt();
+            } catch (IOException e) {
+                // Broken counter, start over
+                failures = 0;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        failures++;
+
+        if (failures >= MAX_ENTRY_FAILURES) {
+            Log.w(TAG, "Dropped " + entry.mDir.getName() + " after " + failures + " failed posts");
+            deleteDir(entry.mDir);
+            return true;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(failuresFile));
+            out.writeInt(failures);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing failure count", e);
+        } finally {
+            closeQuietly(out);
+        }
+
+        return false;
+    }
+
+    // Return true if there are no entries in the spool
+    public synchronized boolean isEmpty() {
+        return listEntryDirs().isEmpty();
+    }
+
+    // Return number of entries in the spool
+    public synchronized int size() {
+        return listEntryDirs().size();
+    }
+
+    // Return total size of the spool on disk in bytes
+    public synchronized long getSizeBytes() {
+        return getDirSize(mSpoolDir);
+    }
+
+    // Delete entries, that are older than MAX_ENTRY_AGE,
+    // then delete oldest entries until the spool fits into MAX_SPOOL_BYTES.
+    private void evict() {
+        long now = System.currentTimeMillis();
+
+        List<File> entryDirs = listEntryDirs();
+
+        long totalSize = 0;
+        for (File entryDir : entryDirs) {
+            totalSize += getDirSize(entryDir);
+        }
+
+        for (File entryDir : entryDirs) {
+            boolean tooOld = now - createEntry(entryDir).getCaptureTime() > MAX_ENTRY_AGE;
+            boolean tooBig = totalSize > MAX_SPOOL_BYTES;
+
+            if (!tooOld && !tooBig) {
+                // Entries are sorted from oldest to newest, so the rest of them must be kept
+                break;
+            }
+
+            totalSize -= getDirSize(entryDir);
+            deleteDir(entryDir);
+
+            Log.d(TAG, "Evicted " + entryDir.getName() + (tooOld ? " (too old)" : " (spool is full)"));
+        }
+    }
+
+    // Return committed entry directories sorted from oldest to newest
+    private List<File> listEntryDirs() {
+        List<File> entryDirs = new ArrayList<>();
+
+        File[] files = mSpoolDir.listFiles();
+        if (files != null) {
+            // Entry names start with capture time, so sorting by name sorts by capture time
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isDirectory() && !file.getName().startsWith(TEMP_PREFIX)) {
+                    entryDirs.add(file);
+                }
+            }
+        }
+
+        return entryDirs;
+    }
+
+    private void deleteTempEntries() {
+        File[] files = mSpoolDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith(TEMP_PREFIX)) {
+                    deleteDir(file);
+                }
+            }
+        }
+    }
+
+    private SpoolEntry createEntry(File entryDir) {
+        long captureTime;
+        try {
+            captureTime = Long.parseLong(entryDir.getName().substring(0, 13));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            // Unknown entry name. Treat it as the oldest one, so that it is evicted soon.
+            captureTime = 0;
+        }
+
+        return new SpoolEntry(entryDir, captureTime);
+    }
+
+    private void writePhoto(File file, Photo photo) throws IOException {
+        OutputStream out = null;
+        try {
+            // Photo is already compressed, so JPEG data is written as is
+            out = new FileOutputStream(file);
+            out.write(photo.getJpegData());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void writeLocation(File file, Location location) throws IOException {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(file));
+            out.writeDouble(location.getLatitude());
+            out.writeDouble(location.getLongitude());
+            out.writeLong(location.getTime());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static long getDirSize(File dir) {
+        long size = 0;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.isDirectory() ? getDirSize(file) : file.length();
+            }
+        }
+
+        return size;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do here
+            }
+        }
+    }
+}
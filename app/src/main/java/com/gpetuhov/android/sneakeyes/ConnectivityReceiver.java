@@ -0,0 +1,36 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+
+import com.gpetuhov.android.sneakeyes.utils.UtilsNet;
+
+// Broadcast receiver receives broadcast intent on network connectivity change
+// and starts draining capture spool, when network becomes available.
+// Receiver is enabled only while the spool is not empty,
+// so that the application is not woken up on every connectivity change.
+public class ConnectivityReceiver extends BroadcastReceiver {
+
+    // Enable or disable this receiver in the manifest
+    public static void setEnabled(Context context, boolean enabled) {
+        ComponentName receiver = new ComponentName(context, ConnectivityReceiver.class);
+
+        int state = enabled
+                ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+
+        context.getPackageManager().setComponentEnabledSetting(receiver, state, PackageManager.DONT_KILL_APP);
+    }
+
+    // Method is called when broadcast receiver receives broadcast intent
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        // If network is connected, post queued photos
+        if (UtilsNet.isNetworkAvailableAndConnected(context)) {
+            context.startService(SneakingService.newDrainIntent(context));
+        }
+    }
+}
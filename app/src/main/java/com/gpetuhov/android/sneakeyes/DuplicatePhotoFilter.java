@@ -0,0 +1,74 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.gpetuhov.android.sneakeyes.imagecore.DHash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Drops photos of unchanged scenes (phone lying on a desk or face down).
+// Perceptual hash of every photo is compared with the hash of the last accepted photo
+// of the same camera. If Hamming distance is not more than the threshold, photo is dropped.
+// Hashes of accepted photos are saved in SharedPreferences, so they survive service restarts.
+// Accepted photos are kept in the spool until posted, so the last accepted hash
+// is the hash of the last posted (or about to be posted) photo of the camera.
+public class DuplicatePhotoFilter {
+
+    // Name of SharedPreferences file with hashes
+    private static final String PREFS_NAME = "photo_hashes";
+
+    // Prefix of the key of the camera's last hash
+    private static final String KEY_PREFIX = "camera_";
+
+    private SharedPreferences mSharedPreferences;
+
+    // Number of dropped photos since creation
+    private int mDroppedCount;
+
+    public DuplicatePhotoFilter(Context context) {
+        mSharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Return photos, that differ from the last accepted photo of their camera
+    // more than maxDistance bits, and remember their hashes.
+    // Photos without hash are always accepted.
+    public List<Photo> filter(List<Photo> photos, int maxDistance) {
+        List<Photo> accepted = new ArrayList<>();
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+
+        for (Photo photo : photos) {
+            Long hash = photo.getHash();
+
+            if (hash != null) {
+                String key = KEY_PREFIX + photo.getCameraId();
+
+                if (mSharedPreferences.contains(key)
+                        && DHash.distance(hash, mSharedPreferences.getLong(key, 0)) <= maxDistance) {
+                    // Scene has not changed
+                    mDroppedCount++;
+                    continue;
+                }
+
+                editor.putLong(key, hash);
+            }
+
+            accepted.add(photo);
+        }
+
+        editor.apply();
+
+        return accepted;
+    }
+
+    // Forget all hashes (next photos of every camera are accepted)
+    public void clear() {
+        mSharedPreferences.edit().clear().apply();
+    }
+
+    // Return number of dropped photos since creation
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+}
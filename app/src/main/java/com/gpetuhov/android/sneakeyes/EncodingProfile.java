@@ -0,0 +1,65 @@
+package com.gpetuhov.android.sneakeyes;
+
+// Output resolution and JPEG quality of the photos.
+// Profiles are chosen by AdaptiveEncoder according to upload throughput.
+public class EncodingProfile {
+
+    // Profiles from the largest to the smallest one
+    public static final EncodingProfile HIGH = new EncodingProfile("high", 1280, 960, 90, 0.25f);
+    public static final EncodingProfile MEDIUM = new EncodingProfile("medium", 800, 600, 90, 0.25f);
+    public static final EncodingProfile LOW = new EncodingProfile("low", 640, 480, 75, 0.14f);
+    public static final EncodingProfile MINIMAL = new EncodingProfile("minimal", 320, 240, 60, 0.1f);
+
+    public static final EncodingProfile[] PROFILES = { HIGH, MEDIUM, LOW, MINIMAL };
+
+    // Name of the profile (used in logs and metrics)
+    private String mName;
+
+    // Output photo dimensions
+    private int mWidth;
+    private int mHeight;
+
+    // Quality of JPEG (0..100)
+    private int mJpegQuality;
+
+    // Expected JPEG size in bytes per pixel (before real photos are measured)
+    private float mInitialBytesPerPixel;
+
+    private EncodingProfile(String name, int width, int height, int jpegQuality, float initialBytesPerPixel) {
+        mName = name;
+        mWidth = width;
+        mHeight = height;
+        mJpegQuality = jpegQuality;
+        mInitialBytesPerPixel = initialBytesPerPixel;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getJpegQuality() {
+        return mJpegQuality;
+    }
+
+    public float getInitialBytesPerPixel() {
+        return mInitialBytesPerPixel;
+    }
+
+    // Return number of pixels in the output photo
+    public int getPixelCount() {
+        return mWidth * mHeight;
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mWidth + "x" + mHeight + ", q" + mJpegQuality + ")";
+    }
+}
@@ -0,0 +1,182 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationServices;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps GoogleApiClient connected between sneak cycles.
+// Client is connected, when the first user acquires it,
+// and disconnected only after it has not been used for idle disconnect delay.
+// So frequent cycles don't pay for Google Play Services connection every time.
+// If connection is suspended, client is reconnected, and users are notified again.
+// User of GoogleApiClientManager must implement ConnectionListener to receive callbacks.
+// All callbacks are called on the application MAIN thread.
+
+// Sequence of execution: 1. acquire(), 2. onConnected() or onConnectionError(), 3. release()
+
+public class GoogleApiClientManager implements
+        GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener {
+
+    private static final String TAG = "GoogleApiClientManager";
+
+    // Default time in milliseconds, after which unused client is disconnected
+    // (a bit longer than the shortest sneak interval)
+    public static final long DEFAULT_IDLE_DISCONNECT_DELAY = 20 * 60 * 1000;
+
+    // Keeps Google API Client
+    private GoogleApiClient mGoogleApiClient;
+
+    // Handler of the MAIN thread. All state is changed on this thread only.
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Users, that have acquired the client
+    private List<ConnectionListener> mConnectionListeners = new ArrayList<>();
+
+    // Time, after which unused client is disconnected
+    private long mIdleDisconnectDelay = DEFAULT_IDLE_DISCONNECT_DELAY;
+
+    // Start time of the current connection attempt
+    private long mConnectStartTime;
+
+    // Duration of the last connection in milliseconds
+    private long mLastConnectLatency;
+
+    // Number of connections made
+    private int mConnectCount;
+
+    // Disconnects the client, when it is idle
+    private Runnable mIdleDisconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mConnectionListeners.isEmpty()
+                    && (mGoogleApiClient.isConnected() || mGoogleApiClient.isConnecting())) {
+                Log.d(TAG, "Disconnecting idle client");
+                mGoogleApiClient.disconnect();
+            }
+        }
+    };
+
+    // User of GoogleApiClientManager must implement this interface to receive callbacks.
+    // onConnected() is called again after every reconnection.
+    public interface ConnectionListener {
+        void onConnected();
+        void onConnectionError();
+    }
+
+    public GoogleApiClientManager(Context context) {
+        // Create Google API Client
+        mGoogleApiClient = new GoogleApiClient.Builder(context)
+                .addApi(LocationServices.API)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .build();
+    }
+
+    // Return managed client. It must be used only between onConnected() and release().
+    public GoogleApiClient getClient() {
+        return mGoogleApiClient;
+    }
+
+    // Start using the client. Listener is notified, when the client is connected.
+    // May be called from any thread.
+    public void acquire(final ConnectionListener listener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.removeCallbacks(mIdleDisconnectRunnable);
+
+                if (!mConnectionListeners.contains(listener)) {
+                    mConnectionListeners.add(listener);
+                }
+
+                if (mGoogleApiClient.isConnected()) {
+                    // Client is still warm
+                    listener.onConnected();
+                } else {
+                    connect();
+                }
+            }
+        });
+    }
+
+    // Stop using the client. Client is disconnected, if nobody uses it during idle disconnect delay.
+    // May be called from any thread.
+    public void release(final ConnectionListener listener) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mConnectionListeners.remove(listener);
+
+                if (mConnectionListeners.isEmpty()) {
+                    mHandler.removeCallbacks(mIdleDisconnectRunnable);
+                    mHandler.postDelayed(mIdleDisconnectRunnable, mIdleDisconnectDelay);
+                }
+            }
+        });
+    }
+
+    // Set time in milliseconds, after which unused client is disconnected
+    public void setIdleDisconnectDelay(long idleDisconnectDelay) {
+        mIdleDisconnectDelay = idleDisconnectDelay;
+    }
+
+    // Return duration of the last connection in milliseconds
+    public long getLastConnectLatency() {
+        return mLastConnectLatency;
+    }
+
+    // Return number of connections made
+    public int getConnectCount() {
+        return mConnectCount;
+    }
+
+    private void connect() {
+        if (!mGoogleApiClient.isConnecting()) {
+            mConnectStartTime = SystemClock.elapsedRealtime();
+            mGoogleApiClient.connect();
+        }
+    }
+
+    // Method is called, when GoogleApiClient connection established
+    @Override
+    public void onConnected(Bundle bundle) {
+        mConnectCount++;
+        mLastConnectLatency = SystemClock.elapsedRealtime() - mConnectStartTime;
+        Log.d(TAG, "Connected in " + mLastConnectLatency + " ms");
+
+        // Copy is used, because listeners may release the client in callback
+        for (ConnectionListener listener : new ArrayList<>(mConnectionListeners)) {
+            listener.onConnected();
+        }
+    }
+
+    // Method is called, when GoogleApiClient connection suspended
+    @Override
+    public void onConnectionSuspended(int i) {
+        // Reconnect transparently. Listeners are notified again after reconnection.
+        Log.d(TAG, "Connection suspended, reconnecting");
+        connect();
+    }
+
+    // Method is called, when GoogleApiClient connection failed
+    @Override
+    public void onConnectionFailed(ConnectionResult connectionResult) {
+        List<ConnectionListener> listeners = new ArrayList<>(mConnectionListeners);
+        mConnectionListeners.clear();
+
+        for (ConnectionListener listener : listeners) {
+            listener.onConnectionError();
+        }
+    }
+}
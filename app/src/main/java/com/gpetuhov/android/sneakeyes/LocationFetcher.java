@@ -4,36 +4,64 @@ import android.Manifest;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.location.Location;
+import android.location.LocationManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.content.ContextCompat;
+import android.util.Log;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GooglePlayServicesUtil;
-import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.location.LocationListener;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
+import com.gpetuhov.android.sneakeyes.metrics.MetricsRecorder;
 
 // Gets current device location.
 // User of LocationFetcher must implement LocationFetchedListener to receive callbacks.
+// GoogleApiClient is kept connected between fetches by GoogleApiClientManager.
+// LocationFetcher keeps the best known location (received by this or other apps).
+// If cached location is fresh and accurate enough, it is returned immediately,
+// and active (power consuming) location request is made only otherwise.
+// While location is being fetched, locations requested by other apps are received too (passive provider).
+// Passive locations are delivered on the MAIN thread, so cached location may be updated from two threads.
 
 // Sequence of execution:
-// 1. fetchLocation()
-// 2. GoogleApiClient.connect()
-// 3. onConnected() or onConnectionFailed() or onConnectionSuspended()
-// 4. LocationServices.FusedLocationApi.requestLocationUpdates()
-// 5. onLocationChanged()
+// 1. fetchLocation() (returns cached location, if it is good enough)
+// 2. GoogleApiClientManager.acquire()
+// 3. onConnected() or onConnectionError()
+// 4. FusedLocationApi.getLastLocation() (returned, if it is good enough)
+// 5. LocationServices.FusedLocationApi.requestLocationUpdates()
+// 6. onLocationChanged()
 
 public class LocationFetcher implements
-        GoogleApiClient.ConnectionCallbacks,
-        GoogleApiClient.OnConnectionFailedListener,
+        GoogleApiClientManager.ConnectionListener,
         LocationListener {
 
+    private static final String TAG = "LocationFetcher";
+
+    // Default maximum age of cached location in milliseconds
+    public static final long DEFAULT_MAX_FIX_AGE = 2 * 60 * 1000;
+
+    // Default maximum accuracy radius of cached location in meters
+    public static final float DEFAULT_MAX_FIX_ACCURACY = 100;
+
+    // Minimum time between passive location updates in milliseconds
+    private static final long PASSIVE_UPDATE_INTERVAL = 30 * 1000;
+
     // Needed by Google Location Services
     private Context mContext;
 
-    // Keeps Google API Client for location fetching
-    private GoogleApiClient mGoogleApiClient;
+    // Keeps Google API Client for location fetching connected
+    private GoogleApiClientManager mGoogleApiClientManager;
+
+    // Records time to location fix
+    private MetricsRecorder mMetricsRecorder;
+
+    // Time, when fetch started
+    private long mFetchStartTime;
 
     // Keeps location request
     private LocationRequest mLocationRequest;
@@ -41,6 +69,47 @@ public class LocationFetcher implements
     // Keeps reference to the listener to LocationFetcher
     private LocationFetchedListener mLocationFetchedListener;
 
+    // Best known location (guarded by this)
+    private volatile Location mCachedLocation;
+
+    // Cached location is used, if it is not older than mMaxFixAge
+    // and its accuracy radius is not more than mMaxFixAccuracy
+    private long mMaxFixAge = DEFAULT_MAX_FIX_AGE;
+    private float mMaxFixAccuracy = DEFAULT_MAX_FIX_ACCURACY;
+
+    // Number of fetches served from cache and by active request
+    private int mCacheHits;
+    private int mCacheMisses;
+
+    // Age of the last returned location in milliseconds
+    private long mLastFixAge;
+
+    // True if passive location updates are requested
+    private boolean mPassiveUpdatesRequested;
+
+    // Receives locations, requested by other apps, without turning on GPS
+    private android.location.LocationListener mPassiveLocationListener = new android.location.LocationListener() {
+        @Override
+        public void onLocationChanged(Location location) {
+            updateCachedLocation(location);
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+            // Not needed
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+            // Not needed
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+            // Not needed
+        }
+    };
+
     // User of LocationFetcher must implement this interface to receive callbacks
     public interface LocationFetchedListener {
         void onLocationFetchSuccess(Location location);
@@ -64,16 +133,13 @@ public class LocationFetcher implements
         return hasLocationFinePermission && hasLocationCoarsePermission;
     }
 
-    public LocationFetcher(Context context) {
+    public LocationFetcher(Context context, GoogleApiClientManager googleApiClientManager,
+                           MetricsRecorder metricsRecorder) {
         // Save context
         mContext = context;
 
-        // Create Google API Client
-        mGoogleApiClient = new GoogleApiClient.Builder(mContext)
-                .addApi(LocationServices.API)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .build();
+        mGoogleApiClientManager = googleApiClientManager;
+        mMetricsRecorder = metricsRecorder;
     }
 
     // Fetches location
@@ -81,15 +147,28 @@ public class LocationFetcher implements
 
         // Save reference to the listener
         mLocationFetchedListener = listener;
+        mFetchStartTime = SystemClock.elapsedRealtime();
 
         // Check permission to access location
         if (checkLocationPermission(mContext)) {
             // We have permission to access location
 
+            // Start listening to locations of other apps (if not started yet)
+            requestPassiveUpdates();
+
+            // If cached location is good enough, there is no need to connect
+            Location cachedLocation = mCachedLocation;
+            if (isGoodEnough(cachedLocation)) {
+                mCacheHits++;
+                reportSuccess(cachedLocation);
+                return;
+            }
+
             // If Google Play Services are available
             if (isGooglePlayServicesAvailable()) {
                 // Connect to GoogleApiClient to get location info
-                mGoogleApiClient.connect();
+                // (if it is still connected since previous fetch, onConnected() is called at once)
+                mGoogleApiClientManager.acquire(this);
             } else {
                 // Google Play Services not available
                 reportError();
@@ -101,11 +180,107 @@ public class LocationFetcher implements
     }
 
     // This method must be called when LocationFetcher is no longer needed.
-    // (Disconnects LocationFetcher from GoogleApiClient)
+    // (Stops location updates and releases GoogleApiClient,
+    // which is disconnected later, if it is not used again)
     public void stopFetchingLocation() {
-        if (mGoogleApiClient.isConnected()) {
-            mGoogleApiClient.disconnect();
+        removePassiveUpdates();
+
+        if (mGoogleApiClientManager.getClient().isConnected()) {
+            LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClientManager.getClient(), this);
         }
+
+        mGoogleApiClientManager.release(this);
+    }
+
+    // Stop fetching location. Listener is not called after cancellation.
+    public void cancel() {
+        unregisterListener();
+        stopFetchingLocation();
+    }
+
+    // Set maximum age (in milliseconds) and accuracy radius (in meters) of cached location,
+    // that can be returned without active location request
+    public void setCacheThresholds(long maxFixAge, float maxFixAccuracy) {
+        mMaxFixAge = maxFixAge;
+        mMaxFixAccuracy = maxFixAccuracy;
+    }
+
+    // Return share of fetches served from cache (0..1)
+    public float getCacheHitRatio() {
+        int total = mCacheHits + mCacheMisses;
+        return total > 0 ? (float) mCacheHits / total : 0;
+    }
+
+    // Return age of the last returned location in milliseconds
+    public long getLastFixAge() {
+        return mLastFixAge;
+    }
+
+    // Request location updates from PASSIVE_PROVIDER.
+    // These are locations, requested by other apps, so no extra power is consumed.
+    private void requestPassiveUpdates() {
+        if (mPassiveUpdatesRequested) {
+            return;
+        }
+
+        LocationManager locationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+
+        try {
+            locationManager.requestLocationUpdates(LocationManager.PASSIVE_PROVIDER,
+                    PASSIVE_UPDATE_INTERVAL, 0, mPassiveLocationListener, Looper.getMainLooper());
+            mPassiveUpdatesRequested = true;
+
+            // Last passive location may be good enough already
+            updateCachedLocation(locationManager.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER));
+        } catch (SecurityException | IllegalArgumentException e) {
+            // Passive provider not available, only active requests will be used
+        }
+    }
+
+    private void removePassiveUpdates() {
+        if (!mPassiveUpdatesRequested) {
+            return;
+        }
+
+        LocationManager locationManager = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+
+        try {
+            locationManager.removeUpdates(mPassiveLocationListener);
+        } catch (SecurityException e) {
+            // Permission revoked, updates are not delivered anyway
+        }
+
+        mPassiveUpdatesRequested = false;
+    }
+
+    // Replace cached location, if provided location is newer
+    private synchronized void updateCachedLocation(Location location) {
+        if (location != null && (mCachedLocation == null || getAge(location) < getAge(mCachedLocation))) {
+            mCachedLocation = location;
+        }
+    }
+
+    // Return age of location in milliseconds.
+    // Since API 17 elapsed realtime of the fix is used, because fix time (wall clock)
+    // may differ from device time (GPS time, time zone or clock changes).
+    private static long getAge(Location location) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return (SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos()) / 1000000;
+        } else {
+            return System.currentTimeMillis() - location.getTime();
+        }
+    }
+
+    // Return true if location is fresh and accurate enough
+    private boolean isGoodEnough(Location location) {
+        if (location == null) {
+            return false;
+        }
+
+        long age = getAge(location);
+        boolean accurate = location.hasAccuracy() && location.getAccuracy() <= mMaxFixAccuracy;
+
+        return age <= mMaxFixAge && accurate;
     }
 
     // Return true if Google Play Services available
@@ -114,9 +289,31 @@ public class LocationFetcher implements
         return errorCode == ConnectionResult.SUCCESS;
     }
 
-    // Method is called, when GoogleApiClient connection established
+    // Method is called, when GoogleApiClient connection established (or reestablished)
     @Override
-    public void onConnected(Bundle bundle) {
+    public void onConnected() {
+        if (mLocationFetchedListener == null) {
+            // Not fetching location now
+            return;
+        }
+
+        // Fused last location may be received by other apps recently
+        try {
+            updateCachedLocation(LocationServices.FusedLocationApi.getLastLocation(mGoogleApiClientManager.getClient()));
+        } catch (SecurityException e) {
+            // Permission revoked, active request will report error
+        }
+
+        Location cachedLocation = mCachedLocation;
+        if (isGoodEnough(cachedLocation)) {
+            mCacheHits++;
+            reportSuccess(cachedLocation);
+            return;
+        }
+
+        // Cached location is not good enough, so request current location
+        mCacheMisses++;
+
         // Create request for current location
         mLocationRequest = LocationRequest.create();
         mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
@@ -125,21 +322,15 @@ public class LocationFetcher implements
         // The smallest displacement in meters the user must move between location updates
         // is by default set to 0, so we will receive onLocationChange() even if the user is not moving.
 
-        // Send request
-        LocationServices.FusedLocationApi.requestLocationUpdates(mGoogleApiClient, mLocationRequest, this);
-    }
-
-    // Method is called, when GoogleApiClient connection suspended
-    @Override
-    public void onConnectionSuspended(int i) {
-        // GoogleApiClient connection has been suspended.
-        // Report error to listener
-        reportError();
+        // Send request.
+        // If connection is suspended, request is sent again after reconnection.
+        LocationServices.FusedLocationApi.requestLocationUpdates(
+                mGoogleApiClientManager.getClient(), mLocationRequest, this);
     }
 
     // Method is called, when GoogleApiClient connection failed
     @Override
-    public void onConnectionFailed(ConnectionResult connectionResult) {
+    public void onConnectionError() {
         // GoogleApiClient connection has failed.
         // Report error to listener
         reportError();
@@ -148,6 +339,8 @@ public class LocationFetcher implements
     // Method is called, when location information received
     @Override
     public void onLocationChanged(Location location) {
+        updateCachedLocation(location);
+
         // Pass received location to the listener
         reportSuccess(location);
     }
@@ -156,6 +349,10 @@ public class LocationFetcher implements
     private void reportSuccess(Location location) {
         stopFetchingLocation();
 
+        mLastFixAge = getAge(location);
+        mMetricsRecorder.record(MetricsRecorder.LOCATION_FIX, SystemClock.elapsedRealtime() - mFetchStartTime);
+        Log.d(TAG, "Location age " + mLastFixAge + " ms, cache hit ratio " + getCacheHitRatio());
+
         if (mLocationFetchedListener != null) {
             // Pass fetched location to the listener
             mLocationFetchedListener.onLocationFetchSuccess(location);
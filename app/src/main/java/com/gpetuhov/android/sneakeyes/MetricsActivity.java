@@ -0,0 +1,13 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.support.v4.app.Fragment;
+
+// Activity with metrics of recent sneak cycles.
+// Started from the settings screen.
+public class MetricsActivity extends SingleFragmentActivity {
+
+    @Override
+    protected Fragment createFragment() {
+        return new MetricsFragment();
+    }
+}
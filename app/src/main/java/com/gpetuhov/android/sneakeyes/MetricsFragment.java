@@ -0,0 +1,121 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.os.Bundle;
+import android.support.annotation.Nullable;
+import android.support.v4.app.Fragment;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.gpetuhov.android.sneakeyes.metrics.MetricSummary;
+import com.gpetuhov.android.sneakeyes.metrics.MetricsRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.inject.Inject;
+
+// Fragment shows distribution (p50, p90, p99, max) of every metric over recent sneak cycles.
+// Recorded cycles can be exported to app's external files directory as CSV or JSON.
+public class MetricsFragment extends Fragment {
+
+    // Names of the export files (without extension)
+    private static final String EXPORT_FILE_NAME = "sneakeyes-metrics";
+
+    // Keeps instance of MetricsRecorder. Injected by Dagger.
+    @Inject MetricsRecorder mMetricsRecorder;
+
+    // Shows metric summaries
+    private TextView mSummaryTextView;
+
+    @Override
+    public void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        // Inject MetricsRecorder instance into this fragment field
+        SneakEyesApp.getAppComponent().inject(this);
+    }
+
+    @Nullable
+    @Override
+    public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_metrics, container, false);
+
+        mSummaryTextView = (TextView) view.findViewById(R.id.metrics_summary);
+
+        Button exportCsvButton = (Button) view.findViewById(R.id.metrics_export_csv);
+        exportCsvButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                export(false);
+            }
+        });
+
+        Button exportJsonButton = (Button) view.findViewById(R.id.metrics_export_json);
+        exportJsonButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                export(true);
+            }
+        });
+
+        return view;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+
+        // Cycles may have been recorded, while the fragment was in background
+        updateSummary();
+    }
+
+    // Display summary of every metric
+    private void updateSummary() {
+        int cycleCount = mMetricsRecorder.getCycles().size();
+
+        if (cycleCount == 0) {
+            mSummaryTextView.setText(R.string.metrics_empty);
+            return;
+        }
+
+        List<MetricSummary> summaries = mMetricsRecorder.getSummaries();
+
+        StringBuilder text = new StringBuilder();
+        text.append("Cycles: ").append(cycleCount).append("\n\n");
+
+        for (MetricSummary summary : summaries) {
+            text.append(summary).append("\n");
+        }
+
+        mSummaryTextView.setText(text);
+    }
+
+    // Export recorded cycles as JSON or CSV and show path to the file
+    private void export(boolean json) {
+        // External files directory doesn't need permission on API 19+, and may be not mounted
+        File dir = getActivity().getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getActivity().getFilesDir();
+        }
+
+        File file = new File(dir, EXPORT_FILE_NAME + (json ? ".json" : ".csv"));
+
+        try {
+            if (json) {
+                mMetricsRecorder.exportJson(file);
+            } else {
+                mMetricsRecorder.exportCsv(file);
+            }
+
+            Toast.makeText(getActivity(), getString(R.string.metrics_export_done, file.getAbsolutePath()),
+                    Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Toast.makeText(getActivity(), R.string.metrics_export_error, Toast.LENGTH_SHORT).show();
+        }
+    }
+}
@@ -0,0 +1,585 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import com.gpetuhov.android.sneakeyes.imagecore.FrameRingBuffer;
+import com.gpetuhov.android.sneakeyes.imagecore.MotionDetector;
+import com.gpetuhov.android.sneakeyes.metrics.CycleRecord;
+import com.gpetuhov.android.sneakeyes.metrics.MetricsRecorder;
+import com.gpetuhov.android.sneakeyes.utils.UtilsBattery;
+import com.gpetuhov.android.sneakeyes.utils.UtilsPrefs;
+import com.vk.sdk.VKSdk;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+
+// Foreground service keeps back camera previewing at low resolution and frame rate
+// and looks for motion in preview frames (MotionDetector).
+// Analyzed frames are kept in a small ring buffer. On motion the triggering frame
+// and pre-event frames are put into CaptureSpool as one entry and SneakingService is started
+// to post them (time-driven sneak cycles go on as usual).
+
+// Overhead is bounded:
+// - only one frame per analysis interval is analyzed, others are returned to the camera at once,
+// - after motion no frames are posted during cooldown,
+// - CPU time and battery drain are measured every hour and recorded by MetricsRecorder;
+//   if CPU time exceeds CPU_BUDGET, analysis interval is doubled (up to MAX_ANALYSIS_INTERVAL),
+//   and if it is below half of the budget, the interval is halved again (down to MIN_ANALYSIS_INTERVAL),
+// - watching is duty cycled: camera is open and CPU is kept awake only for WATCH_WINDOW
+//   every WATCH_PERIOD, the next window is started by AlarmManager (motion between windows is missed,
+//   but the device may sleep most of the time; in Doze mode windows are deferred with the alarm),
+// - watching is paused, while battery is low and the device is not charging.
+// Camera is released, while SneakingService takes photos (ACTION_CAPTURE_STARTING),
+// and opened again, when the cycle is finished (ACTION_CYCLE_FINISHED, also sent, if the cycle is cut short).
+
+// Sequence of execution:
+// 1. update() (from SneakScheduler), 2. onStartCommand(), 3. startWatchWindow(), 4. openCamera(),
+// 5. onPreviewFrame() (many times), 6. onMotion(), 7. releaseCamera() (end of the window),
+// 8. onStartCommand() (ACTION_WATCH from AlarmManager, continue from 3), 9. onDestroy()
+
+public class MotionWatchService extends Service implements Camera.PreviewCallback {
+
+    private static final String TAG = "MotionWatchService";
+
+    // ID of the foreground notification
+    private static final int NOTIFICATION_ID = 1;
+
+    // Minimum width of preview frames (frames are posted, so they must not be too small)
+    private static final int MIN_PREVIEW_WIDTH = 320;
+
+    // Number of preview buffers given to the camera
+    private static final int PREVIEW_BUFFER_COUNT = 2;
+
+    // Number of pre-event frames
+    private static final int PRE_EVENT_FRAMES = 3;
+
+    // JPEG quality of posted frames
+    private static final int JPEG_QUALITY = 80;
+
+    // Analysis interval in milliseconds
+    private static final long MIN_ANALYSIS_INTERVAL = 500;
+    private static final long MAX_ANALYSIS_INTERVAL = 4000;
+
+    // No frames are posted during cooldown after motion
+    private static final long MOTION_COOLDOWN = 60 * 1000;
+
+    // CPU time budget of the process per hour of watching in milliseconds (about 2.5% of one core)
+    private static final long CPU_BUDGET = 90 * 1000;
+
+    // Period of overhead measurement
+    private static final long STATS_PERIOD = 60 * 60 * 1000;
+
+    // Watching is paused below this battery level (if not charging)
+    private static final int MIN_BATTERY_LEVEL = 20;
+
+    // Camera must be released within this time, when SneakingService needs it
+    private static final long CAMERA_RELEASE_TIMEOUT = 2000;
+
+    // Camera is open for WATCH_WINDOW every WATCH_PERIOD
+    private static final long WATCH_WINDOW = 15 * 1000;
+    private static final long WATCH_PERIOD = 60 * 1000;
+
+    // Action of the intent, that starts the next watch window
+    private static final String ACTION_WATCH = "com.gpetuhov.android.sneakeyes.action.WATCH";
+
+    // Keeps instance of CaptureSpool. Injected by Dagger.
+    @Inject CaptureSpool mCaptureSpool;
+
+    // Keeps instance of MetricsRecorder. Injected by Dagger.
+    @Inject MetricsRecorder mMetricsRecorder;
+
+    // Keeps instance of UtilsPrefs. Injected by Dagger.
+    @Inject UtilsPrefs mUtilsPrefs;
+
+    // Thread, where camera is opened and frames are analyzed, and its handler
+    private HandlerThread mCameraThread;
+    private Handler mCameraHandler;
+
+    // Keeps CPU awake, so that preview frames are delivered with screen off.
+    // Held only during the watch window.
+    private PowerManager.WakeLock mWakeLock;
+
+    // Camera and its preview
+    private Camera mCamera;
+    private SurfaceTexture mPreviewTexture;
+    private int mCameraId;
+    private int mFacing;
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+
+    // True while SneakingService is taking photos
+    private volatile boolean mPausedForCapture;
+
+    private MotionDetector mMotionDetector;
+    private FrameRingBuffer mFrameRingBuffer;
+
+    private long mAnalysisInterval = MIN_ANALYSIS_INTERVAL;
+    private long mLastAnalysisTime;
+    private long mLastMotionTime;
+
+    // Overhead measurement of the current period
+    private long mStatsStartTime;
+    private long mStatsStartCpuTime;
+    private int mStatsStartBatteryLevel;
+    private int mFrameCount;
+    private int mAnalyzedCount;
+    private int mTriggerCount;
+
+    // CPU time per hour of the last period
+    private long mLastStatsCpuPerHour;
+
+    // Releases camera before SneakingService takes photos.
+    // Called synchronously on the pipeline thread (sendBroadcastSync).
+    private BroadcastReceiver mCaptureStartingReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mPausedForCapture = true;
+
+            final CountDownLatch released = new CountDownLatch(1);
+            mCameraHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Next window is started, when the cycle is finished
+                    mCameraHandler.removeCallbacks(mEndWindowRunnable);
+                    releaseCamera();
+                    released.countDown();
+                }
+            });
+
+            try {
+                released.await(CAMERA_RELEASE_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Capture will fail, if camera is still in use
+            }
+        }
+    };
+
+    // Opens camera again, when the sneak cycle is finished
+    private BroadcastReceiver mCycleFinishedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (mPausedForCapture) {
+                mPausedForCapture = false;
+                mCameraHandler.post(mStartWindowRunnable);
+            }
+        }
+    };
+
+    private Runnable mStartWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startWatchWindow();
+        }
+    };
+
+    // Releases camera at the end of the watch window and sets alarm for the next one
+    private Runnable mEndWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            releaseCamera();
+            setWatchAlarm();
+        }
+    };
+
+    // Start or stop this service depending on settings in SharedPreferences
+    public static void update(Context context, UtilsPrefs utilsPrefs) {
+        Intent intent = new Intent(context, MotionWatchService.class);
+
+        if (utilsPrefs.isSneakingEnabled() && utilsPrefs.isMotionTriggerEnabled() && VKSdk.isLoggedIn()) {
+            context.startService(intent);
+        } else {
+            context.stopService(intent);
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        SneakEyesApp.getAppComponent().inject(this);
+
+        mMotionDetector = new MotionDetector(MotionDetector.DEFAULT_GRID_WIDTH, MotionDetector.DEFAULT_GRID_HEIGHT);
+        mFrameRingBuffer = new FrameRingBuffer(PRE_EVENT_FRAMES);
+
+        mCameraThread = new HandlerThread(TAG);
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper());
+
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+
+        // Wake lock is acquired, when the watch window starts, and released with the camera
+        mWakeLock.setReferenceCounted(false);
+
+        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(this);
+        localBroadcastManager.registerReceiver(mCaptureStartingReceiver,
+                new IntentFilter(SneakingService.ACTION_CAPTURE_STARTING));
+        localBroadcastManager.registerReceiver(mCycleFinishedReceiver,
+                new IntentFilter(SneakingService.ACTION_CYCLE_FINISHED));
+
+        startForeground(NOTIFICATION_ID, createNotification());
+
+        startStatistics();
+        mCameraHandler.post(mStartWindowRunnable);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Settings may have changed.
+        // Detector is used on the camera thread, so sensitivity is applied there.
+        final int sensitivity = mUtilsPrefs.getMotionSensitivity();
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mMotionDetector.setSensitivity(sensitivity);
+            }
+        });
+
+        if (intent != null && ACTION_WATCH.equals(intent.getAction())) {
+            // Alarm doesn't keep the device awake, until the window is started on the camera thread
+            mWakeLock.acquire();
+            mCameraHandler.post(mStartWindowRunnable);
+        }
+
+        // Restart with null intent, if killed
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(this);
+        localBroadcastManager.unregisterReceiver(mCaptureStartingReceiver);
+        localBroadcastManager.unregisterReceiver(mCycleFinishedReceiver);
+
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.cancel(getWatchPendingIntent());
+
+        mCameraHandler.removeCallbacksAndMessages(null);
+        mCameraHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseCamera();
+                recordStatistics();
+                mFrameRingBuffer.release();
+                mCameraThread.quit();
+            }
+        });
+
+        stopForeground(true);
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        // We don't use binding.
+        return null;
+    }
+
+    private Notification createNotification() {
+        PendingIntent pi = PendingIntent.getActivity(this, 0, SettingsActivity.newIntent(this), 0);
+
+        return new NotificationCompat.Builder(this)
+                .setSmallIcon(android.R.drawable.ic_menu_camera)
+                .setContentTitle(getString(R.string.motion_notification_title))
+                .setContentText(getString(R.string.motion_notification_text))
+                .setContentIntent(pi)
+                .setPriority(NotificationCompat.PRIORITY_MIN)
+                .build();
+    }
+
+    private PendingIntent getWatchPendingIntent() {
+        Intent intent = new Intent(this, MotionWatchService.class);
+        intent.setAction(ACTION_WATCH);
+        return PendingIntent.getService(this, 0, intent, 0);
+    }
+
+    // Start the next watch window after the pause of the duty cycle
+    private void setWatchAlarm() {
+        AlarmManager alarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + WATCH_PERIOD - WATCH_WINDOW, getWatchPendingIntent());
+    }
+
+    // Open camera for the watch window and release it after WATCH_WINDOW.
+    // Called on the camera thread.
+    private void startWatchWindow() {
+        mCameraHandler.removeCallbacks(mEndWindowRunnable);
+
+        // Handler messages don't run, while the device sleeps, so overhead period is checked here
+        if (SystemClock.elapsedRealtime() - mStatsStartTime >= STATS_PERIOD) {
+            recordStatistics();
+            applyBounds();
+        }
+
+        mWakeLock.acquire();
+        openCamera();
+
+        if (mCamera != null) {
+            mCameraHandler.postDelayed(mEndWindowRunnable, WATCH_WINDOW);
+        } else {
+            mWakeLock.release();
+
+            // Battery is low or camera is not available, try again in the next window
+            // (while paused for capture, the window is started, when the cycle is finished)
+            if (!mPausedForCapture) {
+                setWatchAlarm();
+            }
+        }
+    }
+
+    // Open back camera (or the first one) and start low resolution preview.
+    // Called on the camera thread.
+    private void openCamera() {
+        if (mCamera != null || mPausedForCapture || isBatteryLow() || !PhotoTaker.checkCameraPermission(this)) {
+            return;
+        }
+
+        mCameraId = 0;
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+            Camera.getCameraInfo(i, cameraInfo);
+            if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+                mCameraId = i;
+                break;
+            }
+        }
+
+        Camera.getCameraInfo(mCameraId, cameraInfo);
+        mFacing = cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT ? Photo.FACING_FRONT : Photo.FACING_BACK;
+
+        try {
+            mCamera = Camera.open(mCameraId);
+            setPreviewParameters();
+
+            // Camera doesn't start preview without surface
+            mPreviewTexture = new SurfaceTexture(10);
+            mCamera.setPreviewTexture(mPreviewTexture);
+
+            int bufferSize = mPreviewWidth * mPreviewHeight * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+            for (int i = 0; i < PREVIEW_BUFFER_COUNT; i++) {
+                mCamera.addCallbackBuffer(new byte[bufferSize]);
+            }
+            mCamera.setPreviewCallbackWithBuffer(this);
+
+            // Frames of the previous preview are not the background anymore
+            mMotionDetector.reset();
+            mFrameRingBuffer.clear();
+
+            mCamera.startPreview();
+        } catch (Exception e) {
+            // Camera is in use by other app or not available. Try again in the next window.
+            Log.w(TAG, "Unable to open camera", e);
+            releaseCamera();
+        }
+    }
+
+    // Set the smallest preview size (not narrower than MIN_PREVIEW_WIDTH) and the lowest frame rate
+    private void setPreviewParameters() {
+        Camera.Parameters parameters = mCamera.getParameters();
+
+        Camera.Size bestSize = null;
+        for (Camera.Size size : parameters.getSupportedPreviewSizes()) {
+            if (size.width >= MIN_PREVIEW_WIDTH
+                    && (bestSize == null || size.width * size.height < bestSize.width * bestSize.height)) {
+                bestSize = size;
+            }
+        }
+        if (bestSize != null) {
+            parameters.setPreviewSize(bestSize.width, bestSize.height);
+        }
+
+        int[] bestFpsRange = null;
+        List<int[]> fpsRanges = parameters.getSupportedPreviewFpsRange();
+        if (fpsRanges != null) {
+            for (int[] fpsRange : fpsRanges) {
+                if (bestFpsRange == null
+                        || fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] < bestFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]) {
+                    bestFpsRange = fpsRange;
+                }
+            }
+        }
+        if (bestFpsRange != null) {
+            parameters.setPreviewFpsRange(bestFpsRange[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    bestFpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        }
+
+        parameters.setPreviewFormat(ImageFormat.NV21);
+
+        try {
+            mCamera.setParameters(parameters);
+        } catch (RuntimeException e) {
+            // Some cameras reject parameters. Use default preview then.
+        }
+
+        Camera.Size previewSize = mCamera.getParameters().getPreviewSize();
+        mPreviewWidth = previewSize.width;
+        mPreviewHeight = previewSize.height;
+    }
+
+    // Called on the camera thread
+    private void releaseCamera() {
+        if (mCamera != null) {
+            mCamera.setPreviewCallbackWithBuffer(null);
+            mCamera.stopPreview();
+            mCamera.release();
+            mCamera = null;
+        }
+
+        if (mPreviewTexture != null) {
+            mPreviewTexture.release();
+            mPreviewTexture = null;
+        }
+
+        // Device may sleep between watch windows and while watching is paused
+        mWakeLock.release();
+    }
+
+    // Method is called on the camera thread for every preview frame
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        mFrameCount++;
+
+        long now = SystemClock.elapsedRealtime();
+
+        if (now - mLastAnalysisTime >= mAnalysisInterval) {
+            mLastAnalysisTime = now;
+            mAnalyzedCount++;
+
+            boolean motion = mMotionDetector.process(data, mPreviewWidth, mPreviewHeight);
+
+            if (motion && now - mLastMotionTime >= MOTION_COOLDOWN) {
+                mLastMotionTime = now;
+                onMotion(data);
+            } else {
+                mFrameRingBuffer.put(data, data.length, System.currentTimeMillis());
+            }
+        }
+
+        // Return buffer to the camera
+        if (mCamera != null) {
+            mCamera.addCallbackBuffer(data);
+        }
+    }
+
+    // Put pre-event frames and the triggering frame into the spool and post them
+    private void onMotion(byte[] triggerFrame) {
+        mTriggerCount++;
+
+        Log.d(TAG, "Motion detected (" + mMotionDetector.getLastChangedShare() + " of the frame changed)");
+
+        List<Photo> photos = new ArrayList<>();
+        for (int i = 0; i < mFrameRingBuffer.size(); i++) {
+            photos.add(createPhoto(mFrameRingBuffer.get(i)));
+        }
+        photos.add(createPhoto(triggerFrame));
+        mFrameRingBuffer.clear();
+
+        if (mCaptureSpool.enqueue(photos, null)) {
+            // SneakingService keeps drain pending, if it can't post the entry now
+            // (drain job is not scheduled here, because it may be running)
+            startService(SneakingService.newDrainIntent(this));
+        }
+    }
+
+    private Photo createPhoto(byte[] frame) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        YuvImage yuvImage = new YuvImage(frame, ImageFormat.NV21, mPreviewWidth, mPreviewHeight, null);
+        yuvImage.compressToJpeg(new Rect(0, 0, mPreviewWidth, mPreviewHeight), JPEG_QUALITY, out);
+
+        return new Photo(String.valueOf(mCameraId), mFacing, out.toByteArray());
+    }
+
+    private boolean isBatteryLow() {
+        int level = UtilsBattery.getLevel(this);
+        return level >= 0 && level < MIN_BATTERY_LEVEL && !UtilsBattery.isCharging(this);
+    }
+
+    private void startStatistics() {
+        mStatsStartTime = SystemClock.elapsedRealtime();
+        mStatsStartCpuTime = Process.getElapsedCpuTime();
+        mStatsStartBatteryLevel = UtilsBattery.getLevel(this);
+        mFrameCount = 0;
+        mAnalyzedCount = 0;
+        mTriggerCount = 0;
+    }
+
+    // Record overhead of the period (normalized per hour) as motion cycle and start new period.
+    // CPU time is the time of the whole process, so it includes sneak cycles and uploads too.
+    private void recordStatistics() {
+        long period = SystemClock.elapsedRealtime() - mStatsStartTime;
+
+        if (period < MIN_ANALYSIS_INTERVAL) {
+            return;
+        }
+
+        long cpuTime = Process.getElapsedCpuTime() - mStatsStartCpuTime;
+        int batteryLevel = UtilsBattery.getLevel(this);
+
+        CycleRecord record = new CycleRecord(System.currentTimeMillis() - period, MetricsRecorder.CYCLE_MOTION);
+        record.addSample(MetricsRecorder.MOTION_CPU, perHour(cpuTime, period));
+        record.addSample(MetricsRecorder.MOTION_FRAMES, perHour(mFrameCount, period));
+        record.addSample(MetricsRecorder.MOTION_ANALYZED, perHour(mAnalyzedCount, period));
+        record.addSample(MetricsRecorder.MOTION_TRIGGERS, perHour(mTriggerCount, period));
+
+        // Battery drain in percent per hour is meaningful only while not charging
+        if (mStatsStartBatteryLevel >= 0 && batteryLevel >= 0 && !UtilsBattery.isCharging(this)) {
+            record.addSample(MetricsRecorder.MOTION_BATTERY, perHour(mStatsStartBatteryLevel - batteryLevel, period));
+        }
+
+        record.setResult(MetricsRecorder.RESULT_OK);
+        mMetricsRecorder.addCycle(record);
+
+        Log.d(TAG, "Motion watching: " + perHour(cpuTime, period) + " ms CPU per hour, "
+                + mAnalyzedCount + " of " + mFrameCount + " frames analyzed, " + mTriggerCount + " triggers");
+
+        mLastStatsCpuPerHour = perHour(cpuTime, period);
+
+        startStatistics();
+    }
+
+    // Slow down analysis, if CPU budget is exceeded, and speed it up again, if CPU time is well under budget
+    // (battery level is checked, when the camera is opened in every window)
+    private void applyBounds() {
+        if (mLastStatsCpuPerHour > CPU_BUDGET && mAnalysisInterval < MAX_ANALYSIS_INTERVAL) {
+            mAnalysisInterval = Math.min(mAnalysisInterval * 2, MAX_ANALYSIS_INTERVAL);
+            Log.d(TAG, "CPU budget exceeded, analysis interval " + mAnalysisInterval + " ms");
+        } else if (mLastStatsCpuPerHour < CPU_BUDGET / 2 && mAnalysisInterval > MIN_ANALYSIS_INTERVAL) {
+            // Halving the interval may double analysis CPU time, so it must stay within budget
+            mAnalysisInterval = Math.max(mAnalysisInterval / 2, MIN_ANALYSIS_INTERVAL);
+            Log.d(TAG, "CPU time under budget, analysis interval " + mAnalysisInterval + " ms");
+        }
+    }
+
+    private static long perHour(long value, long period) {
+        return value * STATS_PERIOD / period;
+    }
+}
@@ -0,0 +1,68 @@
+package com.gpetuhov.android.sneakeyes;
+
+// Photo taken by PhotoTaker.
+// Photo is kept as compressed JPEG data, so that no full size Bitmap
+// stays in memory between capture and upload.
+public class Photo {
+
+    // Camera facing values
+    public static final int FACING_BACK = 0;
+    public static final int FACING_FRONT = 1;
+    public static final int FACING_EXTERNAL = 2;
+
+    // ID of the camera, that has taken this photo
+    private String mCameraId;
+
+    // Facing of the camera, that has taken this photo
+    private int mFacing;
+
+    // JPEG data of the photo
+    private byte[] mJpegData;
+
+    // Perceptual hash of the photo (null if not computed)
+    private Long mHash;
+
+    // Information score of the photo (null if not computed)
+    private Integer mScore;
+
+    public Photo(String cameraId, int facing, byte[] jpegData) {
+        mCameraId = cameraId;
+        mFacing = facing;
+        mJpegData = jpegData;
+    }
+
+    public String getCameraId() {
+        return mCameraId;
+    }
+
+    public int getFacing() {
+        return mFacing;
+    }
+
+    public byte[] getJpegData() {
+        return mJpegData;
+    }
+
+    // Return perceptual hash of the photo (null if not computed)
+    public Long getHash() {
+        return mHash;
+    }
+
+    public void setHash(Long hash) {
+        mHash = hash;
+    }
+
+    // Return information score of the photo (null if not computed)
+    public Integer getScore() {
+        return mScore;
+    }
+
+    public void setScore(Integer score) {
+        mScore = score;
+    }
+
+    // Return size of JPEG data in bytes
+    public int getSizeBytes() {
+        return mJpegData.length;
+    }
+}
@@ -0,0 +1,248 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+import com.gpetuhov.android.sneakeyes.imagecore.ScaleMath;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+// Combines back and front camera photos into one image,
+// so that one cycle uploads one photo instead of two (half of upload requests).
+// Modes:
+// - side by side: front photo is scaled to the height of the back photo and put on the right.
+//   Both photos are decoded in horizontal bands (BitmapRegionDecoder) into one reused band Bitmap
+//   and drawn into the output, so no full size Bitmap of the source photos is allocated.
+// - picture in picture: back photo is decoded directly into the output Bitmap,
+//   and front photo is decoded with large sample size and drawn over its corner.
+// Bitmaps are taken from and returned to BitmapPool.
+public class PhotoCompositor {
+
+    private static final String TAG = "PhotoCompositor";
+
+    // Composite modes
+    public static final String MODE_OFF = "off";
+    public static final String MODE_SIDE_BY_SIDE = "side_by_side";
+    public static final String MODE_PICTURE_IN_PICTURE = "pip";
+
+    // Number of source rows decoded at once in side by side mode
+    private static final int BAND_HEIGHT = 64;
+
+    // Inset width is 1/PIP_SCALE of the output width
+    private static final int PIP_SCALE = 3;
+
+    // Inset margin and border are 1/PIP_MARGIN_SCALE of the output width
+    private static final int PIP_MARGIN_SCALE = 40;
+
+    // Keeps Bitmaps for reuse
+    private BitmapPool mBitmapPool;
+
+    // Draws scaled bands and inset with filtering
+    private Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    public PhotoCompositor(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    // Return composite of back and front photos or null,
+    // if there is no such pair in the list or composition failed (photos should be posted separately then).
+    public Photo compose(List<Photo> photos, String mode, int jpegQuality) {
+        Photo back = null;
+        Photo front = null;
+
+        for (Photo photo : photos) {
+            if (photo.getFacing() == Photo.FACING_FRONT) {
+                front = photo;
+            } else {
+                back = photo;
+            }
+        }
+
+        if (photos.size() != 2 || back == null || front == null) {
+            return null;
+        }
+
+        Bitmap output = null;
+
+        try {
+            switch (mode) {
+                case MODE_SIDE_BY_SIDE:
+                    output = composeSideBySide(back, front);
+                    break;
+                case MODE_PICTURE_IN_PICTURE:
+                    output = composePictureInPicture(back, front);
+                    break;
+                default:
+                    return null;
+            }
+
+            if (output == null) {
+                return null;
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            output.compress(Bitmap.CompressFormat.JPEG, jpegQuality, out);
+
+            return new Photo(back.getCameraId() + "+" + front.getCameraId(), back.getFacing(), out.toByteArray());
+        } catch (IOException | OutOfMemoryError e) {
+            Log.e(TAG, "Unable to compose photos", e);
+            return null;
+        } finally {
+            mBitmapPool.put(output);
+        }
+    }
+
+    private Bitmap composeSideBySide(Photo back, Photo front) throws IOException {
+        BitmapRegionDecoder backDecoder = newDecoder(back);
+        BitmapRegionDecoder frontDecoder = newDecoder(front);
+
+        try {
+            int height = backDecoder.getHeight();
+            int backWidth = backDecoder.getWidth();
+            int frontWidth = Math.round((float) frontDecoder.getWidth() * height / frontDecoder.getHeight());
+
+            Bitmap output = obtainBitmap(backWidth + frontWidth, height);
+            Canvas canvas = new Canvas(output);
+
+            // Band Bitmap is reused by both decoders
+            Bitmap band = obtainBitmap(Math.max(backDecoder.getWidth(), frontDecoder.getWidth()), BAND_HEIGHT);
+            band = drawInBands(backDecoder, band, canvas, new Rect(0, 0, backWidth, height));
+            band = drawInBands(frontDecoder, band, canvas, new Rect(backWidth, 0, backWidth + frontWidth, height));
+            mBitmapPool.put(band);
+
+            return output;
+        } finally {
+            backDecoder.recycle();
+            frontDecoder.recycle();
+        }
+    }
+
+    // Decode source band by band and draw every band into its part of destination rectangle.
+    // Return band Bitmap (decoder may replace it, if it doesn't fit).
+    private Bitmap drawInBands(BitmapRegionDecoder decoder, Bitmap band, Canvas canvas, Rect dest) {
+        int srcWidth = decoder.getWidth();
+        int srcHeight = decoder.getHeight();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inBitmap = band;
+
+        Rect bandSrc = new Rect();
+        Rect bandDest = new Rect();
+
+        for (int top = 0; top < srcHeight; top += BAND_HEIGHT) {
+            int bottom = Math.min(top + BAND_HEIGHT, srcHeight);
+
+            Bitmap decoded = decoder.decodeRegion(new Rect(0, top, srcWidth, bottom), options);
+            if (decoded == null) {
+                continue;
+            }
+
+            if (decoded != band) {
+                // Decoder didn't reuse the band, keep the new one for next bands
+                mBitmapPool.put(band);
+                band = decoded;
+                options.inBitmap = band;
+            }
+
+            // Region is decoded into top left corner of the band
+            bandSrc.set(0, 0, srcWidth, bottom - top);
+            bandDest.set(dest.left, dest.top + top * dest.height() / srcHeight,
+                    dest.right, dest.top + bottom * dest.height() / srcHeight);
+            canvas.drawBitmap(band, bandSrc, bandDest, mPaint);
+        }
+
+        return band;
+    }
+
+    private Bitmap composePictureInPicture(Photo back, Photo front) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(back, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+
+        // Back photo is the output itself
+        Bitmap output = mBitmapPool.decodeByteArray(back.getJpegData(), new BitmapFactory.Options(), width, height);
+        if (output == null) {
+            return null;
+        }
+
+        options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(front, options);
+        int frontWidth = options.outWidth;
+        int frontHeight = options.outHeight;
+
+        if (frontWidth <= 0 || frontHeight <= 0) {
+            return output;
+        }
+
+        int insetWidth = width / PIP_SCALE;
+        int insetHeight = insetWidth * frontHeight / frontWidth;
+        int margin = width / PIP_MARGIN_SCALE;
+
+        // Front photo is decoded not much larger than the inset
+        int inSampleSize = ScaleMath.calculateInSampleSize(frontWidth, frontHeight, insetWidth, insetHeight);
+        options = new BitmapFactory.Options();
+        options.inSampleSize = inSampleSize;
+        Bitmap inset = mBitmapPool.decodeByteArray(front.getJpegData(), options,
+                ScaleMath.getSampledSize(frontWidth, inSampleSize),
+                ScaleMath.getSampledSize(frontHeight, inSampleSize));
+
+        if (inset != null) {
+            Rect insetRect = new Rect(width - margin - insetWidth, height - margin - insetHeight,
+                    width - margin, height - margin);
+
+            Canvas canvas = new Canvas(output);
+
+            // Thin border separates inset from the back photo
+            Paint borderPaint = new Paint();
+            borderPaint.setColor(Color.WHITE);
+            int border = Math.max(margin / 4, 1);
+            canvas.drawRect(insetRect.left - border, insetRect.top - border,
+                    insetRect.right + border, insetRect.bottom + border, borderPaint);
+
+            canvas.drawBitmap(inset, null, insetRect, mPaint);
+            mBitmapPool.put(inset);
+        }
+
+        return output;
+    }
+
+    // Return mutable Bitmap from the pool or new one
+    private Bitmap obtainBitmap(int width, int height) {
+        Bitmap bitmap = mBitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && (bitmap.getWidth() != width || bitmap.getHeight() != height)) {
+            // Since KitKat pool returns any Bitmap with enough memory, that can be reconfigured
+            bitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.eraseColor(Color.BLACK);
+
+        return bitmap;
+    }
+
+    private static BitmapRegionDecoder newDecoder(Photo photo) throws IOException {
+        byte[] data = photo.getJpegData();
+        return BitmapRegionDecoder.newInstance(data, 0, data.length, false);
+    }
+
+    private static Bitmap decode(Photo photo, BitmapFactory.Options options) {
+        byte[] data = photo.getJpegData();
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+}
@@ -0,0 +1,52 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.gpetuhov.android.sneakeyes.imagecore.DHash;
+
+// Computes perceptual hash (dHash) of the photo.
+// JPEG is decoded with large power of 2 sample size (decoder scales it down almost for free),
+// so only a tiny Bitmap (smaller side 32-63 px) is allocated and hashed.
+public class PhotoHasher {
+
+    // Minimum size of the smaller side of the decoded image
+    private static final int MIN_DECODED_SIZE = 32;
+
+    private PhotoHasher() {
+        // Utility class
+    }
+
+    // Return hash of JPEG data or null, if it can't be decoded
+    public static Long computeHash(byte[] jpegData) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, options);
+
+        int smallerSide = Math.min(options.outWidth, options.outHeight);
+        if (smallerSide <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (smallerSide / (sampleSize * 2) >= MIN_DECODED_SIZE) {
+            sampleSize *= 2;
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, options);
+
+        if (bitmap == null) {
+            return null;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        bitmap.recycle();
+
+        return DHash.compute(pixels, width, height);
+    }
+}
@@ -5,64 +5,115 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.SurfaceTexture;
-import android.hardware.Camera;
+import android.os.Build;
+import android.os.SystemClock;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
-import java.io.IOException;
+import com.gpetuhov.android.sneakeyes.camera.Camera2CameraSource;
+import com.gpetuhov.android.sneakeyes.camera.CameraSource;
+import com.gpetuhov.android.sneakeyes.camera.LegacyCameraSource;
+import com.gpetuhov.android.sneakeyes.imagecore.ScaleMath;
+import com.gpetuhov.android.sneakeyes.metrics.MetricsRecorder;
+
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
-// Takes photos from phone camera.
-// Implements Camera.PictureCallback to handle photos taken by the camera.
-// Implements Camera.PreviewCallback to take pictures when preview is ready only.
+// Takes photos from phone cameras.
+// Photos are taken by one of the camera backends (CameraSource implementations):
+// deprecated Camera API (available on all devices) or camera2 API (API 21+).
+// Backend is chosen at runtime according to settings and device capabilities.
 // User of PhotoTaker must implement PhotoTaker.PhotoResultListener to receive callback,
 // when photo is taken and ready.
+// Photos are returned as JPEG data. Output dimensions and JPEG quality are set by EncodingProfile.
+// Camera picture size is set close to output dimensions,
+// so JPEG from the camera is decoded (and scaled) only if it is too big.
+// If hashing is enabled, perceptual hash of every photo is computed (to find unchanged scenes).
+// If scoring is enabled, information score of every photo is computed (to find frames with nothing to see).
+
+// If PhotoStreamListener is set, every photo is passed to it as soon as it is ready,
+// while the next camera is still capturing (so that upload can start at once).
+
+// Camera callbacks are called on the thread, that calls takePhoto() (this thread must have a Looper).
 
-// Sequence of execution: 1. takePhoto(), 2. onPreviewFrame(), 3. onPictureTaken() or onPictureError()
+// Sequence of execution: 1. takePhoto(), 2. onPhotoCaptured() for every camera,
+// 3. onCaptureComplete() or onCaptureError()
 
-public class PhotoTaker implements Camera.PictureCallback, Camera.PreviewCallback {
+public class PhotoTaker implements CameraSource.CaptureListener {
 
-    // Output photo dimensions
-    // PhotoTaker will scale photo from the camera to fit these dimensions
-    public static final int OUTPUT_PHOTO_WIDTH = 800;
-    public static final int OUTPUT_PHOTO_HEIGHT = 600;
+    private static final String TAG = "PhotoTaker";
+
+    // Camera backend, that is chosen according to device capabilities
+    public static final String BACKEND_AUTO = "auto";
 
     // Context is needed for checking camera availability and saving photos
     private Context mContext;
 
-    // Keeps camera instance
-    private Camera mCamera;
+    // Keeps Bitmaps for reuse in scaling decodes
+    private BitmapPool mBitmapPool;
+
+    // Records camera and decode latencies
+    private MetricsRecorder mMetricsRecorder;
+
+    // Camera backends (camera2 backend is created on API 21+ only)
+    private LegacyCameraSource mLegacyCameraSource;
+    private CameraSource mCamera2CameraSource;
+
+    // Backend in use
+    private CameraSource mCameraSource;
+
+    // Backend requested in settings
+    private String mCameraBackend = BACKEND_AUTO;
+
+    // True if perceptual hashes of photos are computed
+    private boolean mHashEnabled;
 
-    // Number of cameras available
-    private int mNumberOfCameras;
+    // True if information scores of photos are computed
+    private boolean mScoringEnabled;
 
-    // ID of the current camera in use
-    private int mCurrentCamera;
+    // Output photo dimensions and JPEG quality.
+    // PhotoTaker will scale photo from the camera to fit these dimensions.
+    private EncodingProfile mEncodingProfile = EncodingProfile.MEDIUM;
 
-    private List<Bitmap> mPhotos;
+    // Keeps taken photos
+    private List<Photo> mPhotos;
+
+    // Time, when capture started
+    private long mCaptureStartTime;
 
     // Keeps reference to the listener to PhotoTaker
     private PhotoResultListener mPhotoResultListener;
 
+    // Receives every photo as soon as it is ready (may be null)
+    private PhotoStreamListener mPhotoStreamListener;
+
     // User of PhotoTaker must implement this interface to receive callbacks
     public interface PhotoResultListener {
-        void onPhotoTaken(List<Bitmap> photos);
+        void onPhotoTaken(List<Photo> photos);
         void onPhotoError();
     }
 
+    // User of PhotoTaker may implement this interface to receive photos one by one.
+    // PhotoResultListener still receives all photos, when capture is complete.
+    public interface PhotoStreamListener {
+        void onPhotoReady(Photo photo);
+    }
+
     // Return true if we have permission to access camera
     public static boolean checkCameraPermission(Context context) {
         return ContextCompat.checkSelfPermission(context, Manifest.permission.CAMERA)
                 == PackageManager.PERMISSION_GRANTED;
     }
 
-    public PhotoTaker(Context context) {
+    public PhotoTaker(Context context, BitmapPool bitmapPool, MetricsRecorder metricsRecorder) {
         mContext = context;
+        mBitmapPool = bitmapPool;
+        mMetricsRecorder = metricsRecorder;
+        mLegacyCameraSource = new LegacyCameraSource(metricsRecorder);
     }
 
-    // Check camera availability, initialize camera and start image capture.
+    // Check camera availability, choose camera backend and start image capture.
     // Call this method to take photos.
     public void takePhoto(PhotoResultListener photoResultListener) {
 
@@ -77,31 +128,15 @@ public class PhotoTaker implements Camera.PictureCallback, Camera.PreviewCallbac
             if (isCameraAvailable()) {
                 // Cameras are available
 
-                // Get number of cameras available
-                int numberOfCameras = Camera.getNumberOfCameras();
-
-                if (numberOfCameras > 0) {
-                    // Device has one or more cameras
-
-                    // If device has more than 1 camera, use only 2 of them
-                    if (numberOfCameras > 1) {
-                        numberOfCameras = 2;
-                    }
-
-                    // Save number of cameras
-                    mNumberOfCameras = numberOfCameras;
-
-                    // Set current camera to 0 (back-facing)
-                    mCurrentCamera = 0;
+                // Create new empty list of photos
+                mPhotos = new ArrayList<>();
 
-                    // Create new empty list of photos
-                    mPhotos = new ArrayList<>();
+                mCameraSource = chooseCameraSource();
+                mCaptureStartTime = SystemClock.elapsedRealtime();
 
-                    takePhotoFromCamera(mCurrentCamera);
-                } else {
-                    // No cameras on device
-                    reportError();
-                }
+                // Photos will be passed to onPhotoCaptured()
+                mCameraSource.capture(mEncodingProfile.getWidth(), mEncodingProfile.getHeight(),
+                        mEncodingProfile.getJpegQuality(), this);
             } else {
                 // No camera is available
                 reportError();
@@ -112,28 +147,49 @@ public class PhotoTaker implements Camera.PictureCallback, Camera.PreviewCallbac
         }
     }
 
-    // Takes photo from the camera with provided ID
-    private void takePhotoFromCamera(int cameraId) {
+    // Set output dimensions and JPEG quality of the photos
+    public void setEncodingProfile(EncodingProfile encodingProfile) {
+        mEncodingProfile = encodingProfile;
+    }
 
-        // Release camera (because camera may be in use by previous operations)
-        releaseCamera();
+    // Return output dimensions and JPEG quality of the photos
+    public EncodingProfile getEncodingProfile() {
+        return mEncodingProfile;
+    }
 
-        // Try to get camera instance
-        if (getCameraInstance(cameraId)) {
-            // Camera instance acquired
+    // Set camera backend (BACKEND_AUTO, LegacyCameraSource.NAME or Camera2CameraSource.NAME)
+    public void setCameraBackend(String cameraBackend) {
+        mCameraBackend = cameraBackend;
+    }
 
-            // Try to initialize camera and start preview
-            boolean success = initCameraAndStartPreview();
+    // Take photos from preview frames instead of Camera.takePicture()
+    // (legacy backend only)
+    public void setPreviewFrameMode(boolean previewFrameMode) {
+        mLegacyCameraSource.setPreviewFrameMode(previewFrameMode);
+    }
 
-            // If not success, report error to the listener
-            if (!success) {
-                reportError();
-            }
+    // Compute perceptual hash of every photo (Photo.getHash())
+    public void setHashEnabled(boolean hashEnabled) {
+        mHashEnabled = hashEnabled;
+    }
 
-            // Photo will be taken in callback method, when preview is ready.
-        } else {
-            // Camera instance not acquired
-            reportError();
+    // Compute information score of every photo (Photo.getScore())
+    public void setScoringEnabled(boolean scoringEnabled) {
+        mScoringEnabled = scoringEnabled;
+    }
+
+    // Set listener, that receives every photo as soon as it is ready (null to stop streaming)
+    public void setPhotoStreamListener(PhotoStreamListener photoStreamListener) {
+        mPhotoStreamListener = photoStreamListener;
+    }
+
+    // Stop taking photos and release the camera.
+    // Listener is not called after cancellation.
+    public void cancel() {
+        unregisterListener();
+
+        if (mCameraSource != null) {
+            mCameraSource.cancel();
         }
     }
 
@@ -142,126 +198,137 @@ public class PhotoTaker implements Camera.PictureCallback, Camera.PreviewCallbac
         return mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_CAMERA);
     }
 
-    // Camera must be released to be used later by this or other apps
-    private void releaseCamera() {
-        if (mCamera != null) {
-            mCamera.release();
-            mCamera = null;
-        }
-    }
+    // Return camera backend according to settings and device capabilities.
+    // Auto mode uses camera2 only if it is not a wrapper around deprecated Camera API.
+    private CameraSource chooseCameraSource() {
+        boolean useCamera2 = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && (Camera2CameraSource.NAME.equals(mCameraBackend)
+                || (BACKEND_AUTO.equals(mCameraBackend) && Camera2CameraSource.isFullySupported(mContext)));
 
-    // A safe way to get an instance of the Camera object
-    private boolean getCameraInstance(int cameraId) {
-        try {
-            // Attempt to get a Camera instance.
-            mCamera = Camera.open(cameraId);
-        }
-        catch (Exception e){
-            // Camera is not available (in use or does not exist)
-            // Do nothing, because we will return false in this case
+        if (useCamera2) {
+            if (mCamera2CameraSource == null) {
+                mCamera2CameraSource = new Camera2CameraSource(mContext, mMetricsRecorder);
+            }
+            return mCamera2CameraSource;
         }
 
-        // Return true, if camera opened successfully
-        return mCamera != null;
+        return mLegacyCameraSource;
     }
 
-    // Initialize camera and start preview
-    private boolean initCameraAndStartPreview() {
-        // True if operation completed successfully
-        boolean successFlag = true;
-
-        // If camera instance is available
-        if (mCamera != null) {
-            try {
-                // We don't need to show preview to user,
-                // so just set new SurfaceTexture as a preview.
-                mCamera.setPreviewTexture(new SurfaceTexture(10));
-
-                // Set PhotoTaker as a listener to preview callbacks.
-                // After one invocation, the callback is cleared.
-                mCamera.setOneShotPreviewCallback(this);
-
-                // Start preview. When preview is ready, onPreviewFrame() will be called once.
-                mCamera.startPreview();
-            } catch (IOException e) {
-                // Error while initializing camera
-                successFlag = false;
-            }
-        } else {
-            // No camera instance available
-            successFlag = false;
+    // Method is called, when a camera has taken photo
+    @Override
+    public void onPhotoCaptured(String cameraId, int facing, byte[] jpegData, int rotation) {
+        if (mPhotoResultListener == null) {
+            // Taking photos has been cancelled
+            return;
         }
 
-        return successFlag;
-    }
+        Log.d(TAG, "Camera " + cameraId + " captured in "
+                + (SystemClock.elapsedRealtime() - mCaptureStartTime) + " ms"
+                + " (" + mCameraSource.getName() + " backend)");
 
-    // Method is called, when preview is ready (camera is ready to take pictures).
-    // This method will be called only once,
-    // because we set PhotoTaker as listener by setOneShotPreviewCallback().
-    @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
-        // Start asynchronous image capture.
-        // When image is taken, onPictureTaken() will be called.
-        mCamera.takePicture(null, null, this);
-    }
+        // Scale JPEG, received from the camera, to output width and height (if needed)
+        long decodeStartTime = SystemClock.elapsedRealtime();
+        byte[] scaledJpeg = getScaledJpeg(jpegData, mEncodingProfile.getWidth(), mEncodingProfile.getHeight());
 
-    // Method is called, when photo is taken.
-    // Save photo in internal storage.
-    @Override
-    public void onPictureTaken(byte[] data, Camera camera) {
+        if (scaledJpeg != jpegData) {
+            mMetricsRecorder.record(MetricsRecorder.PHOTO_DECODE, SystemClock.elapsedRealtime() - decodeStartTime);
+        }
+        mMetricsRecorder.record(MetricsRecorder.PHOTO_BYTES, scaledJpeg.length);
 
-        // Photo is taken, we should release the camera.
-        releaseCamera();
+        Photo photo = new Photo(cameraId, facing, scaledJpeg);
 
-        // Convert byte array, received from the camera,
-        // to Bitmap, scaled to output width and height.
-        Bitmap photoBitmap = getScaledBitmap(data, OUTPUT_PHOTO_WIDTH, OUTPUT_PHOTO_HEIGHT);
+        if (mHashEnabled) {
+            long hashStartTime = SystemClock.elapsedRealtime();
+            photo.setHash(PhotoHasher.computeHash(scaledJpeg));
+            mMetricsRecorder.record(MetricsRecorder.PHOTO_HASH, SystemClock.elapsedRealtime() - hashStartTime);
+        }
 
-        // Save taken photo
-        mPhotos.add(photoBitmap);
+        if (mScoringEnabled) {
+            long scoreStartTime = SystemClock.elapsedRealtime();
+            photo.setScore(SceneScorer.computeScore(scaledJpeg, rotation));
+            mMetricsRecorder.record(MetricsRecorder.PHOTO_SCORE, SystemClock.elapsedRealtime() - scoreStartTime);
+        }
 
-        // Switch to next camera
-        mCurrentCamera++;
+        mPhotos.add(photo);
 
-        if (mCurrentCamera < mNumberOfCameras) {
-            // Didn't use all available cameras.
-            // Take photo from this camera.
-            takePhotoFromCamera(mCurrentCamera);
-        } else {
-            // Used all available cameras.
-            // Send taken photos to listener.
-            reportSuccess();
+        if (mPhotoStreamListener != null) {
+            mPhotoStreamListener.onPhotoReady(photo);
         }
     }
 
-    // Get scaled Bitmap from byte array
-    private Bitmap getScaledBitmap(byte[] data, int destWidth, int destHeight) {
+    // Method is called, when all cameras have taken photos
+    @Override
+    public void onCaptureComplete() {
+        Log.d(TAG, mPhotos.size() + " photos captured in "
+                + (SystemClock.elapsedRealtime() - mCaptureStartTime) + " ms"
+                + " (" + mCameraSource.getName() + " backend)");
+
+        // Send taken photos to listener.
+        reportSuccess();
+    }
+
+    // Method is called, when capture failed
+    @Override
+    public void onCaptureError() {
+        reportError();
+    }
+
+    // Get JPEG data scaled to destination dimensions.
+    // If no scaling is needed, camera JPEG is returned as is (without decoding).
+    private byte[] getScaledJpeg(byte[] data, int destWidth, int destHeight) {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inJustDecodeBounds = true;
         BitmapFactory.decodeByteArray(data, 0, data.length, options);
 
-        float srcWidth = options.outWidth;
-        float srcHeight = options.outHeight;
+        int srcWidth = options.outWidth;
+        int srcHeight = options.outHeight;
 
-        int inSampleSize = 1;
-        if (srcHeight > destHeight || srcWidth > destWidth) {
-            if (srcWidth > srcHeight) {
-                inSampleSize = Math.round(srcHeight / destHeight);
-            } else {
-                inSampleSize = Math.round(srcWidth / destWidth);
-            }
+        int inSampleSize = ScaleMath.calculateInSampleSize(srcWidth, srcHeight, destWidth, destHeight);
+
+        if (inSampleSize <= 1) {
+            // Camera JPEG already fits output dimensions
+            return data;
         }
 
         options = new BitmapFactory.Options();
         options.inSampleSize = inSampleSize;
 
-        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        // Before KitKat sampled decode can't reuse Bitmap, so the pool is not used then
+        boolean usePool = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+        Bitmap bitmap;
+        if (usePool) {
+            // Decode into pooled Bitmap (if there is one of suitable size)
+            int scaledWidth = ScaleMath.getSampledSize(srcWidth, inSampleSize);
+            int scaledHeight = ScaleMath.getSampledSize(srcHeight, inSampleSize);
+            bitmap = mBitmapPool.decodeByteArray(data, options, scaledWidth, scaledHeight);
+        } else {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+
+        if (bitmap == null) {
+            // Unable to decode. Keep camera JPEG.
+            return data;
+        }
+
+        // Compress scaled Bitmap and return it to the pool immediately
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, mEncodingProfile.getJpegQuality(), out);
+
+        if (usePool) {
+            mBitmapPool.put(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+
+        return out.toByteArray();
     }
 
     // Report success to the listener
     private void reportSuccess() {
         if (mPhotoResultListener != null) {
-            // Pass photo Bitmap to the listener
+            // Pass photos to the listener
             mPhotoResultListener.onPhotoTaken(mPhotos);
             unregisterListener();
         }
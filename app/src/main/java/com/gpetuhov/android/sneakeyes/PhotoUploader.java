@@ -1,9 +1,17 @@
 package com.gpetuhov.android.sneakeyes;
 
-import android.graphics.Bitmap;
 import android.location.Location;
-import android.util.Log;
-
+import android.os.Looper;
+
+import com.gpetuhov.android.sneakeyes.metrics.MetricsRecorder;
+import com.gpetuhov.android.sneakeyes.uploadcore.Cancellable;
+import com.gpetuhov.android.sneakeyes.uploadcore.Scheduler;
+import com.gpetuhov.android.sneakeyes.uploadcore.StreamingUploader;
+import com.gpetuhov.android.sneakeyes.uploadcore.WallPostFlow;
+import com.gpetuhov.android.sneakeyes.vk.ElapsedRealtimeClock;
+import com.gpetuhov.android.sneakeyes.vk.HandlerScheduler;
+import com.gpetuhov.android.sneakeyes.vk.UploadServerCache;
+import com.gpetuhov.android.sneakeyes.vk.VKRequestGovernor;
 import com.vk.sdk.VKAccessToken;
 import com.vk.sdk.api.VKApi;
 import com.vk.sdk.api.VKApiConst;
@@ -11,71 +19,73 @@ import com.vk.sdk.api.VKError;
 import com.vk.sdk.api.VKParameters;
 import com.vk.sdk.api.VKRequest;
 import com.vk.sdk.api.VKResponse;
-import com.vk.sdk.api.model.VKApiPhoto;
-import com.vk.sdk.api.model.VKAttachments;
 import com.vk.sdk.api.model.VKPhotoArray;
 import com.vk.sdk.api.model.VKWallPostResult;
-import com.vk.sdk.api.photo.VKImageParameters;
-import com.vk.sdk.api.photo.VKUploadImage;
 
+import org.json.JSONObject;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 // Posts photos to user's VK wall.
+// Photos are uploaded from JPEG files (kept in CaptureSpool).
+// Upload and post sequencing is done by WallPostFlow (uploadcore), that is shared with uploadbench:
+// photos of one call are uploaded concurrently, files are streamed from disk (StreamingUploader),
+// and one wall post with unique guid is made, when the last upload finishes.
+// PhotoUploader makes VK SDK requests for the flow, keeps upload URL in UploadServerCache,
+// creates wall post messages and records metrics.
 // User of PhotoUploader must implement PhotoUploadedListener to receive callbacks
 
-// Sequence of execution: 1. uploadPhoto(), 2. loadPhotoToVKWall(), 3. makePostToVKWall()
+// Photos of several spool entries (sneak cycles) can be posted in one wall post by uploadPhotoBatch().
+// In streaming mode photos are added one by one, while the next photos are being taken,
+// and uploaded at once (beginStreamingPost(), addPhoto(), finishStreamingPost()).
+// All VK requests are executed by VKRequestGovernor (rate limit, retries and circuit breaker).
+// PhotoUploader is confined to the thread, that starts the upload (it must have a Looper).
+// VKRequestGovernor and StreamingUploader deliver callbacks to this thread, and cancel()
+// must be called on it too, so upload state is never changed from two threads.
 
-public class PhotoUploader {
+// Sequence of execution: 1. uploadPhoto() or uploadPhotoBatch(), 2. WallPostFlow.startUploads(),
+// 3. requestUploadUrl(), saveWallPhoto() for every photo, 4. post()
+// Streaming mode: 1. beginStreamingPost(), 2. addPhoto() for every photo,
+// 3. finishStreamingPost(), 4. post()
+
+public class PhotoUploader extends WallPostFlow {
 
     // Hashtag for VK wall posts
     private static final String VK_HASHTAG = "#SneakEyesApp";
 
-    // Keeps photos to upload
-    private List<Bitmap> mPhotos;
-
-    // Keeps location to attach to wall post
-    private Location mLocation;
+    // Format of capture time in the wall post of several cycles
+    private static final String CAPTURE_TIME_FORMAT = "dd.MM.yyyy HH:mm";
 
-    // Keeps reference to the listener to PhotoUploader
-    private PhotoUploadedListener mPhotoUploadedListener;
+    // Name of wall.post parameter, that prevents publishing the same post twice
+    private static final String VK_PARAM_GUID = "guid";
 
-    // Keeps list of uploaded photos IDs ready to be attached to the wall post
-    private List<VKApiPhoto> mVKApiPhotos;
+    // Photo upload methods and parameters
+    private static final String VK_METHOD_GET_WALL_UPLOAD_SERVER = "photos.getWallUploadServer";
+    private static final String VK_METHOD_SAVE_WALL_PHOTO = "photos.saveWallPhoto";
+    private static final String VK_PARAM_SERVER = "server";
+    private static final String VK_PARAM_PHOTO = "photo";
+    private static final String VK_PARAM_HASH = "hash";
 
-    // Receives results of photo upload to VK server
-    private VKRequest.VKRequestListener mVKUploadPhotoListener = new VKRequest.VKRequestListener() {
-        @Override
-        public void onComplete(VKResponse response) {
-            // Photo is uploaded to the server.
-            // Ready to make wall post with it.
+    // Executes VK requests
+    private VKRequestGovernor mVKRequestGovernor;
 
-            // Get uploaded photo ID from server response
-            VKApiPhoto photoModel = ((VKPhotoArray) response.parsedModel).get(0);
+    // Keeps upload URL between photos and cycles
+    private UploadServerCache mUploadServerCache;
 
-            // Add uploaded photo ID to the list of attachments
-            mVKApiPhotos.add(photoModel);
+    // Records upload and post latencies
+    private MetricsRecorder mMetricsRecorder;
 
-            // Remove uploaded photo from the list of photos
-            mPhotos.remove(0);
-
-            // Check if there are more photos to upload
-            if (!mPhotos.isEmpty()) {
-                // Still have photos to upload
-                startUploadPhotoToServer();
-            } else {
-                // All photos uploaded
-                // Make wall post with attached photos
-                makePostToVKWall(new VKAttachments(mVKApiPhotos), createWallPostMessage(), getUserVKId());
-            }
-        }
+    // Keeps reference to the listener to PhotoUploader
+    private PhotoUploadedListener mPhotoUploadedListener;
 
-        @Override
-        public void onError(VKError error) {
-            // Error uploading photo to server.
-            reportError();
-        }
-    };
+    // Looper of the thread, that started current upload, and its scheduler
+    private Looper mLooper;
+    private Scheduler mScheduler;
 
     // User of PhotoUploader must implement this interface to receive callbacks
     public interface PhotoUploadedListener {
@@ -83,99 +93,239 @@ public class PhotoUploader {
         void onPhotoUploadError();
     }
 
+    public PhotoUploader(VKRequestGovernor vkRequestGovernor, StreamingUploader streamingUploader,
+                         UploadServerCache uploadServerCache, MetricsRecorder metricsRecorder) {
+        super(streamingUploader, new ElapsedRealtimeClock());
+        mVKRequestGovernor = vkRequestGovernor;
+        mUploadServerCache = uploadServerCache;
+        mMetricsRecorder = metricsRecorder;
+    }
+
+    // Stop uploading. Listener is not called after cancellation.
+    public void cancel() {
+        checkThread();
+        unregisterListener();
+        cancelUploads();
+    }
+
     // Upload photo to VK wall.
     // Call this method to make VK wall post with photo attached.
-    public void uploadPhoto(List<Bitmap> photos, Location location, PhotoUploadedListener listener) {
-        if (photos != null) {
-            // Photos provided
+    public void uploadPhoto(List<File> photos, Location location, PhotoUploadedListener listener) {
+        uploadPhoto(photos, createWallPostMessage(location), listener);
+    }
 
-            // Save photos, location and listener
-            mPhotos = photos;
-            mLocation = location;
-            mPhotoUploadedListener = listener;
+    // Upload photos of several spool entries to VK wall as one post
+    // (entries must have no more than MAX_ATTACHMENTS photos in total).
+    // Wall post message has location and time of every entry.
+    public void uploadPhotoBatch(List<CaptureSpool.SpoolEntry> entries, PhotoUploadedListener listener) {
+        if (entries.size() == 1) {
+            // Post single entry as usual
+            CaptureSpool.SpoolEntry entry = entries.get(0);
+            uploadPhoto(entry.getPhotoFiles(), entry.getLocation(), listener);
+            return;
+        }
 
-            // Start uploading
-            loadPhotoToVKWall();
-        } else {
-            // Photos not provided
-            reportError();
+        List<File> photos = new ArrayList<>();
+        for (CaptureSpool.SpoolEntry entry : entries) {
+            photos.addAll(entry.getPhotoFiles());
         }
+
+        uploadPhoto(photos, createBatchWallPostMessage(entries), listener);
+    }
+
+    // Start streaming post. Photos are added by addPhoto() and uploaded at once,
+    // wall post is made, when finishStreamingPost() is called and all uploads are finished.
+    public void beginStreamingPost() {
+        attachToCurrentThread();
+        unregisterListener();
+
+        beginStreamingUploads();
+    }
+
+    // Add photo to streaming post and start uploading it (if not too many uploads are in flight)
+    public void addPhoto(File photo) {
+        checkThread();
+        addStreamingPhoto(photo);
+    }
+
+    // No more photos will be added. Make wall post, when all uploads are finished.
+    public void finishStreamingPost(Location location, PhotoUploadedListener listener) {
+        checkThread();
+        mPhotoUploadedListener = listener;
+        finishStreamingUploads(createWallPostMessage(location));
     }
 
-    // Loading photo to VK wall is done in 2 steps:
-    // 1. Upload photos to the server
-    // 2. Make wall post with this uploaded photo
-    private void loadPhotoToVKWall() {
-        // Check if photos are available
-        if (!mPhotos.isEmpty()) {
-            // Photos are available. Start uploading to the server.
+    private void uploadPhoto(List<File> photos, String message, PhotoUploadedListener listener) {
+        attachToCurrentThread();
 
-            // Create new empty list of attachments
-            mVKApiPhotos = new ArrayList<>();
+        // Save listener
+        mPhotoUploadedListener = listener;
 
-            startUploadPhotoToServer();
+        if (photos != null) {
+            // Photos provided. Start uploading.
+            startUploads(photos, message);
         } else {
-            // Photos are not available.
+            // Photos not provided
             reportError();
         }
     }
 
-    private void startUploadPhotoToServer() {
-        // Create VK request
-        VKRequest request =
-                VKApi.uploadWallPhotoRequest(
-                        new VKUploadImage(mPhotos.get(0), VKImageParameters.jpgImage(0.9f)),
-                        getUserVKId(), 0);
+    @Override
+    protected Cancellable requestUploadUrl(final ApiCallback<String> callback) {
+        final int userId = getUserVKId();
+
+        VKRequestGovernor.RequestFactory requestFactory = new VKRequestGovernor.RequestFactory() {
+            @Override
+            public VKRequest createRequest() {
+                return new VKRequest(VK_METHOD_GET_WALL_UPLOAD_SERVER, VKParameters.from(VKApiConst.USER_ID, userId));
+            }
+        };
 
-        // Execute request and attach a listener for results
-        request.executeWithListener(mVKUploadPhotoListener);
+        return mVKRequestGovernor.execute(requestFactory, new VKRequest.VKRequestListener() {
+            @Override
+            public void onComplete(VKResponse response) {
+                JSONObject server = response.json.optJSONObject("response");
+                callback.onResult(server != null ? server.optString("upload_url") : "");
+            }
+
+            @Override
+            public void onError(VKError error) {
+                callback.onError(error.toString(), VKRequestGovernor.isTemporaryError(error));
+            }
+        });
     }
 
-    // Return VK user ID
-    private int getUserVKId() {
-        // Get current VK access token
-        final VKAccessToken vkAccessToken = VKAccessToken.currentToken();
+    @Override
+    protected Cancellable saveWallPhoto(int server, String photo, String hash, final ApiCallback<String> callback) {
+        final VKParameters parameters = new VKParameters();
+        parameters.put(VKApiConst.USER_ID, getUserVKId());
+        parameters.put(VK_PARAM_SERVER, server);
+        parameters.put(VK_PARAM_PHOTO, photo);
+        parameters.put(VK_PARAM_HASH, hash);
 
-        // Get user ID from access token
-        return vkAccessToken != null ? Integer.parseInt(vkAccessToken.userId) : 0;
+        // Create VK request for every attempt
+        VKRequestGovernor.RequestFactory requestFactory = new VKRequestGovernor.RequestFactory() {
+            @Override
+            public VKRequest createRequest() {
+                return new VKRequest(VK_METHOD_SAVE_WALL_PHOTO, parameters, VKPhotoArray.class);
+            }
+        };
+
+        return mVKRequestGovernor.execute(requestFactory, new VKRequest.VKRequestListener() {
+            @Override
+            public void onComplete(VKResponse response) {
+                // Photo is saved. Get its ID from response.
+                VKPhotoArray photos = (VKPhotoArray) response.parsedModel;
+
+                callback.onResult(photos != null && !photos.isEmpty()
+                        ? photos.get(0).toAttachmentString().toString()
+                        : null);
+            }
+
+            @Override
+            public void onError(VKError error) {
+                callback.onError(error.toString(), VKRequestGovernor.isTemporaryError(error));
+            }
+        });
     }
 
     // Make post to the user's VK wall with provided attachments and message
-    private void makePostToVKWall(VKAttachments att, String msg, final int ownerId) {
+    @Override
+    protected Cancellable post(String attachments, String message, String guid, final ApiCallback<Void> callback) {
         // Create parameters for the wall post request
-        VKParameters parameters = new VKParameters();
-        parameters.put(VKApiConst.OWNER_ID, String.valueOf(ownerId));
-        parameters.put(VKApiConst.ATTACHMENTS, att);
-        parameters.put(VKApiConst.MESSAGE, msg);
-
-        // Create wall post request
-        VKRequest post = VKApi.wall().post(parameters);
-        post.setModelClass(VKWallPostResult.class);
+        final VKParameters parameters = new VKParameters();
+        parameters.put(VKApiConst.OWNER_ID, String.valueOf(getUserVKId()));
+        parameters.put(VKApiConst.ATTACHMENTS, attachments);
+        parameters.put(VKApiConst.MESSAGE, message);
+        parameters.put(VK_PARAM_GUID, guid);
+
+        // Create wall post request for every attempt
+        VKRequestGovernor.RequestFactory requestFactory = new VKRequestGovernor.RequestFactory() {
+            @Override
+            public VKRequest createRequest() {
+                VKRequest post = VKApi.wall().post(parameters);
+                post.setModelClass(VKWallPostResult.class);
+                return post;
+            }
+        };
 
         // Execute wall post request and attach a listener for results
-        post.executeWithListener(new VKRequest.VKRequestListener() {
+        return mVKRequestGovernor.execute(requestFactory, new VKRequest.VKRequestListener() {
             @Override
             public void onComplete(VKResponse response) {
-                // Post was added
-                reportSuccess();
+                callback.onResult(null);
             }
+
             @Override
             public void onError(VKError error) {
-                // Error
-                reportError();
+                callback.onError(error.toString(), VKRequestGovernor.isTemporaryError(error));
             }
         });
     }
 
+    @Override
+    protected String getCachedUploadUrl() {
+        return mUploadServerCache.get(getUserVKId());
+    }
+
+    @Override
+    protected void cacheUploadUrl(String uploadUrl) {
+        mUploadServerCache.put(getUserVKId(), uploadUrl);
+    }
+
+    @Override
+    protected void invalidateUploadUrl() {
+        mUploadServerCache.invalidate();
+    }
+
+    @Override
+    protected Scheduler getCallbackScheduler() {
+        return mScheduler;
+    }
+
+    @Override
+    protected void onPhotoUploaded(long duration) {
+        mMetricsRecorder.record(MetricsRecorder.UPLOAD_PHOTO, duration);
+    }
+
+    @Override
+    protected void onUploadsFinished(int savedServerRequests) {
+        mMetricsRecorder.record(MetricsRecorder.UPLOAD_SERVER_SAVED, savedServerRequests);
+    }
+
+    @Override
+    protected void onPostMade(long duration) {
+        mMetricsRecorder.record(MetricsRecorder.UPLOAD_POST, duration);
+    }
+
+    @Override
+    protected void onPostSuccess() {
+        reportSuccess();
+    }
+
+    @Override
+    protected void onPostError() {
+        reportError();
+    }
+
+    // Return VK user ID
+    private int getUserVKId() {
+        // Get current VK access token
+        final VKAccessToken vkAccessToken = VKAccessToken.currentToken();
+
+        // Get user ID from access token
+        return vkAccessToken != null ? Integer.parseInt(vkAccessToken.userId) : 0;
+    }
+
     // Return message for VK wall post
-    private String createWallPostMessage() {
+    private String createWallPostMessage(Location location) {
         String message;
 
         // If location info is available
-        if (mLocation != null) {
+        if (location != null) {
             // Convert latitude and longitude to string
-            String latitude = Double.toString(mLocation.getLatitude());
-            String longitude = Double.toString(mLocation.getLongitude());
+            String latitude = Double.toString(location.getLatitude());
+            String longitude = Double.toString(location.getLongitude());
             // Construct message
             message = "Current location: " + latitude + ", " + longitude + " " + VK_HASHTAG;
         } else {
@@ -186,19 +336,72 @@ public class PhotoUploader {
         return message;
     }
 
+    // Return message for VK wall post with photos of several entries
+    // (one line with capture time and location for every entry)
+    private String createBatchWallPostMessage(List<CaptureSpool.SpoolEntry> entries) {
+        SimpleDateFormat dateFormat = new SimpleDateFormat(CAPTURE_TIME_FORMAT, Locale.US);
+
+        StringBuilder message = new StringBuilder();
+
+        for (CaptureSpool.SpoolEntry entry : entries) {
+            message.append(dateFormat.format(new Date(entry.getCaptureTime()))).append(": ");
+
+            Location location = entry.getLocation();
+
+            if (location != null) {
+                message.append(location.getLatitude()).append(", ").append(location.getLongitude());
+            } else {
+                message.append("location not available");
+            }
+
+            message.append("\n");
+        }
+
+        message.append(VK_HASHTAG);
+
+        return message.toString();
+    }
+
     // Report success to the listener
     private void reportSuccess() {
         if (mPhotoUploadedListener != null) {
-            mPhotoUploadedListener.onPhotoUploadSuccess();
+            // Listener may start next upload with new listener
+            PhotoUploadedListener listener = mPhotoUploadedListener;
             unregisterListener();
+            listener.onPhotoUploadSuccess();
         }
     }
 
     // Report error to the listener
     private void reportError() {
         if (mPhotoUploadedListener != null) {
-            mPhotoUploadedListener.onPhotoUploadError();
+            // Listener may start next upload with new listener
+            PhotoUploadedListener listener = mPhotoUploadedListener;
             unregisterListener();
+            listener.onPhotoUploadError();
+        }
+    }
+
+    // Confine upload to the calling thread (callbacks of the upload are delivered to it)
+    private void attachToCurrentThread() {
+        if (Looper.myLooper() == null) {
+            throw new IllegalStateException("PhotoUploader must be used on a thread with a Looper");
+        }
+
+        checkThread();
+
+        if (mLooper != Looper.myLooper()) {
+            mLooper = Looper.myLooper();
+            mScheduler = HandlerScheduler.forCurrentThread();
+        }
+    }
+
+    // Check, that the method is called on the thread of current upload (if it is in progress)
+    private void checkThread() {
+        boolean inProgress = mPhotoUploadedListener != null || isStreamOpen();
+
+        if (inProgress && mLooper != Looper.myLooper()) {
+            throw new IllegalStateException("PhotoUploader must be used on the thread, that started upload");
         }
     }
 
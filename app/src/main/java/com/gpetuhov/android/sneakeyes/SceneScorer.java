@@ -0,0 +1,117 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.FaceDetector;
+
+import com.gpetuhov.android.sneakeyes.imagecore.SceneScore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Scores information content of the photo (0..SceneScore.MAX_SCORE),
+// so that frames with nothing to see (black, covered lens, blank ceiling) are not uploaded.
+// JPEG is decoded with power of 2 sample size into a small RGB_565 Bitmap,
+// which is rotated by camera sensor orientation (FaceDetector finds upright faces only).
+// If FaceDetector finds a face on it, the photo gets maximum score.
+// (Device is assumed to be in its natural orientation, its actual rotation is not known.)
+// Otherwise the score is edge energy and contrast of the image (SceneScore).
+public class SceneScorer {
+
+    // Minimum size of the smaller side of the decoded image (faces must stay recognizable)
+    private static final int MIN_DECODED_SIZE = 120;
+
+    // Maximum number of faces to look for (one is enough, more only cost time)
+    private static final int MAX_FACES = 1;
+
+    private SceneScorer() {
+        // Utility class
+    }
+
+    // Return score of JPEG data or null, if it can't be decoded.
+    // Rotation is clockwise rotation in degrees, that makes the photo upright.
+    public static Integer computeScore(byte[] jpegData, int rotation) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, options);
+
+        int smallerSide = Math.min(options.outWidth, options.outHeight);
+        if (smallerSide <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (smallerSide / (sampleSize * 2) >= MIN_DECODED_SIZE) {
+            sampleSize *= 2;
+        }
+
+        // FaceDetector works with RGB_565 only
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length, options);
+
+        if (bitmap == null) {
+            return null;
+        }
+
+        if (rotation % 360 != 0) {
+            // Bitmap is small, so rotation costs much less than face detection
+            Matrix matrix = new Matrix();
+            matrix.postRotate(rotation);
+
+            Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, false);
+            if (rotatedBitmap != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = rotatedBitmap;
+        }
+
+        // FaceDetector needs even width
+        if (bitmap.getWidth() % 2 != 0) {
+            Bitmap evenBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth() - 1, bitmap.getHeight());
+            if (evenBitmap != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = evenBitmap;
+        }
+
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+
+        int score;
+
+        if (hasFace(bitmap)) {
+            score = SceneScore.MAX_SCORE;
+        } else {
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            score = SceneScore.compute(pixels, width, height);
+        }
+
+        bitmap.recycle();
+
+        return score;
+    }
+
+    // Return photos with score not less than minimum score (photos without score are kept)
+    public static List<Photo> filter(List<Photo> photos, int minScore) {
+        List<Photo> informativePhotos = new ArrayList<>();
+
+        for (Photo photo : photos) {
+            if (photo.getScore() == null || photo.getScore() >= minScore) {
+                informativePhotos.add(photo);
+            }
+        }
+
+        return informativePhotos;
+    }
+
+    private static boolean hasFace(Bitmap bitmap) {
+        FaceDetector faceDetector = new FaceDetector(bitmap.getWidth(), bitmap.getHeight(), MAX_FACES);
+        FaceDetector.Face[] faces = new FaceDetector.Face[MAX_FACES];
+
+        return faceDetector.findFaces(bitmap, faces) > 0;
+    }
+}
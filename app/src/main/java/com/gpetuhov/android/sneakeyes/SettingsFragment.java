@@ -35,7 +35,7 @@ public class SettingsFragment extends PreferenceFragmentCompat
         // If this is the first run after install
         if (mUtilsPrefs.isFirstRun()) {
             // Initialize sneaking
-            SneakingService.setServiceAlarm(getActivity(), mUtilsPrefs);
+            SneakScheduler.schedule(getActivity(), mUtilsPrefs);
         }
 
         super.onCreate(savedInstanceState);
@@ -52,6 +52,25 @@ public class SettingsFragment extends PreferenceFragmentCompat
         // Get time interval preference key, find preference with this key
         // and bind this preference (time interval preference) summary to value
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_interval_key)));
+
+        // Bind camera backend preference summary to value
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_camera_backend_key)));
+
+        // Bind batch post preferences summary to value
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_batch_size_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_batch_window_key)));
+
+        // Bind same scene threshold preference summary to value
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_dedupe_distance_key)));
+
+        // Bind minimum scene score preference summary to value
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_scene_score_key)));
+
+        // Bind composite mode preference summary to value
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_composite_key)));
+
+        // Bind motion sensitivity preference summary to value
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_motion_sensitivity_key)));
     }
 
     // Attaches a listener so the summary is always updated with the preference value.
@@ -125,6 +144,12 @@ public class SettingsFragment extends PreferenceFragmentCompat
     // Method is called when SharedPreferences are changed
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-        SneakingService.setServiceAlarm(getActivity(), mUtilsPrefs);
+        SneakScheduler.schedule(getActivity(), mUtilsPrefs);
+
+        // Upload conditions are constraints of the drain job
+        if (key.equals(getString(R.string.pref_upload_unmetered_key))
+                || key.equals(getString(R.string.pref_upload_charging_key))) {
+            SneakScheduler.updateDrainConditions(getActivity(), mUtilsPrefs);
+        }
     }
 }
@@ -5,19 +5,28 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 
 import com.gpetuhov.android.sneakeyes.dagger.AppComponent;
 import com.gpetuhov.android.sneakeyes.dagger.AppModule;
 import com.gpetuhov.android.sneakeyes.dagger.DaggerAppComponent;
+import com.gpetuhov.android.sneakeyes.vk.UploadServerCache;
 import com.vk.sdk.VKAccessToken;
 import com.vk.sdk.VKAccessTokenTracker;
 import com.vk.sdk.VKSdk;
 
+import javax.inject.Inject;
+
+import dagger.Lazy;
+
 // SneakEyes application class.
 // Builds and keeps instance of AppComponent,
 // which is used to inject fields into application activities and fragments.
+// Process is often started by the alarm just to run one sneak cycle,
+// so onCreate() does only what every start needs (AppComponent, VK SDK and token tracking),
+// and application components are created on first use.
 public class SneakEyesApp extends Application {
 
     // ID of new user logged out notification. Older notifications are replaced by new with the same ID.
@@ -26,17 +35,55 @@ public class SneakEyesApp extends Application {
     // Keeps instance of AppComponent
     private static AppComponent mAppComponent;
 
+    // Time (elapsed realtime), when this class was loaded (first application code run in the process)
+    private static final long sProcessStartTime = SystemClock.elapsedRealtime();
+
+    // Time from process start to the end of onCreate() in milliseconds
+    private static long sCreateDuration;
+
+    // True until the first sneak cycle of the process is started
+    private static boolean sFirstCycle = true;
+
     public static AppComponent getAppComponent() {
         return mAppComponent;
     }
 
+    // Return time (elapsed realtime), when the process was started
+    public static long getProcessStartTime() {
+        return sProcessStartTime;
+    }
+
+    // Return time from process start to the end of application onCreate() in milliseconds
+    public static long getCreateDuration() {
+        return sCreateDuration;
+    }
+
+    // Return true only once per process, for the first sneak cycle
+    public static synchronized boolean takeFirstCycle() {
+        boolean firstCycle = sFirstCycle;
+        sFirstCycle = false;
+        return firstCycle;
+    }
+
+    // Keeps instance of BitmapPool. Injected by Dagger.
+    @Inject BitmapPool mBitmapPool;
+
+    // Keeps instance of UploadServerCache. Injected by Dagger, created on first use.
+    @Inject Lazy<UploadServerCache> mUploadServerCache;
+
     // Needed to detect if VK access token has expired
     VKAccessTokenTracker mVKAccessTokenTracker = new VKAccessTokenTracker() {
         @Override
         public void onVKAccessTokenChanged(VKAccessToken oldToken, VKAccessToken newToken) {
+            // Upload URL is issued for the token, that has been used to request it
+            mUploadServerCache.get().invalidate();
+
             if (newToken == null) {
                 // VKAccessToken is invalid
 
+                // Nothing can be posted, so stop watching for motion
+                stopService(new Intent(SneakEyesApp.this, MotionWatchService.class));
+
                 // If SettingsActivity is running in foreground
                 if (SettingsActivity.isResumed()) {
                     // Start VK log in procedure
@@ -87,11 +134,25 @@ public class SneakEyesApp extends Application {
                 .appModule(new AppModule(this))
                 .build();
 
+        // Inject BitmapPool instance into this application field
+        mAppComponent.inject(this);
+
         // Start tracking VK access token
         mVKAccessTokenTracker.startTracking();
 
         // Initialize VKontakte SDK
         VKSdk.initialize(this);
+
+        sCreateDuration = SystemClock.elapsedRealtime() - sProcessStartTime;
+    }
+
+    // Method is called, when system asks application to release memory
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Release pooled Bitmaps
+        mBitmapPool.trimMemory(level);
     }
 }
 
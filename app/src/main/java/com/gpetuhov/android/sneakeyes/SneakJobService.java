@@ -0,0 +1,140 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import com.gpetuhov.android.sneakeyes.utils.UtilsPrefs;
+import com.vk.sdk.VKSdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+
+// Job service starts SneakingService, when capture or drain job is run by JobScheduler (API 21+).
+// Job is kept running (so the system keeps the device awake), until SneakingService finishes the cycle.
+// If capture job runs during drain cycle, SneakingService runs the capture right after the drain,
+// and both jobs are finished, when the cycles are over.
+// Capture job is scheduled for the next interval, when it is finished
+// (not from inside its run, because JobScheduler stops the running job with the same ID).
+// Wakeups, that can't do anything (user is not logged in to VK), are counted as wasted.
+
+// Sequence of execution: 1. onStartJob(), 2. SneakingService cycle, 3. onCycleFinished(), 4. jobFinished(),
+// 5. SneakScheduler.schedule() (capture job)
+
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class SneakJobService extends JobService {
+
+    private static final String TAG = "SneakJobService";
+
+    // Keeps instance of UtilsPrefs. Injected by Dagger.
+    @Inject UtilsPrefs mUtilsPrefs;
+
+    // Parameters of the jobs, that wait for SneakingService
+    private List<JobParameters> mRunningJobs = new ArrayList<>();
+
+    // Receives the end of SneakingService cycle
+    private BroadcastReceiver mCycleFinishedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onCycleFinished();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Inject UtilsPrefs instance into this service field
+        SneakEyesApp.getAppComponent().inject(this);
+    }
+
+    // Method is called on the application MAIN thread, when the job is run
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        boolean captureJob = params.getJobId() == SneakScheduler.CAPTURE_JOB_ID;
+
+        if (!VKSdk.isLoggedIn()) {
+            // Nothing can be posted
+            mUtilsPrefs.incrementWastedWakeupCount();
+            Log.d(TAG, "Wasted wakeup, user is not logged in");
+
+            if (captureJob) {
+                // This job does nothing, so it may be replaced by the next one at once
+                SneakScheduler.schedule(this, mUtilsPrefs);
+            }
+            return false;
+        }
+
+        if (!mRunningJobs.isEmpty() && !captureJob) {
+            // Previous job is still waiting for SneakingService, which drains the spool in every cycle
+            return false;
+        }
+
+        if (mRunningJobs.isEmpty()) {
+            LocalBroadcastManager.getInstance(this).registerReceiver(
+                    mCycleFinishedReceiver, new IntentFilter(SneakingService.ACTION_CYCLE_FINISHED));
+        }
+
+        // Capture requested during running cycle is started by SneakingService after that cycle,
+        // and the end of the cycle is broadcast only after the capture is finished too.
+        mRunningJobs.add(params);
+
+        startService(captureJob ? SneakingService.newIntent(this) : SneakingService.newDrainIntent(this));
+
+        // Job is finished in onCycleFinished()
+        return true;
+    }
+
+    // Method is called, if the system stops the job before it is finished
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        mRunningJobs.remove(params);
+
+        if (mRunningJobs.isEmpty()) {
+            unregisterReceiver();
+        }
+
+        // Stopped capture job is retried by JobScheduler (its run schedules the next interval),
+        // drain job is scheduled again by SneakingService, if needed
+        return params.getJobId() == SneakScheduler.CAPTURE_JOB_ID;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        unregisterReceiver();
+    }
+
+    // Called synchronously by SneakingService, before it schedules the drain job
+    private void onCycleFinished() {
+        unregisterReceiver();
+
+        List<JobParameters> finishedJobs = new ArrayList<>(mRunningJobs);
+        mRunningJobs.clear();
+
+        boolean captureJobFinished = false;
+
+        for (JobParameters params : finishedJobs) {
+            jobFinished(params, false);
+            captureJobFinished |= params.getJobId() == SneakScheduler.CAPTURE_JOB_ID;
+        }
+
+        if (captureJobFinished) {
+            // Capture job runs once, so schedule the next one
+            SneakScheduler.schedule(this, mUtilsPrefs);
+        }
+    }
+
+    private void unregisterReceiver() {
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(mCycleFinishedReceiver);
+    }
+}
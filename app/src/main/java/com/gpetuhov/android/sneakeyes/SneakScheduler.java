@@ -0,0 +1,133 @@
+package com.gpetuhov.android.sneakeyes;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+
+import com.gpetuhov.android.sneakeyes.utils.UtilsPrefs;
+
+// Schedules sneak cycles and spool draining.
+// On API 21+ JobScheduler is used (SneakJobService):
+// - capture job runs once per sneak interval within a window of +/- 1/4 of the interval,
+//   so that the system can batch our wakeup with other work
+//   (window end is the deadline, after which the job runs anyway),
+// - drain job runs only while the spool is not empty and network (WiFi, if required) is available
+//   (and the device is charging, if required).
+// On older devices AlarmManager starts SneakingService, and ConnectivityReceiver starts draining.
+// If the batch is not ready, drain is delayed until batch window expires
+// (drain job gets minimum latency, or one-shot alarm is set on older devices).
+// Jobs are never scheduled from inside their own run (JobScheduler would stop the running job):
+// capture job is scheduled for the next interval after it is finished,
+// and SneakingService schedules the drain job after the cycle is finished.
+// If motion trigger is enabled, MotionWatchService is started too.
+public class SneakScheduler {
+
+    // Job IDs
+    public static final int CAPTURE_JOB_ID = 1;
+    public static final int DRAIN_JOB_ID = 2;
+
+    // One minute in milliseconds
+    private static final long MINUTE = 60 * 1000;
+
+    // Schedule or cancel sneak cycles depending on settings in SharedPreferences
+    public static void schedule(Context context, UtilsPrefs utilsPrefs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Alarm may be left by previous version of the app
+            SneakingService.cancelServiceAlarm(context);
+
+            scheduleCaptureJob(context, utilsPrefs);
+        } else {
+            SneakingService.setServiceAlarm(context, utilsPrefs);
+        }
+
+        // Motion watching runs alongside time-driven cycles
+        MotionWatchService.update(context, utilsPrefs);
+    }
+
+    // Start or stop waiting for network to post queued photos
+    public static void setDrainPending(Context context, UtilsPrefs utilsPrefs, boolean drainPending) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if (drainPending) {
+                scheduleDrainJob(context, utilsPrefs, 0);
+            } else {
+                getJobScheduler(context).cancel(DRAIN_JOB_ID);
+            }
+        } else {
+            ConnectivityReceiver.setEnabled(context, drainPending);
+        }
+    }
+
+    // Stop waiting for network and start draining after delay (in milliseconds),
+    // so that connectivity changes don't start drains, while the batch is filling.
+    public static void setDrainDelayed(Context context, UtilsPrefs utilsPrefs, long delay) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // Network conditions still apply after the delay
+            scheduleDrainJob(context, utilsPrefs, delay);
+        } else {
+            ConnectivityReceiver.setEnabled(context, false);
+            SneakingService.setDrainAlarm(context, delay);
+        }
+    }
+
+    // Apply new upload conditions to the drain job, if it is waiting
+    public static void updateDrainConditions(Context context, UtilsPrefs utilsPrefs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            for (JobInfo jobInfo : getJobScheduler(context).getAllPendingJobs()) {
+                if (jobInfo.getId() == DRAIN_JOB_ID) {
+                    // Delay is dropped, drain checks the batch window again, when it runs
+                    scheduleDrainJob(context, utilsPrefs, 0);
+                    break;
+                }
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleCaptureJob(Context context, UtilsPrefs utilsPrefs) {
+        JobScheduler jobScheduler = getJobScheduler(context);
+
+        if (!utilsPrefs.isSneakingEnabled()) {
+            jobScheduler.cancel(CAPTURE_JOB_ID);
+            return;
+        }
+
+        long interval = utilsPrefs.getSneakInterval() * MINUTE;
+        long flex = interval / 4;
+
+        // Photos are kept in the spool, if there is no network, so capture has no network constraint
+        JobInfo jobInfo = new JobInfo.Builder(CAPTURE_JOB_ID, new ComponentName(context, SneakJobService.class))
+                .setMinimumLatency(interval - flex)
+                .setOverrideDeadline(interval + flex)
+                .setPersisted(true)
+                .build();
+
+        // Job with the same ID is replaced
+        jobScheduler.schedule(jobInfo);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void scheduleDrainJob(Context context, UtilsPrefs utilsPrefs, long delay) {
+        int networkType = utilsPrefs.isUnmeteredUploadOnly()
+                ? JobInfo.NETWORK_TYPE_UNMETERED
+                : JobInfo.NETWORK_TYPE_ANY;
+
+        JobInfo.Builder builder = new JobInfo.Builder(DRAIN_JOB_ID, new ComponentName(context, SneakJobService.class))
+                .setRequiredNetworkType(networkType)
+                .setRequiresCharging(utilsPrefs.isChargingUploadOnly())
+                .setPersisted(true);
+
+        if (delay > 0) {
+            builder.setMinimumLatency(delay);
+        }
+
+        getJobScheduler(context).schedule(builder.build());
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static JobScheduler getJobScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+}
@@ -6,82 +6,247 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.SystemClock;
 import android.support.annotation.Nullable;
+import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import com.gpetuhov.android.sneakeyes.metrics.MetricsRecorder;
+import com.gpetuhov.android.sneakeyes.pipeline.ParallelStage;
+import com.gpetuhov.android.sneakeyes.pipeline.Pipeline;
+import com.gpetuhov.android.sneakeyes.pipeline.Stage;
+import com.gpetuhov.android.sneakeyes.utils.UtilsBattery;
 import com.gpetuhov.android.sneakeyes.utils.UtilsNet;
 import com.gpetuhov.android.sneakeyes.utils.UtilsPrefs;
+import com.gpetuhov.android.sneakeyes.vk.VKRequestGovernor;
 import com.vk.sdk.VKSdk;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import javax.inject.Inject;
 
+import dagger.Lazy;
+
 // Service takes pictures, gets location info and posts them to VK.
-// Implements PhotoTaker.PhotoResultListener to receive callbacks from PhotoTaker.
-// Service runs on the application MAIN thread!
+// Resolution and quality of the photos are chosen by AdaptiveEncoder,
+// so that upload of one cycle fits upload time target on the current network.
+// Taken photos and location are always put into CaptureSpool first,
+// and the spool is drained (posted to VK), when network is available.
+// So the cycles without network are not lost.
+// Every step of the sneak cycle is a Stage of the Pipeline with its own deadline,
+// and the whole cycle is limited by CYCLE_BUDGET.
+// Pipeline runs on the separate thread, so the application MAIN thread is not blocked.
 
 // Sequence of execution:
 // 1. onStartCommand()
-// 2. PhotoTaker.takePhoto()
-// 3. onPhotoTaken() or onPhotoError()
-// 4. LocationFetcher.fetchLocation()
-// 5. onLocationFetchSuccess() or onLocationFetchError() or TimerTask.run()
-// 6. PhotoUploader.uploadPhoto()
-// 7. onPhotoUploadSuccess() or onPhotoUploadError()
+// 2. CaptureStage (PhotoTaker.takePhoto())
+// 3. LocateStage (LocationFetcher.fetchLocation())
+//    (if parallel location is enabled, steps 2 and 3 run at the same time)
+//    (if low information photos are skipped, photos with score below threshold are dropped here)
+//    (if unchanged scenes are skipped, photos similar to the last posted ones are dropped here)
+//    (if composite mode is on, back and front photos are combined into one here)
+//    (in streaming mode every photo is filtered and its upload is started, as soon as it is taken)
+// 4. StreamPostStage (PhotoUploader.finishStreamingPost(), in streaming mode only)
+// 5. SpoolStage (CaptureSpool.enqueue())
+// 6. DrainStage (PhotoUploader.uploadPhotoBatch() for every spool entry
+//    or for several entries at once, if batch posting is enabled)
+// 7. onPipelineComplete() or onPipelineError()
 // 8. stopSelf()
 
-public class SneakingService extends Service implements
-        PhotoTaker.PhotoResultListener,
-        LocationFetcher.LocationFetchedListener,
-        PhotoUploader.PhotoUploadedListener {
+// If the service is started with ACTION_DRAIN, steps 2-5 are skipped.
+// If the service is started for capture, while the cycle is running, capture cycle is run after it.
+// Service is started by SneakScheduler (JobScheduler on API 21+, AlarmManager on older devices).
+// Before photos are taken, ACTION_CAPTURE_STARTING local broadcast is sent synchronously,
+// so that MotionWatchService releases the camera.
+// When the cycle is finished (or cut short by onDestroy()), ACTION_CYCLE_FINISHED local broadcast is sent synchronously.
+// Drain job is scheduled or cancelled only after that broadcast (stages only record the request),
+// because SneakJobService must finish the running job first: JobScheduler stops the job,
+// if the job with the same ID is scheduled from inside its run.
+
+// In batch posting mode entries stay in the spool, until they have enough photos for one post
+// or the oldest of them has waited for batch window.
+
+// In streaming mode (overlapped upload enabled, network is available and upload is allowed,
+// batch posting and composite mode are off) every photo is filtered and uploaded as soon as it is taken,
+// while the next camera is still capturing, and the wall post is made, when location is fetched.
+// If streaming post fails, photos are put into the spool as usual.
+
+// Every cycle is recorded by MetricsRecorder (stage latencies, bytes uploaded, peak heap, wake duration).
+
+// Components, that are expensive to create (camera, location, upload, spool),
+// are injected as Lazy and created, when the cycle reaches them.
+// So the cycle, that stops early (user is not logged in, no network to drain), doesn't create most of them.
+// If the process has been started for the cycle, time from process start to the first capture
+// is recorded (cold start).
+
+public class SneakingService extends Service implements Pipeline.PipelineListener, Pipeline.StageListener {
+
+    private static final String TAG = "SneakingService";
+
+    // Action of the intent, that starts draining capture spool without taking photos
+    private static final String ACTION_DRAIN = "com.gpetuhov.android.sneakeyes.action.DRAIN";
+
+    // Action of the local broadcast, that is sent, when the cycle is finished
+    public static final String ACTION_CYCLE_FINISHED = "com.gpetuhov.android.sneakeyes.action.CYCLE_FINISHED";
+
+    // Action of the local broadcast, that is sent, before photos are taken
+    public static final String ACTION_CAPTURE_STARTING = "com.gpetuhov.android.sneakeyes.action.CAPTURE_STARTING";
+
+    // Drain scheduling, requested by the cycle
+    private static final int DRAIN_UNCHANGED = 0;
+    private static final int DRAIN_PENDING = 1;
+    private static final int DRAIN_DELAYED = 2;
+    private static final int DRAIN_DONE = 3;
 
     // One minute in milliseconds
     private static final int SNEAK_INTERVAL_MINUTE = 60 * 1000;
 
-    // Location request wait interval in milliseconds
-    private static final long LOCATION_REQUEST_WAIT_INTERVAL = 5000;
+    // Name of the cache subdirectory with photos of streaming post
+    private static final String STREAM_DIR_NAME = "stream";
 
-    // Keeps instance of PhotoTaker. Injected by Dagger.
-    @Inject PhotoTaker mPhotoTaker;
+    // Stage deadlines in milliseconds
+    private static final long CAPTURE_DEADLINE = 20000;
+    private static final long LOCATE_DEADLINE = 5000;
+    private static final long SPOOL_DEADLINE = 5000;
+    private static final long DRAIN_DEADLINE = 90000;
 
-    // Keeps instance of LocationFetcher. Injected by Dagger.
-    @Inject LocationFetcher mLocationFetcher;
+    // Cycle is started by cold start, if it is started no later than this after process start (milliseconds)
+    private static final long COLD_START_WINDOW = 5000;
 
-    // Keeps instance of PhotoUploader. Injected by Dagger.
-    @Inject PhotoUploader mPhotoUploader;
+    // End-to-end budget of the sneak cycle in milliseconds
+    private static final long CYCLE_BUDGET = 120000;
 
-    // Keeps taken photos
-    private List<Bitmap> mPhotos;
+    // Keeps instance of PhotoTaker. Injected by Dagger, created on first use.
+    @Inject Lazy<PhotoTaker> mPhotoTaker;
 
-    // Task will be run, if no location received during LOCATION_REQUEST_WAIT_INTERVAL
-    private TimerTask mLocationRequestTimeoutTask = new TimerTask() {
-        @Override
-        public void run() {
-            // Received no location info.
+    // Keeps instance of LocationFetcher. Injected by Dagger, created on first use.
+    @Inject Lazy<LocationFetcher> mLocationFetcher;
 
-            // Stop LocationFetcher
-            mLocationFetcher.stopFetchingLocation();
+    // Keeps instance of PhotoUploader. Injected by Dagger, created on first use.
+    @Inject Lazy<PhotoUploader> mPhotoUploader;
 
-            // Start uploading photo to VK wall without location info.
-            mPhotoUploader.uploadPhoto(mPhotos, null, SneakingService.this);
-        }
-    };
+    // Keeps instance of CaptureSpool. Injected by Dagger, created on first use.
+    @Inject Lazy<CaptureSpool> mCaptureSpool;
+
+    // Keeps instance of BitmapPool. Injected by Dagger
+    // (not lazy: constructor only stores the size limit, and pool statistics are logged every cycle).
+    @Inject BitmapPool mBitmapPool;
+
+    // Keeps instance of AdaptiveEncoder. Injected by Dagger, created on first use.
+    @Inject Lazy<AdaptiveEncoder> mAdaptiveEncoder;
+
+    // Keeps instance of VKRequestGovernor. Injected by Dagger
+    // (not lazy: it has no thread or I/O of its own, and request statistics are logged every cycle).
+    @Inject VKRequestGovernor mVKRequestGovernor;
+
+    // Keeps instance of UtilsPrefs. Injected by Dagger
+    // (not lazy: settings are read in onStartCommand() of every cycle).
+    @Inject UtilsPrefs mUtilsPrefs;
+
+    // Keeps instance of MetricsRecorder. Injected by Dagger
+    // (not lazy: constructor doesn't read the metrics file, and every cycle is recorded).
+    @Inject MetricsRecorder mMetricsRecorder;
+
+    // Keeps instance of DuplicatePhotoFilter. Injected by Dagger, created on first use.
+    @Inject Lazy<DuplicatePhotoFilter> mDuplicatePhotoFilter;
+
+    // Keeps instance of PhotoCompositor. Injected by Dagger, created on first use.
+    @Inject Lazy<PhotoCompositor> mPhotoCompositor;
+
+    // Thread, where the pipeline runs, and its handler
+    private HandlerThread mPipelineThread;
+    private Handler mPipelineHandler;
+
+    // Handler of the application MAIN thread
+    private Handler mMainHandler;
+
+    // Pipeline of the current cycle
+    private Pipeline mPipeline;
+
+    // Keeps taken photos (JPEG data)
+    private List<Photo> mPhotos;
+
+    // Keeps fetched location (null if not available)
+    private Location mLocation;
+
+    // Peak used heap during current cycle in bytes
+    private long mPeakHeapBytes;
+
+    // Time, when current cycle started
+    private long mCycleStartTime;
+
+    // True while photos are being taken or spool is being drained
+    private volatile boolean mRunning;
+
+    // True if capture has been requested, while the cycle was running (guarded by this)
+    private boolean mCapturePending;
+
+    // True if drain has been requested, while the cycle was running (guarded by this)
+    private boolean mDrainRequested;
+
+    // Drain scheduling (DRAIN_*), that is applied, when the cycle is finished
+    private int mDrainRequest = DRAIN_UNCHANGED;
+
+    // True if current cycle only drains the spool
+    private boolean mDrainOnly;
+
+    // True if the process has been started for current cycle
+    private boolean mColdStart;
+
+    // True if photos of current cycle are uploaded while being taken
+    private boolean mStreaming;
+
+    // Photos of current cycle, that passed filters and are uploaded in streaming mode
+    private List<Photo> mStreamedPhotos;
+
+    // Files of streamed photos (uploaded from disk)
+    private List<File> mStreamFiles;
+
+    // True if photos of current cycle can't be streamed (they go to the spool)
+    private boolean mStreamBroken;
 
-    // Timer will make TimerTask run
-    private Timer mTimer;
+    // True if photos of current cycle are posted by streaming post
+    private boolean mStreamPosted;
+
+    // Numbers of photos dropped by filters in current cycle
+    private int mLowInfoCount;
+    private int mDuplicateCount;
+
+    // Drain statistics (number of posted entries and wall posts, their size and drain start time)
+    private int mDrainedEntries;
+    private int mDrainedPosts;
+    private long mDrainedBytes;
+    private long mDrainStartTime;
+
+    // True if current cycle has used CaptureSpool (so it has been created)
+    private boolean mSpoolUsed;
+
+    // True if spooled entries wait for the batch to fill (drain is scheduled at batch window expiry)
+    private boolean mBatchWaiting;
+
+    // Time left until the oldest spooled entry has waited for batch window (in milliseconds)
+    private long mBatchDelay;
 
     // Create new intent to start this service
     public static Intent newIntent(Context context) {
         return new Intent(context, SneakingService.class);
     }
 
+    // Create new intent to start this service for posting queued photos only
+    public static Intent newDrainIntent(Context context) {
+        Intent intent = newIntent(context);
+        intent.setAction(ACTION_DRAIN);
+        return intent;
+    }
+
     // Set AlarmManager to start or stop this service depending on settings in SharedPreferences
     public static void setServiceAlarm(Context context, UtilsPrefs utilsPrefs) {
         // Create new intent to start this service
@@ -116,13 +281,33 @@ public class SneakingService extends Service implements
 
         } else {
             // Otherwise turn AlarmManager off
+            cancelServiceAlarm(context);
+        }
+    }
 
-            // Cancel AlarmManager
-            alarmManager.cancel(pi);
+    // Set AlarmManager to start draining the spool once after delay (in milliseconds).
+    // Used to post the batch, when its window expires (on devices without JobScheduler).
+    public static void setDrainAlarm(Context context, long delay) {
+        // Drain intent has its own action, so this pending intent doesn't replace the sneak alarm
+        PendingIntent pi = PendingIntent.getService(context, 0, newDrainIntent(context), 0);
 
-            // Cancel pending intent
-            pi.cancel();
-        }
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + delay, pi);
+    }
+
+    // Turn AlarmManager off
+    public static void cancelServiceAlarm(Context context) {
+        // Get pending intent, that starts this service
+        PendingIntent pi = PendingIntent.getService(context, 0, SneakingService.newIntent(context), 0);
+
+        // Get reference to AlarmManager
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+
+        // Cancel AlarmManager
+        alarmManager.cancel(pi);
+
+        // Cancel pending intent
+        pi.cancel();
     }
 
     @Override
@@ -131,6 +316,13 @@ public class SneakingService extends Service implements
 
         // Inject PhotoTaker instance into this service field
         SneakEyesApp.getAppComponent().inject(this);
+
+        // Start pipeline thread.
+        // Camera callbacks are delivered to this thread too, because cameras are opened on it.
+        mPipelineThread = new HandlerThread(TAG);
+        mPipelineThread.start();
+        mPipelineHandler = new Handler(mPipelineThread.getLooper());
+        mMainHandler = new Handler();
     }
 
     // Method is called, when Service is started by incoming intent
@@ -139,28 +331,122 @@ public class SneakingService extends Service implements
 
         // IMPORTANT: This runs on the application MAIN thread!
 
-        // Check network status
-        if (UtilsNet.isNetworkAvailableAndConnected(this)) {
-            // Network available
+        boolean drainOnly = intent != null && ACTION_DRAIN.equals(intent.getAction());
 
-            // If the user is logged in to VK
-            if (VKSdk.isLoggedIn()) {
-                // Take photo from the camera
-                mPhotoTaker.takePhoto(this);
-            } else {
-                // Otherwise (user is not logged in), do nothing and stop service
-                stopSneakingService();
+        synchronized (this) {
+            if (mRunning) {
+                // Previous start is still in progress.
+                // Capture start is run, when current cycle is finished (it may be drain only).
+                // Drain start may come with new entry, that current drain has missed,
+                // so drain is kept pending after the cycle.
+                if (!drainOnly) {
+                    Log.d(TAG, "Capture requested during running cycle, postponed");
+                    mCapturePending = true;
+                } else {
+                    mDrainRequested = true;
+                }
+                return START_NOT_STICKY;
             }
-        } else {
-            // Network not available
-            // Do nothing and stop service
-            stopSneakingService();
+
+            mRunning = true;
         }
 
+        startCycle(drainOnly);
+
         // Don't restart service if killed
         return START_NOT_STICKY;
     }
 
+    // Start sneak cycle. Called on the application MAIN thread.
+    private void startCycle(boolean drainOnly) {
+        // If the user is logged in to VK
+        if (VKSdk.isLoggedIn()) {
+            mDrainOnly = drainOnly;
+            mStreaming = !mDrainOnly && isStreamingAllowed();
+
+            mCycleStartTime = SystemClock.elapsedRealtime();
+            mMetricsRecorder.beginCycle(mDrainOnly ? MetricsRecorder.CYCLE_DRAIN
+                    : mStreaming ? MetricsRecorder.CYCLE_STREAM : MetricsRecorder.CYCLE_CAPTURE);
+
+            // Process may have been started earlier (by the user or by motion watching)
+            mColdStart = SneakEyesApp.takeFirstCycle()
+                    && mCycleStartTime - SneakEyesApp.getProcessStartTime() < COLD_START_WINDOW;
+
+            if (mColdStart) {
+                mMetricsRecorder.record(MetricsRecorder.STARTUP_APP, SneakEyesApp.getCreateDuration());
+            }
+
+            mPipeline = new Pipeline(mPipelineHandler, CYCLE_BUDGET).setStageListener(this);
+
+            if (!mDrainOnly) {
+                // Take photo from the camera (even if network is not available,
+                // photos will be kept in the spool until network is back).
+                if (mUtilsPrefs.isParallelLocationEnabled()) {
+                    // Camera and location don't depend on each other,
+                    // so fetch location while photos are being taken.
+                    mPipeline.addStage(new ParallelStage("capture+locate", mPipelineHandler,
+                            new CaptureStage(), new LocateStage()));
+                } else {
+                    mPipeline
+                            .addStage(new CaptureStage())
+                            .addStage(new LocateStage());
+                }
+
+                if (mStreaming) {
+                    // Post photos, that have been uploaded while being taken
+                    mPipeline.addStage(new StreamPostStage());
+                }
+
+                mPipeline.addStage(new SpoolStage());
+            }
+
+            // Post queued photos
+            mPipeline.addStage(new DrainStage());
+
+            mPipeline.start(this);
+        } else {
+            // Otherwise (user is not logged in), do nothing and stop service
+            mUtilsPrefs.incrementWastedWakeupCount();
+
+            synchronized (this) {
+                mCapturePending = false;
+                mDrainRequested = false;
+                mRunning = false;
+            }
+
+            notifyCycleFinished();
+            stopSelf();
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        // Postponed capture is not run anymore
+        mMainHandler.removeCallbacksAndMessages(null);
+
+        // Cycle is cut short (finishCycle() is not run anymore),
+        // so SneakJobService and MotionWatchService must be notified here
+        if (mRunning) {
+            mRunning = false;
+            notifyCycleFinished();
+        }
+
+        // Stop current cycle (if any) and the pipeline thread
+        if (mPipeline != null) {
+            mPipeline.cancel();
+        }
+
+        // Quit after cancellation is processed
+        mPipelineHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mPipelineThread.quit();
+            }
+        });
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -168,91 +454,722 @@ public class SneakingService extends Service implements
         return null;
     }
 
-    // Cancel timer
-    private void cancelTimer() {
-        if (mTimer != null) {
-            mTimer.cancel();
+    // --- PIPELINE STAGES ----------
+
+    // Takes photos from the cameras
+    private class CaptureStage extends Stage
+            implements PhotoTaker.PhotoResultListener, PhotoTaker.PhotoStreamListener {
+
+        private StageCallback mCallback;
+
+        CaptureStage() {
+            super("capture", CAPTURE_DEADLINE, true);
+        }
+
+        @Override
+        public void start(StageCallback callback) {
+            mCallback = callback;
+            EncodingProfile profile = mAdaptiveEncoder.get().chooseProfile();
+            mPhotoTaker.get().setEncodingProfile(profile);
+            mMetricsRecorder.record(MetricsRecorder.PHOTO_PROFILE, AdaptiveEncoder.indexOf(profile));
+            mPhotoTaker.get().setCameraBackend(mUtilsPrefs.getCameraBackend());
+            mPhotoTaker.get().setPreviewFrameMode(mUtilsPrefs.isPreviewFrameModeEnabled());
+            mPhotoTaker.get().setHashEnabled(mUtilsPrefs.isDuplicateSkipEnabled());
+            mPhotoTaker.get().setScoringEnabled(mUtilsPrefs.isLowInfoSkipEnabled());
+
+            if (mStreaming) {
+                // Upload every photo as soon as it is taken
+                mStreamedPhotos = new ArrayList<>();
+                mStreamFiles = new ArrayList<>();
+                mPhotoUploader.get().beginStreamingPost();
+                mPhotoTaker.get().setPhotoStreamListener(this);
+            } else {
+                mPhotoTaker.get().setPhotoStreamListener(null);
+            }
+
+            // Camera may be in use by MotionWatchService (receiver returns, when it is released)
+            LocalBroadcastManager.getInstance(SneakingService.this)
+                    .sendBroadcastSync(new Intent(ACTION_CAPTURE_STARTING));
+
+            if (mColdStart) {
+                mMetricsRecorder.record(MetricsRecorder.STARTUP_CAPTURE,
+                        SystemClock.elapsedRealtime() - SneakEyesApp.getProcessStartTime());
+            }
+
+            mPhotoTaker.get().takePhoto(this);
+        }
+
+        @Override
+        public void cancel() {
+            mPhotoTaker.get().cancel();
+        }
+
+        // Method is called by PhotoTaker in streaming mode, when one photo is taken
+        // (next camera may still be capturing).
+        @Override
+        public void onPhotoReady(Photo photo) {
+            List<Photo> photos = new ArrayList<>();
+            photos.add(photo);
+
+            for (Photo streamedPhoto : filterPhotos(photos)) {
+                mStreamedPhotos.add(streamedPhoto);
+
+                if (mStreamBroken) {
+                    continue;
+                }
+
+                File file = writeStreamFile(streamedPhoto);
+
+                if (file != null) {
+                    // Upload starts at once
+                    mStreamFiles.add(file);
+                    mPhotoUploader.get().addPhoto(file);
+                } else {
+                    // Photos of this cycle will be posted from the spool
+                    mStreamBroken = true;
+                    mPhotoUploader.get().cancel();
+                }
+            }
+        }
+
+        // Method is called by PhotoTaker, when photos are taken.
+        @Override
+        public void onPhotoTaken(List<Photo> photos) {
+            samplePeakHeap();
+
+            // Record profile and size of this cycle
+            mAdaptiveEncoder.get().onPhotosEncoded(mPhotoTaker.get().getEncodingProfile(), photos);
+
+            // Save taken photos, that passed filters
+            // (in streaming mode they have been filtered, when they were taken)
+            mPhotos = mStreaming ? mStreamedPhotos : filterPhotos(photos);
+
+            if (mUtilsPrefs.isLowInfoSkipEnabled()) {
+                mMetricsRecorder.record(MetricsRecorder.PHOTO_LOW_INFO, mLowInfoCount);
+            }
+
+            if (mUtilsPrefs.isDuplicateSkipEnabled()) {
+                mMetricsRecorder.record(MetricsRecorder.PHOTO_DUPLICATES, mDuplicateCount);
+            }
+
+            String compositeMode = mUtilsPrefs.getCompositeMode();
+            if (!mStreaming && !PhotoCompositor.MODE_OFF.equals(compositeMode)) {
+                // Post back and front photos as one photo (one upload instead of two)
+                long composeStartTime = SystemClock.elapsedRealtime();
+                Photo composite = mPhotoCompositor.get().compose(mPhotos, compositeMode,
+                        mPhotoTaker.get().getEncodingProfile().getJpegQuality());
+
+                if (composite != null) {
+                    mMetricsRecorder.record(MetricsRecorder.PHOTO_COMPOSITE, SystemClock.elapsedRealtime() - composeStartTime);
+                    mPhotos = new ArrayList<>();
+                    mPhotos.add(composite);
+                }
+            }
+
+            if (mPhotos != photos) {
+                // Dropped photos are referenced by the original list only
+                photos.clear();
+            }
+
+            mCallback.onStageComplete();
+        }
+
+        // Method is called by PhotoTaker, when error while taking photo occurs
+        @Override
+        public void onPhotoError() {
+            mCallback.onStageError();
         }
     }
 
-    // --- PHOTOTAKER CALLBACKS ----------
+    // Fetches location. Photos are posted without location, if this stage fails.
+    private class LocateStage extends Stage implements LocationFetcher.LocationFetchedListener {
 
-    // Method is called by PhotoTaker, when photos are taken.
-    @Override
-    public void onPhotoTaken(List<Bitmap> photos) {
-        // Save taken photo
-        mPhotos = photos;
+        private StageCallback mCallback;
+
+        LocateStage() {
+            super("locate", LOCATE_DEADLINE, false);
+        }
+
+        @Override
+        public void start(StageCallback callback) {
+            mCallback = callback;
+            mLocationFetcher.get().fetchLocation(this);
+        }
+
+        @Override
+        public void cancel() {
+            mLocationFetcher.get().cancel();
+        }
 
-        // Fetch location
-        mLocationFetcher.fetchLocation(this);
+        // Method is called when LocationFetcher successfully fetches location
+        @Override
+        public void onLocationFetchSuccess(Location location) {
+            // Stop LocationFetcher
+            mLocationFetcher.get().stopFetchingLocation();
 
-        // Create new timer
-        mTimer = new Timer();
+            mLocation = location;
+            mCallback.onStageComplete();
+        }
 
-        // Schedule timer to run mLocationRequestTimeoutTask,
-        // if no location received for LOCATION_REQUEST_WAIT_INTERVAL.
-        mTimer.schedule(mLocationRequestTimeoutTask, LOCATION_REQUEST_WAIT_INTERVAL);
+        // Method is called when there is error in LocationFetcher fetching location
+        @Override
+        public void onLocationFetchError() {
+            // Stop LocationFetcher
+            mLocationFetcher.get().stopFetchingLocation();
+
+            mCallback.onStageError();
+        }
     }
 
-    // Method is called by PhotoTaker, when error while taking photo occurs
-    @Override
-    public void onPhotoError() {
-        stopSneakingService();
+    // Puts taken photos and location into the spool
+    private class SpoolStage extends Stage {
+
+        SpoolStage() {
+            super("spool", SPOOL_DEADLINE, true);
+        }
+
+        @Override
+        public void start(StageCallback callback) {
+            samplePeakHeap();
+
+            if (mStreamPosted) {
+                // Photos are posted already
+                callback.onStageComplete();
+                return;
+            }
+
+            if (mPhotos.isEmpty()) {
+                // Scene has not changed, nothing to post
+                Log.d(TAG, "Scene unchanged, photos skipped");
+                callback.onStageComplete();
+                return;
+            }
+
+            mSpoolUsed = true;
+            boolean success = mCaptureSpool.get().enqueue(mPhotos, mLocation);
+
+            // Photos are on disk now, free memory
+            releasePhotos();
+
+            if (success) {
+                // Spool is not empty now, so drain it, when network becomes available
+                mDrainRequest = DRAIN_PENDING;
+                callback.onStageComplete();
+            } else {
+                callback.onStageError();
+            }
+        }
     }
 
-    // --- LOCATIONFETCHER CALLBACKS ----------
+    // Makes wall post of the photos, that have been uploaded while being taken.
+    // If this stage fails, photos are put into the spool.
+    // If the stage is cancelled after wall.post has been sent, VK may publish the post anyway,
+    // so photos are not spooled (they would be posted twice with another guid).
+    private class StreamPostStage extends Stage implements PhotoUploader.PhotoUploadedListener {
 
-    // Method is called when LocationFetcher successfully fetches location
-    @Override
-    public void onLocationFetchSuccess(Location location) {
-        //  Location received, so cancel timer
-        cancelTimer();
+        private StageCallback mCallback;
+
+        StreamPostStage() {
+            super("streampost", DRAIN_DEADLINE, false);
+        }
+
+        @Override
+        public void start(StageCallback callback) {
+            mCallback = callback;
+
+            if (mStreamBroken || mPhotos.isEmpty()) {
+                // Nothing is uploaded
+                mPhotoUploader.get().cancel();
+                callback.onStageComplete();
+                return;
+            }
+
+            samplePeakHeap();
+
+            // Location is known now, post as soon as the last upload is finished
+            mPhotoUploader.get().finishStreamingPost(mLocation, this);
+        }
+
+        @Override
+        public void cancel() {
+            if (mPhotoUploader.get().isWallPostInFlight()) {
+                // Post is possibly published, losing it is better than posting it twice
+                Log.w(TAG, "Stream post cancelled with wall post in flight, photos are not spooled");
+                mStreamPosted = true;
+                releasePhotos();
+                deleteStreamFiles();
+            }
 
-        // Stop LocationFetcher
-        mLocationFetcher.stopFetchingLocation();
+            mPhotoUploader.get().cancel();
+        }
+
+        // Method is called, if PhotoUploader successfully posts photos to VK
+        @Override
+        public void onPhotoUploadSuccess() {
+            mPipelineHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    long uploadedBytes = 0;
 
-        // Start uploading photo to VK wall with location info.
-        mPhotoUploader.uploadPhoto(mPhotos, location, this);
+                    for (File file : mStreamFiles) {
+                        uploadedBytes += file.length();
+                    }
+
+                    mDrainedBytes += uploadedBytes;
+                    mDrainedPosts++;
+                    mStreamPosted = true;
+
+                    // Update throughput estimate of the current network (file uploads only)
+                    mAdaptiveEncoder.get().onUploadFinished(mPhotoUploader.get().getTransferBytes(),
+                            mPhotoUploader.get().getTransferTime());
+
+                    // Photos are posted, free memory
+                    releasePhotos();
+                    deleteStreamFiles();
+
+                    mCallback.onStageComplete();
+                }
+            });
+        }
+
+        // Method is called, if there is error in PhotoUploader posting photos to VK
+        @Override
+        public void onPhotoUploadError() {
+            mPipelineHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Photos go to the spool and will be posted later
+                    mCallback.onStageError();
+                }
+            });
+        }
     }
 
-    // Method is called when there is error in LocationFetcher fetching location
-    @Override
-    public void onLocationFetchError() {
-        // Error receiving location, nothing to wait for, so cancel timer
-        cancelTimer();
+    // Posts spool entries to VK one by one (or batch by batch) until the spool is empty or error occurs
+    private class DrainStage extends Stage implements PhotoUploader.PhotoUploadedListener {
+
+        private StageCallback mCallback;
+
+        // Spool entries, that are being uploaded now
+        private List<CaptureSpool.SpoolEntry> mUploadingEntries;
+
+        // True after the stage is cancelled (by deadline, cycle budget or service destruction)
+        private boolean mCancelled;
+
+        DrainStage() {
+            super("drain", DRAIN_DEADLINE, true);
+        }
+
+        @Override
+        public void start(StageCallback callback) {
+            mCallback = callback;
+            mDrainStartTime = SystemClock.elapsedRealtime();
+            drainNextEntry();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mPhotoUploader.get().cancel();
+        }
+
+        private void drainNextEntry() {
+            if (!isUploadAllowed()) {
+                // Entries stay in the spool, until the drain job is run in suitable conditions
+                mDrainRequest = DRAIN_PENDING;
+                mCallback.onStageComplete();
+                return;
+            }
+
+            mSpoolUsed = true;
+            mUploadingEntries = mUtilsPrefs.isBatchPostEnabled()
+                    ? collectBatch()
+                    : mCaptureSpool.get().peekOldest(1);
+
+            if (mUploadingEntries == null) {
+                // Batch is not ready yet. Entries wait for the next cycles,
+                // but no longer than batch window (even if sneaking is turned off meanwhile).
+                mBatchWaiting = true;
+                mDrainRequest = DRAIN_DELAYED;
+                mCallback.onStageComplete();
+            } else if (!mUploadingEntries.isEmpty()) {
+                samplePeakHeap();
+
+                // Start uploading photos of the entries to VK wall
+                mPhotoUploader.get().uploadPhotoBatch(mUploadingEntries, this);
+            } else {
+                // Spool is empty, no need to wait for network anymore
+                mDrainRequest = DRAIN_DONE;
+                mCallback.onStageComplete();
+            }
+        }
+
+        // Method is called, if PhotoUploader successfully posts photo to VK
+        @Override
+        public void onPhotoUploadSuccess() {
+            // Entry is posted, remove it from the spool.
+            // Stage may be cancelled before this runs, then the entry is still removed (it is posted),
+            // but the next entry is not started.
+            mPipelineHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    long uploadedBytes = 0;
+
+                    for (CaptureSpool.SpoolEntry entry : mUploadingEntries) {
+                        uploadedBytes += entry.getSizeBytes();
+                        mCaptureSpool.get().remove(entry);
+                    }
+
+                    mDrainedEntries += mUploadingEntries.size();
+                    mDrainedBytes += uploadedBytes;
+                    mDrainedPosts++;
+
+                    // Update throughput estimate of the current network (file uploads only)
+                    mAdaptiveEncoder.get().onUploadFinished(mPhotoUploader.get().getTransferBytes(),
+                            mPhotoUploader.get().getTransferTime());
+
+                    mUploadingEntries = null;
+
+                    if (!mCancelled) {
+                        // Post next entry
+                        drainNextEntry();
+                    }
+                }
+            });
+        }
+
+        // Return oldest entries with no more than batch size photos in total.
+        // Return null, if the batch is not full and the oldest entry has not waited for batch window,
+        // or empty list, if the spool is empty.
+        private List<CaptureSpool.SpoolEntry> collectBatch() {
+            int batchSize = Math.min(mUtilsPrefs.getBatchSize(), PhotoUploader.MAX_ATTACHMENTS);
+            long batchWindow = (long) mUtilsPrefs.getBatchWindow() * SNEAK_INTERVAL_MINUTE;
+
+            List<CaptureSpool.SpoolEntry> batch = new ArrayList<>();
+            int photoCount = 0;
+            boolean full = false;
+
+            // Every entry has at least one photo, so more entries are never needed
+            for (CaptureSpool.SpoolEntry entry : mCaptureSpool.get().peekOldest(batchSize + 1)) {
+                int entryPhotoCount = entry.getPhotoFiles().size();
+
+                if (!batch.isEmpty() && photoCount + entryPhotoCount > batchSize) {
+                    // Next entry doesn't fit into this batch
+                    full = true;
+                    break;
+                }
+
+                batch.add(entry);
+                photoCount += entryPhotoCount;
+
+                if (photoCount >= batchSize) {
+                    full = true;
+                    break;
+                }
+            }
+
+            if (batch.isEmpty()) {
+                return batch;
+            }
+
+            mBatchDelay = batchWindow - (System.currentTimeMillis() - batch.get(0).getCaptureTime());
 
-        // Stop LocationFetcher
-        mLocationFetcher.stopFetchingLocation();
+            return full || mBatchDelay <= 0 ? batch : null;
+        }
+
+        // Method is called, if there is error in PhotoUploader posting photo to VK
+        @Override
+        public void onPhotoUploadError() {
+            // Failure is counted only if it is permanent (VK rejected the entry)
+            // and VK is not unavailable (entries must not be dropped during outage or offline).
+            final boolean permanent = mPhotoUploader.get().isErrorPermanent()
+                    && !mVKRequestGovernor.isBreakerOpen()
+                    && UtilsNet.isNetworkAvailableAndConnected(SneakingService.this);
+
+            mPipelineHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    boolean dropped = false;
+
+                    if (permanent) {
+                        for (CaptureSpool.SpoolEntry entry : mUploadingEntries) {
+                            dropped |= mCaptureSpool.get().recordFailure(entry);
+                        }
+                    }
 
-        // Start uploading photo to VK wall without location info.
-        mPhotoUploader.uploadPhoto(mPhotos, null, this);
+                    mUploadingEntries = null;
+
+                    if (mCancelled) {
+                        // Stage is finished already
+                        return;
+                    }
+
+                    if (dropped) {
+                        // Entry, that can't be posted, is removed, continue with the next one
+                        drainNextEntry();
+                    } else {
+                        // Entry stays in the spool and will be posted later
+                        mCallback.onStageError();
+                    }
+                }
+            });
+        }
     }
 
-    // --- PHOTOUPLOADER CALLBACKS ----------
+    // --- PIPELINE CALLBACKS ----------
 
-    // Method is called, if PhotoUploader successfully posts photo to VK
+    // Method is called, when all stages are done
     @Override
-    public void onPhotoUploadSuccess() {
-        stopSneakingService();
+    public void onPipelineComplete() {
+        stopSneakingService(MetricsRecorder.RESULT_OK);
     }
 
-    // Method is called, if there is error in PhotoUploader posting photo to VK
+    // Method is called, when required stage fails or cycle budget is over
     @Override
-    public void onPhotoUploadError() {
-        stopSneakingService();
+    public void onPipelineError(String failedStageName) {
+        Log.w(TAG, "Sneak cycle failed at stage " + failedStageName);
+        stopSneakingService(failedStageName);
     }
 
-    private void stopSneakingService() {
-        // Cancel timer (just in case it isn't cancelled yet)
-        cancelTimer();
+    // Method is called, when a stage is finished (successfully, with error or by deadline)
+    @Override
+    public void onStageFinished(String stageName, long duration, boolean success) {
+        mMetricsRecorder.record(MetricsRecorder.STAGE_PREFIX + stageName, duration);
+    }
 
-        // Clear photos
+    // Log drain throughput and spool footprint
+    private void reportDrainStatistics() {
+        if (mDrainedEntries > 0) {
+            long drainTime = Math.max(SystemClock.elapsedRealtime() - mDrainStartTime, 1);
+
+            Log.d(TAG, "Drained " + mDrainedEntries + " entries in " + mDrainedPosts + " posts ("
+                    + mDrainedBytes + " bytes) in "
+                    + drainTime + " ms, " + (mDrainedBytes * 1000 / drainTime) + " bytes/s");
+        }
+
+        if (mSpoolUsed) {
+            // Spool is not created just for the log
+            Log.d(TAG, "Spool: " + mCaptureSpool.get().size() + " entries, "
+                    + mCaptureSpool.get().getSizeBytes() + " bytes on disk");
+        }
+
+        Log.d(TAG, "VK requests: " + mVKRequestGovernor.getRequestCount() + " sent, "
+                + mVKRequestGovernor.getRetryCount() + " retries, "
+                + mVKRequestGovernor.getThrottleCount() + " throttled, "
+                + mVKRequestGovernor.getBreakerTripCount() + " breaker trips, "
+                + mVKRequestGovernor.getRejectedCount() + " rejected");
+    }
+
+    // Return true if network is available and upload conditions from settings are met
+    private boolean isUploadAllowed() {
+        // Check network status
+        if (!UtilsNet.isNetworkAvailableAndConnected(this)) {
+            return false;
+        }
+
+        // Check upload conditions from settings
+        boolean meteredNotAllowed = mUtilsPrefs.isUnmeteredUploadOnly() && UtilsNet.isNetworkMetered(this);
+        boolean chargerRequired = mUtilsPrefs.isChargingUploadOnly() && !UtilsBattery.isCharging(this);
+
+        return !meteredNotAllowed && !chargerRequired;
+    }
+
+    // Return true if photos of the cycle can be uploaded while being taken.
+    // Batch and composite posts need all photos of the cycle (or several cycles) first.
+    private boolean isStreamingAllowed() {
+        return mUtilsPrefs.isOverlappedUploadEnabled()
+                && !mUtilsPrefs.isBatchPostEnabled()
+                && PhotoCompositor.MODE_OFF.equals(mUtilsPrefs.getCompositeMode())
+                && isUploadAllowed();
+    }
+
+    // Return photos, that passed enabled filters (low information and unchanged scene).
+    // Numbers of dropped photos are added to the cycle counters.
+    private List<Photo> filterPhotos(List<Photo> photos) {
+        List<Photo> filteredPhotos = photos;
+
+        if (mUtilsPrefs.isLowInfoSkipEnabled()) {
+            // Drop photos with nothing to see (before duplicate check,
+            // so that black frame doesn't become the last posted scene)
+            List<Photo> scoredPhotos = filteredPhotos;
+            filteredPhotos = SceneScorer.filter(scoredPhotos, mUtilsPrefs.getMinSceneScore());
+            mLowInfoCount += scoredPhotos.size() - filteredPhotos.size();
+        }
+
+        if (mUtilsPrefs.isDuplicateSkipEnabled()) {
+            // Drop photos of unchanged scenes
+            List<Photo> hashedPhotos = filteredPhotos;
+            filteredPhotos = mDuplicatePhotoFilter.get().filter(hashedPhotos, mUtilsPrefs.getDuplicateDistance());
+            mDuplicateCount += hashedPhotos.size() - filteredPhotos.size();
+        }
+
+        return filteredPhotos;
+    }
+
+    // Write photo of streaming post into cache directory.
+    // Return file or null, if it can't be written.
+    private File writeStreamFile(Photo photo) {
+        File dir = new File(getCacheDir(), STREAM_DIR_NAME);
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "Unable to create stream directory");
+            return null;
+        }
+
+        File file = new File(dir, "photo_" + mStreamFiles.size() + ".jpg");
+
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(photo.getJpegData());
+            } finally {
+                out.close();
+            }
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write stream file", e);
+            file.delete();
+            return null;
+        }
+    }
+
+    // Delete files of streaming post
+    private void deleteStreamFiles() {
+        if (mStreamFiles != null) {
+            for (File file : mStreamFiles) {
+                file.delete();
+            }
+            mStreamFiles = null;
+        }
+    }
+
+    // Release taken photos
+    private void releasePhotos() {
         if (mPhotos != null) {
             mPhotos.clear();
             mPhotos = null;
         }
+    }
+
+    // Remember used heap, if it is the largest one during current cycle.
+    // Called on every stage of the cycle.
+    private void samplePeakHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        mPeakHeapBytes = Math.max(mPeakHeapBytes, usedHeap);
+    }
+
+    // Called on the pipeline thread
+    private void stopSneakingService(String result) {
+        if (mStreaming) {
+            // Stop uploads of streaming post, if it is not finished
+            mPhotoUploader.get().cancel();
+            mPhotoTaker.get().setPhotoStreamListener(null);
+            deleteStreamFiles();
+        }
+
+        // Clear photos
+        releasePhotos();
+        mLocation = null;
+
+        reportDrainStatistics();
+
+        if (mDrainOnly && mDrainedEntries == 0 && !mBatchWaiting) {
+            // Service was started for nothing
+            mUtilsPrefs.incrementWastedWakeupCount();
+        }
+        Log.d(TAG, "Wasted wakeups: " + mUtilsPrefs.getWastedWakeupCount());
+
+        samplePeakHeap();
+        Log.d(TAG, "Peak heap during cycle: " + mPeakHeapBytes + " bytes");
+        Log.d(TAG, "Bitmap pool: " + mBitmapPool.getHits() + " hits, "
+                + mBitmapPool.getMisses() + " misses, " + mBitmapPool.getSizeBytes() + " bytes");
+
+        // Finish cycle metrics
+        mMetricsRecorder.record(MetricsRecorder.BYTES_UPLOADED, mDrainedBytes);
+        mMetricsRecorder.record(MetricsRecorder.HEAP_PEAK, mPeakHeapBytes);
+        mMetricsRecorder.record(MetricsRecorder.WAKE_DURATION, SystemClock.elapsedRealtime() - mCycleStartTime);
+        mMetricsRecorder.endCycle(result);
+
+        mColdStart = false;
+        mStreaming = false;
+        mStreamedPhotos = null;
+        mStreamBroken = false;
+        mStreamPosted = false;
+        mLowInfoCount = 0;
+        mDuplicateCount = 0;
+        mDrainedEntries = 0;
+        mDrainedPosts = 0;
+        mDrainedBytes = 0;
+        mBatchWaiting = false;
+        mSpoolUsed = false;
+        mPeakHeapBytes = 0;
+        mPipeline = null;
+
+        // Starts are handled on the main thread, so the cycle is finished there too
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finishCycle();
+            }
+        });
+    }
+
+    // Run postponed capture or finish the cycle and stop service.
+    // Called on the application MAIN thread.
+    private void finishCycle() {
+        boolean capturePending;
+        boolean drainRequested;
+
+        synchronized (this) {
+            capturePending = mCapturePending;
+            drainRequested = mDrainRequested;
+            mCapturePending = false;
+            mDrainRequested = false;
+            mRunning = capturePending;
+        }
+
+        if (capturePending) {
+            // Capture has been requested during this cycle, run it now
+            // (service keeps running, so the cycle is not finished for SneakJobService yet).
+            // Its drain stage posts entries, that have been queued meanwhile.
+            startCycle(false);
+            return;
+        }
+
+        // Jobs are finished first, then the drain job may be scheduled again
+        notifyCycleFinished();
+
+        if (drainRequested && (mDrainRequest == DRAIN_UNCHANGED || mDrainRequest == DRAIN_DONE)) {
+            mDrainRequest = DRAIN_PENDING;
+        }
+        applyDrainRequest();
 
         // Stop service
         stopSelf();
     }
+
+    // Schedule or cancel drain, as requested by the cycle
+    private void applyDrainRequest() {
+        switch (mDrainRequest) {
+            case DRAIN_PENDING:
+                SneakScheduler.setDrainPending(this, mUtilsPrefs, true);
+                break;
+            case DRAIN_DELAYED:
+                SneakScheduler.setDrainDelayed(this, mUtilsPrefs, mBatchDelay);
+                break;
+            case DRAIN_DONE:
+                SneakScheduler.setDrainPending(this, mUtilsPrefs, false);
+                break;
+            default:
+                break;
+        }
+
+        mDrainRequest = DRAIN_UNCHANGED;
+    }
+
+    // Let SneakJobService finish the job (receivers are called before this method returns)
+    private void notifyCycleFinished() {
+        LocalBroadcastManager.getInstance(this).sendBroadcastSync(new Intent(ACTION_CYCLE_FINISHED));
+    }
 }
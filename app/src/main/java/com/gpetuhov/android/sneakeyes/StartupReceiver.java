@@ -23,6 +23,6 @@ public class StartupReceiver extends BroadcastReceiver {
         SneakEyesApp.getAppComponent().inject(this);
 
         // Activate sneaking service depending on settings
-        SneakingService.setServiceAlarm(context, mUtilsPrefs);
+        SneakScheduler.schedule(context, mUtilsPrefs);
     }
 }
\ No newline at end of file
@@ -0,0 +1,546 @@
+package com.gpetuhov.android.sneakeyes.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import com.gpetuhov.android.sneakeyes.Photo;
+import com.gpetuhov.android.sneakeyes.imagecore.ExifOrientation;
+import com.gpetuhov.android.sneakeyes.metrics.MetricsRecorder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Takes photos with android.hardware.camera2 API (API 21+).
+// Cameras are chosen by LENS_FACING (back cameras first, then front and external ones),
+// and all cameras of the device are used.
+// If the device reports concurrent camera support, all cameras capture at the same time.
+// Cameras, that fail to capture concurrently, are retried one after another.
+// JPEG is taken from ImageReader of the size close to output dimensions.
+// JPEG orientation is set to sensor orientation (device is assumed to be in its natural orientation).
+// The camera either rotates JPEG data or only writes EXIF orientation tag, so rotation, that is still needed,
+// is read from EXIF.
+
+// Sequence of execution for every camera:
+// 1. CameraManager.openCamera(), 2. onOpened(), 3. createCaptureSession(), 4. onConfigured(),
+// 5. preview frames (until exposure settles down), 6. still capture, 7. onImageAvailable()
+
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2CameraSource implements CameraSource {
+
+    private static final String TAG = "Camera2CameraSource";
+
+    // Backend name
+    public static final String NAME = "camera2";
+
+    // System feature of the devices, that can use several cameras at the same time
+    // (PackageManager.FEATURE_CAMERA_CONCURRENT, API 30)
+    private static final String FEATURE_CAMERA_CONCURRENT = "android.hardware.camera.concurrent";
+
+    // Number of preview frames before still capture, so that auto exposure settles down
+    private static final int PREVIEW_WARMUP_FRAMES = 4;
+
+    private Context mContext;
+
+    private CameraManager mCameraManager;
+
+    // Records camera open, preview and picture latencies
+    private MetricsRecorder mMetricsRecorder;
+
+    // Handler of the thread, that calls capture()
+    private Handler mHandler;
+
+    // Requested output dimensions
+    private int mOutputWidth;
+    private int mOutputHeight;
+
+    // Requested JPEG quality
+    private int mJpegQuality;
+
+    // True if cameras capture at the same time
+    private boolean mConcurrent;
+
+    // Cameras, that are not started yet
+    private List<String> mPendingCameraIds = new ArrayList<>();
+
+    // Cameras, that failed to capture concurrently and will be retried one by one
+    private List<String> mRetryCameraIds = new ArrayList<>();
+
+    // Cameras, that are capturing now
+    private List<CameraCapture> mActiveCaptures = new ArrayList<>();
+
+    // Number of photos taken during current capture
+    private int mCapturedPhotos;
+
+    // Keeps reference to the listener to Camera2CameraSource
+    private CaptureListener mCaptureListener;
+
+    // Return true if all cameras of the device have more than legacy hardware support level
+    // (on legacy level camera2 is just a wrapper around deprecated Camera API).
+    public static boolean isFullySupported(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        CameraManager cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+
+        try {
+            String[] cameraIds = cameraManager.getCameraIdList();
+
+            if (cameraIds.length == 0) {
+                return false;
+            }
+
+            for (String cameraId : cameraIds) {
+                Integer level = cameraManager.getCameraCharacteristics(cameraId)
+                        .get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+
+                if (level == null || level == CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+                    return false;
+                }
+            }
+        } catch (CameraAccessException | RuntimeException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    public Camera2CameraSource(Context context, MetricsRecorder metricsRecorder) {
+        mContext = context;
+        mMetricsRecorder = metricsRecorder;
+        mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void capture(int outputWidth, int outputHeight, int jpegQuality, CaptureListener listener) {
+        mCaptureListener = listener;
+        mOutputWidth = outputWidth;
+        mOutputHeight = outputHeight;
+        mJpegQuality = jpegQuality;
+        mHandler = new Handler(Looper.myLooper());
+        mCapturedPhotos = 0;
+
+        mPendingCameraIds.clear();
+        mRetryCameraIds.clear();
+
+        try {
+            mPendingCameraIds.addAll(getSortedCameraIds());
+        } catch (CameraAccessException | RuntimeException e) {
+            reportError();
+            return;
+        }
+
+        if (mPendingCameraIds.isEmpty()) {
+            // No cameras on device
+            reportError();
+            return;
+        }
+
+        mConcurrent = mPendingCameraIds.size() > 1
+                && mContext.getPackageManager().hasSystemFeature(FEATURE_CAMERA_CONCURRENT);
+
+        if (mConcurrent) {
+            // Start all cameras at once
+            while (!mPendingCameraIds.isEmpty()) {
+                startNextCamera();
+            }
+        } else {
+            startNextCamera();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        unregisterListener();
+
+        mPendingCameraIds.clear();
+        mRetryCameraIds.clear();
+
+        for (CameraCapture capture : new ArrayList<>(mActiveCaptures)) {
+            capture.close();
+        }
+        mActiveCaptures.clear();
+    }
+
+    // Return camera IDs sorted by facing: back, front, external
+    private List<String> getSortedCameraIds() throws CameraAccessException {
+        List<String> cameraIds = new ArrayList<>(Arrays.asList(mCameraManager.getCameraIdList()));
+
+        final List<Integer> facings = new ArrayList<>();
+        for (String cameraId : cameraIds) {
+            facings.add(getFacing(cameraId));
+        }
+
+        final List<String> unsortedIds = new ArrayList<>(cameraIds);
+
+        Collections.sort(cameraIds, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                int lhsFacing = facings.get(unsortedIds.indexOf(lhs));
+                int rhsFacing = facings.get(unsortedIds.indexOf(rhs));
+                return lhsFacing < rhsFacing ? -1 : (lhsFacing == rhsFacing ? 0 : 1);
+            }
+        });
+
+        return cameraIds;
+    }
+
+    // Return clockwise rotation in degrees, that makes sensor image upright in natural orientation of the device
+    private int getSensorOrientation(String cameraId) throws CameraAccessException {
+        Integer sensorOrientation = mCameraManager.getCameraCharacteristics(cameraId)
+                .get(CameraCharacteristics.SENSOR_ORIENTATION);
+        return sensorOrientation != null ? sensorOrientation : 0;
+    }
+
+    // Return facing of the camera (one of Photo.FACING_* values)
+    private int getFacing(String cameraId) throws CameraAccessException {
+        Integer lensFacing = mCameraManager.getCameraCharacteristics(cameraId)
+                .get(CameraCharacteristics.LENS_FACING);
+
+        if (lensFacing == null) {
+            return Photo.FACING_EXTERNAL;
+        }
+
+        switch (lensFacing) {
+            case CameraMetadata.LENS_FACING_BACK:
+                return Photo.FACING_BACK;
+            case CameraMetadata.LENS_FACING_FRONT:
+                return Photo.FACING_FRONT;
+            default:
+                return Photo.FACING_EXTERNAL;
+        }
+    }
+
+    private void startNextCamera() {
+        CameraCapture capture = new CameraCapture(mPendingCameraIds.remove(0));
+        mActiveCaptures.add(capture);
+        capture.open();
+    }
+
+    // Method is called, when the camera has finished (successfully or not) and is closed
+    private void onCameraFinished(CameraCapture capture, boolean success) {
+        if (!mActiveCaptures.remove(capture)) {
+            // Capture has been cancelled
+            return;
+        }
+
+        if (!success && mConcurrent) {
+            // Maybe the camera can't work together with others, try it alone later
+            mRetryCameraIds.add(capture.mCameraId);
+        }
+
+        if (!mActiveCaptures.isEmpty()) {
+            // Wait for other cameras
+            return;
+        }
+
+        if (mPendingCameraIds.isEmpty() && !mRetryCameraIds.isEmpty()) {
+            Log.d(TAG, "Retrying " + mRetryCameraIds.size() + " cameras one by one");
+            mConcurrent = false;
+            mPendingCameraIds.addAll(mRetryCameraIds);
+            mRetryCameraIds.clear();
+        }
+
+        if (!mPendingCameraIds.isEmpty()) {
+            startNextCamera();
+        } else if (mCapturedPhotos > 0) {
+            reportSuccess();
+        } else {
+            reportError();
+        }
+    }
+
+    // Return smallest size, that is not less than output dimensions
+    // (or largest size, if all of them are less than output dimensions).
+    private Size chooseOutputSize(Size[] sizes) {
+        Size bestSize = null;
+        Size largestSize = null;
+
+        for (Size size : sizes) {
+            int area = size.getWidth() * size.getHeight();
+
+            if (largestSize == null || area > largestSize.getWidth() * largestSize.getHeight()) {
+                largestSize = size;
+            }
+
+            boolean fitsOutput = size.getWidth() >= mOutputWidth && size.getHeight() >= mOutputHeight;
+
+            if (fitsOutput && (bestSize == null || area < bestSize.getWidth() * bestSize.getHeight())) {
+                bestSize = size;
+            }
+        }
+
+        return bestSize != null ? bestSize : largestSize;
+    }
+
+    // Report success to the listener
+    private void reportSuccess() {
+        if (mCaptureListener != null) {
+            CaptureListener listener = mCaptureListener;
+            unregisterListener();
+            listener.onCaptureComplete();
+        }
+    }
+
+    // Report error to the listener
+    private void reportError() {
+        if (mCaptureListener != null) {
+            CaptureListener listener = mCaptureListener;
+            unregisterListener();
+            listener.onCaptureError();
+        }
+    }
+
+    // Unregister listener
+    private void unregisterListener() {
+        mCaptureListener = null;
+    }
+
+    // Takes one photo from one camera
+    private class CameraCapture {
+
+        private String mCameraId;
+        private int mFacing;
+
+        private CameraDevice mCameraDevice;
+        private CameraCaptureSession mCaptureSession;
+
+        // Receives JPEG from the camera
+        private ImageReader mImageReader;
+
+        // Preview is needed for auto exposure only, it is not shown to user
+        private SurfaceTexture mPreviewTexture;
+        private Surface mPreviewSurface;
+
+        // Number of preview frames received
+        private int mPreviewFrames;
+
+        // True if still capture is requested
+        private boolean mStillCaptureRequested;
+
+        // True if the camera is closed
+        private boolean mClosed;
+
+        // Start times of camera open, preview and still capture
+        private long mOpenStartTime;
+        private long mPreviewStartTime;
+        private long mStillCaptureStartTime;
+
+        CameraCapture(String cameraId) {
+            mCameraId = cameraId;
+        }
+
+        void open() {
+            try {
+                mFacing = getFacing(mCameraId);
+
+                StreamConfigurationMap map = mCameraManager.getCameraCharacteristics(mCameraId)
+                        .get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+
+                Size jpegSize = chooseOutputSize(map.getOutputSizes(ImageFormat.JPEG));
+                mImageReader = ImageReader.newInstance(
+                        jpegSize.getWidth(), jpegSize.getHeight(), ImageFormat.JPEG, 1);
+                mImageReader.setOnImageAvailableListener(mImageAvailableListener, mHandler);
+
+                Size previewSize = chooseOutputSize(map.getOutputSizes(SurfaceTexture.class));
+                mPreviewTexture = new SurfaceTexture(10);
+                mPreviewTexture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
+                mPreviewSurface = new Surface(mPreviewTexture);
+
+                mOpenStartTime = SystemClock.elapsedRealtime();
+                mCameraManager.openCamera(mCameraId, mStateCallback, mHandler);
+            } catch (CameraAccessException | RuntimeException e) {
+                // RuntimeException includes SecurityException (no permission)
+                finish(false);
+            }
+        }
+
+        void close() {
+            mClosed = true;
+
+            if (mCaptureSession != null) {
+                mCaptureSession.close();
+                mCaptureSession = null;
+            }
+            if (mCameraDevice != null) {
+                mCameraDevice.close();
+                mCameraDevice = null;
+            }
+            if (mImageReader != null) {
+                mImageReader.close();
+                mImageReader = null;
+            }
+            if (mPreviewSurface != null) {
+                mPreviewSurface.release();
+                mPreviewSurface = null;
+            }
+            if (mPreviewTexture != null) {
+                mPreviewTexture.release();
+                mPreviewTexture = null;
+            }
+        }
+
+        private void finish(boolean success) {
+            if (!mClosed) {
+                close();
+                onCameraFinished(this, success);
+            }
+        }
+
+        private CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+            @Override
+            public void onOpened(CameraDevice camera) {
+                if (mClosed) {
+                    camera.close();
+                    return;
+                }
+
+                mCameraDevice = camera;
+
+                mPreviewStartTime = SystemClock.elapsedRealtime();
+                mMetricsRecorder.record(MetricsRecorder.CAMERA_OPEN_PREFIX + NAME, mPreviewStartTime - mOpenStartTime);
+
+                try {
+                    mCameraDevice.createCaptureSession(
+                            Arrays.asList(mPreviewSurface, mImageReader.getSurface()), mSessionCallback, mHandler);
+                } catch (CameraAccessException | RuntimeException e) {
+                    finish(false);
+                }
+            }
+
+            @Override
+            public void onDisconnected(CameraDevice camera) {
+                mCameraDevice = camera;
+                finish(false);
+            }
+
+            @Override
+            public void onError(CameraDevice camera, int error) {
+                // Includes ERROR_MAX_CAMERAS_IN_USE, if cameras can't work concurrently
+                mCameraDevice = camera;
+                finish(false);
+            }
+        };
+
+        private CameraCaptureSession.StateCallback mSessionCallback = new CameraCaptureSession.StateCallback() {
+            @Override
+            public void onConfigured(CameraCaptureSession session) {
+                if (mClosed) {
+                    session.close();
+                    return;
+                }
+
+                mCaptureSession = session;
+
+                try {
+                    // Run preview, so that auto exposure and white balance settle down
+                    CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                    builder.addTarget(mPreviewSurface);
+                    builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+                    mCaptureSession.setRepeatingRequest(builder.build(), mPreviewCallback, mHandler);
+                } catch (CameraAccessException | RuntimeException e) {
+                    finish(false);
+                }
+            }
+
+            @Override
+            public void onConfigureFailed(CameraCaptureSession session) {
+                finish(false);
+            }
+        };
+
+        private CameraCaptureSession.CaptureCallback mPreviewCallback = new CameraCaptureSession.CaptureCallback() {
+            @Override
+            public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
+                mPreviewFrames++;
+
+                if (mPreviewFrames >= PREVIEW_WARMUP_FRAMES && !mStillCaptureRequested && !mClosed) {
+                    mStillCaptureRequested = true;
+
+                    mStillCaptureStartTime = SystemClock.elapsedRealtime();
+                    mMetricsRecorder.record(MetricsRecorder.CAMERA_PREVIEW_PREFIX + NAME, mStillCaptureStartTime - mPreviewStartTime);
+
+                    captureStill();
+                }
+            }
+        };
+
+        private void captureStill() {
+            try {
+                CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                builder.addTarget(mImageReader.getSurface());
+                builder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+                builder.set(CaptureRequest.JPEG_QUALITY, (byte) mJpegQuality);
+                builder.set(CaptureRequest.JPEG_ORIENTATION, getSensorOrientation(mCameraId));
+
+                mCaptureSession.stopRepeating();
+                mCaptureSession.capture(builder.build(), null, mHandler);
+            } catch (CameraAccessException | RuntimeException e) {
+                finish(false);
+            }
+        }
+
+        private ImageReader.OnImageAvailableListener mImageAvailableListener = new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                Image image = reader.acquireLatestImage();
+
+                if (image == null) {
+                    return;
+                }
+
+                mMetricsRecorder.record(MetricsRecorder.CAMERA_PICTURE_PREFIX + NAME,
+                        SystemClock.elapsedRealtime() - mStillCaptureStartTime);
+
+                // JPEG data is in the only plane of the image
+                ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                byte[] jpegData = new byte[buffer.remaining()];
+                buffer.get(jpegData);
+                image.close();
+
+                // Release the camera before passing the photo on
+                close();
+
+                mCapturedPhotos++;
+
+                // Without EXIF orientation tag JPEG data has been rotated by the camera
+                int rotation = Math.max(ExifOrientation.getRotation(jpegData), 0);
+
+                if (mCaptureListener != null) {
+                    mCaptureListener.onPhotoCaptured(mCameraId, mFacing, jpegData, rotation);
+                }
+
+                onCameraFinished(CameraCapture.this, true);
+            }
+        };
+    }
+}
@@ -0,0 +1,31 @@
+package com.gpetuhov.android.sneakeyes.camera;
+
+// Source of photos from device cameras.
+// Implementations take one photo from every camera they use
+// and pass JPEG data to CaptureListener (photos may be bigger than requested output size).
+// All methods and callbacks are called on the thread, that calls capture()
+// (this thread must have a Looper).
+
+// Sequence of execution: 1. capture(), 2. onPhotoCaptured() for every camera, 3. onCaptureComplete() or onCaptureError()
+
+public interface CameraSource {
+
+    // User of CameraSource must implement this interface to receive callbacks
+    interface CaptureListener {
+        // Rotation is clockwise rotation in degrees (0, 90, 180 or 270), that makes JPEG pixel data upright
+        // in natural orientation of the device (cameras may leave rotation to the user of the photo)
+        void onPhotoCaptured(String cameraId, int facing, byte[] jpegData, int rotation);
+        void onCaptureComplete();
+        void onCaptureError();
+    }
+
+    // Return backend name (used in logs and metrics)
+    String getName();
+
+    // Take photos, that are not less than output dimensions (if the camera supports such sizes),
+    // compressed with provided JPEG quality (0..100)
+    void capture(int outputWidth, int outputHeight, int jpegQuality, CaptureListener listener);
+
+    // Stop capture and release cameras. Listener is not called after cancellation.
+    void cancel();
+}
@@ -0,0 +1,425 @@
+package com.gpetuhov.android.sneakeyes.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
+import android.hardware.Camera;
+import android.os.SystemClock;
+
+import com.gpetuhov.android.sneakeyes.Photo;
+import com.gpetuhov.android.sneakeyes.metrics.MetricsRecorder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Takes photos with deprecated android.hardware.Camera API (available on all devices).
+// Cameras are used one after another (first 2 cameras only).
+// Implements Camera.PictureCallback to handle photos taken by the camera.
+// Implements Camera.PreviewCallback to take pictures when preview is ready only.
+// In preview frame mode Camera.takePicture() is not used at all:
+// preview frame (NV21) of the size close to output dimensions is compressed to JPEG directly.
+
+// Sequence of execution: 1. capture(), 2. onPreviewFrame(), 3. onPictureTaken()
+// Sequence of execution in preview frame mode: 1. capture(), 2. onPreviewFrame() (several times)
+
+public class LegacyCameraSource implements CameraSource, Camera.PictureCallback, Camera.PreviewCallback {
+
+    // Backend name
+    public static final String NAME = "legacy";
+
+    // Number of preview frames skipped in preview frame mode,
+    // so that auto exposure and white balance settle down
+    private static final int PREVIEW_WARMUP_FRAMES = 5;
+
+    // Number of preview buffers in preview frame mode
+    private static final int PREVIEW_BUFFER_COUNT = 2;
+
+    // Records camera open, preview and picture latencies
+    private MetricsRecorder mMetricsRecorder;
+
+    // Keeps camera instance
+    private Camera mCamera;
+
+    // Number of cameras available
+    private int mNumberOfCameras;
+
+    // ID of the current camera in use
+    private int mCurrentCamera;
+
+    // Requested output dimensions
+    private int mOutputWidth;
+    private int mOutputHeight;
+
+    // Requested JPEG quality
+    private int mJpegQuality;
+
+    // True if photos are taken from preview frames
+    private boolean mPreviewFrameMode;
+
+    // Preview size in preview frame mode
+    private int mPreviewWidth;
+    private int mPreviewHeight;
+
+    // Number of preview frames received from the current camera
+    private int mPreviewFrameCount;
+
+    // Preallocated preview buffers, keyed by buffer size.
+    // Buffers are reused across cameras and cycles.
+    private Map<Integer, byte[][]> mPreviewBuffers = new HashMap<>();
+
+    // Start times of preview and picture of the current camera
+    private long mPreviewStartTime;
+    private long mPictureStartTime;
+
+    // Keeps reference to the listener to LegacyCameraSource
+    private CaptureListener mCaptureListener;
+
+    public LegacyCameraSource(MetricsRecorder metricsRecorder) {
+        mMetricsRecorder = metricsRecorder;
+    }
+
+    // Take photos from preview frames instead of Camera.takePicture()
+    public void setPreviewFrameMode(boolean previewFrameMode) {
+        mPreviewFrameMode = previewFrameMode;
+    }
+
+    @Override
+    public String getName() {
+        return mPreviewFrameMode ? NAME + "-preview" : NAME;
+    }
+
+    @Override
+    public void capture(int outputWidth, int outputHeight, int jpegQuality, CaptureListener listener) {
+        mCaptureListener = listener;
+        mOutputWidth = outputWidth;
+        mOutputHeight = outputHeight;
+        mJpegQuality = jpegQuality;
+
+        // Get number of cameras available
+        int numberOfCameras = Camera.getNumberOfCameras();
+
+        if (numberOfCameras > 0) {
+            // Device has one or more cameras
+
+            // If device has more than 1 camera, use only 2 of them
+            if (numberOfCameras > 1) {
+                numberOfCameras = 2;
+            }
+
+            // Save number of cameras
+            mNumberOfCameras = numberOfCameras;
+
+            // Set current camera to 0 (back-facing)
+            mCurrentCamera = 0;
+
+            takePhotoFromCamera(mCurrentCamera);
+        } else {
+            // No cameras on device
+            reportError();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        unregisterListener();
+        releaseCamera();
+    }
+
+    // Takes photo from the camera with provided ID
+    private void takePhotoFromCamera(int cameraId) {
+
+        // Release camera (because camera may be in use by previous operations)
+        releaseCamera();
+
+        // Try to get camera instance
+        if (getCameraInstance(cameraId)) {
+            // Camera instance acquired
+
+            // Try to initialize camera and start preview
+            boolean success = initCameraAndStartPreview();
+
+            // If not success, report error to the listener
+            if (!success) {
+                reportError();
+            }
+
+            // Photo will be taken in callback method, when preview is ready.
+        } else {
+            // Camera instance not acquired
+            reportError();
+        }
+    }
+
+    // Camera must be released to be used later by this or other apps
+    private void releaseCamera() {
+        if (mCamera != null) {
+            mCamera.release();
+            mCamera = null;
+        }
+    }
+
+    // A safe way to get an instance of the Camera object
+    private boolean getCameraInstance(int cameraId) {
+        long openStartTime = SystemClock.elapsedRealtime();
+
+        try {
+            // Attempt to get a Camera instance.
+            mCamera = Camera.open(cameraId);
+            mMetricsRecorder.record(MetricsRecorder.CAMERA_OPEN_PREFIX + getName(), SystemClock.elapsedRealtime() - openStartTime);
+        }
+        catch (Exception e){
+            // Camera is not available (in use or does not exist)
+            // Do nothing, because we will return false in this case
+        }
+
+        // Return true, if camera opened successfully
+        return mCamera != null;
+    }
+
+    // Initialize camera and start preview
+    private boolean initCameraAndStartPreview() {
+        // True if operation completed successfully
+        boolean successFlag = true;
+
+        // If camera instance is available
+        if (mCamera != null) {
+            try {
+                // We don't need to show preview to user,
+                // so just set new SurfaceTexture as a preview.
+                mCamera.setPreviewTexture(new SurfaceTexture(10));
+
+                if (mPreviewFrameMode) {
+                    // Preview frame itself will be the photo
+                    initPreviewFrameCapture();
+                } else {
+                    // Request picture size close to output dimensions
+                    // and requested JPEG quality, so that camera JPEG doesn't have to be scaled.
+                    setPictureParameters();
+
+                    // Set LegacyCameraSource as a listener to preview callbacks.
+                    // After one invocation, the callback is cleared.
+                    mCamera.setOneShotPreviewCallback(this);
+                }
+
+                // Start preview. When preview is ready, onPreviewFrame() will be called once.
+                mPreviewStartTime = SystemClock.elapsedRealtime();
+                mCamera.startPreview();
+            } catch (IOException | RuntimeException e) {
+                // Error while initializing camera
+                successFlag = false;
+            }
+        } else {
+            // No camera instance available
+            successFlag = false;
+        }
+
+        return successFlag;
+    }
+
+    // Set picture size close to output dimensions and JPEG quality
+    private void setPictureParameters() {
+        try {
+            Camera.Parameters parameters = mCamera.getParameters();
+
+            Camera.Size bestSize = chooseOutputSize(parameters.getSupportedPictureSizes());
+
+            if (bestSize != null) {
+                parameters.setPictureSize(bestSize.width, bestSize.height);
+            }
+            parameters.setJpegQuality(mJpegQuality);
+
+            mCamera.setParameters(parameters);
+        } catch (RuntimeException e) {
+            // Some cameras reject parameters. Use default picture size and quality then.
+        }
+    }
+
+    // Set preview size close to output dimensions and give preallocated buffers to the camera
+    private void initPreviewFrameCapture() {
+        Camera.Parameters parameters = mCamera.getParameters();
+
+        Camera.Size bestSize = chooseOutputSize(parameters.getSupportedPreviewSizes());
+
+        if (bestSize != null) {
+            parameters.setPreviewSize(bestSize.width, bestSize.height);
+        }
+        parameters.setPreviewFormat(ImageFormat.NV21);
+
+        try {
+            mCamera.setParameters(parameters);
+        } catch (RuntimeException e) {
+            // Some cameras reject parameters. Use default preview size then.
+        }
+
+        Camera.Size previewSize = mCamera.getParameters().getPreviewSize();
+        mPreviewWidth = previewSize.width;
+        mPreviewHeight = previewSize.height;
+        mPreviewFrameCount = 0;
+
+        // Preview frames are delivered into these buffers, so no new frame is allocated
+        int bufferSize = mPreviewWidth * mPreviewHeight * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+
+        byte[][] buffers = mPreviewBuffers.get(bufferSize);
+        if (buffers == null) {
+            buffers = new byte[PREVIEW_BUFFER_COUNT][bufferSize];
+            mPreviewBuffers.put(bufferSize, buffers);
+        }
+
+        for (byte[] buffer : buffers) {
+            mCamera.addCallbackBuffer(buffer);
+        }
+
+        mCamera.setPreviewCallbackWithBuffer(this);
+    }
+
+    // Return smallest size, that is not less than output dimensions
+    // (or largest size, if all of them are less than output dimensions).
+    private Camera.Size chooseOutputSize(List<Camera.Size> sizes) {
+        Camera.Size bestSize = null;
+        Camera.Size largestSize = null;
+
+        for (Camera.Size size : sizes) {
+            if (largestSize == null || size.width * size.height > largestSize.width * largestSize.height) {
+                largestSize = size;
+            }
+
+            boolean fitsOutput = size.width >= mOutputWidth && size.height >= mOutputHeight;
+
+            if (fitsOutput && (bestSize == null || size.width * size.height < bestSize.width * bestSize.height)) {
+                bestSize = size;
+            }
+        }
+
+        return bestSize != null ? bestSize : largestSize;
+    }
+
+    // Method is called, when preview is ready (camera is ready to take pictures).
+    // This method will be called only once,
+    // because we set LegacyCameraSource as listener by setOneShotPreviewCallback().
+    // In preview frame mode this method is called for every preview frame.
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (mCamera == null) {
+            // Capture has been cancelled
+            return;
+        }
+
+        if (mPreviewFrameMode) {
+            onPreviewFrameCaptured(data);
+            return;
+        }
+
+        mPictureStartTime = SystemClock.elapsedRealtime();
+        mMetricsRecorder.record(MetricsRecorder.CAMERA_PREVIEW_PREFIX + NAME, mPictureStartTime - mPreviewStartTime);
+
+        // Start asynchronous image capture.
+        // When image is taken, onPictureTaken() will be called.
+        mCamera.takePicture(null, null, this);
+    }
+
+    // Method is called, when photo is taken.
+    @Override
+    public void onPictureTaken(byte[] data, Camera camera) {
+
+        mMetricsRecorder.record(MetricsRecorder.CAMERA_PICTURE_PREFIX + NAME, SystemClock.elapsedRealtime() - mPictureStartTime);
+
+        // Photo is taken, we should release the camera.
+        releaseCamera();
+
+        onPhotoCaptured(data);
+    }
+
+    // Compress preview frame to JPEG, when exposure has settled down
+    private void onPreviewFrameCaptured(byte[] data) {
+        mPreviewFrameCount++;
+
+        if (mPreviewFrameCount <= PREVIEW_WARMUP_FRAMES) {
+            // Skip this frame and give the buffer back to the camera
+            mCamera.addCallbackBuffer(data);
+            return;
+        }
+
+        // Stop receiving frames
+        mCamera.setPreviewCallbackWithBuffer(null);
+
+        // Preview frame mode has its own keys (getName() is legacy-preview),
+        // so that its timings are not mixed with takePicture() timings
+        mPictureStartTime = SystemClock.elapsedRealtime();
+        mMetricsRecorder.record(MetricsRecorder.CAMERA_PREVIEW_PREFIX + getName(), mPictureStartTime - mPreviewStartTime);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        YuvImage yuvImage = new YuvImage(data, ImageFormat.NV21, mPreviewWidth, mPreviewHeight, null);
+        yuvImage.compressToJpeg(new Rect(0, 0, mPreviewWidth, mPreviewHeight), mJpegQuality, out);
+
+        mMetricsRecorder.record(MetricsRecorder.CAMERA_FRAME_PREFIX + getName(), SystemClock.elapsedRealtime() - mPictureStartTime);
+
+        // Photo is taken, we should release the camera.
+        releaseCamera();
+
+        onPhotoCaptured(out.toByteArray());
+    }
+
+    // Pass taken photo to the listener and switch to the next camera
+    private void onPhotoCaptured(byte[] jpegData) {
+        if (mCaptureListener == null) {
+            // Capture has been cancelled
+            return;
+        }
+
+        // Camera doesn't rotate JPEG data (Camera.Parameters.setRotation() is not used)
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        Camera.getCameraInfo(mCurrentCamera, cameraInfo);
+
+        mCaptureListener.onPhotoCaptured(String.valueOf(mCurrentCamera), getFacing(mCurrentCamera), jpegData,
+                cameraInfo.orientation);
+
+        // Switch to next camera
+        mCurrentCamera++;
+
+        if (mCurrentCamera < mNumberOfCameras) {
+            // Didn't use all available cameras.
+            // Take photo from this camera.
+            takePhotoFromCamera(mCurrentCamera);
+        } else {
+            // Used all available cameras.
+            reportSuccess();
+        }
+    }
+
+    // Return facing of the camera with provided ID
+    private int getFacing(int cameraId) {
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        Camera.getCameraInfo(cameraId, cameraInfo);
+
+        return cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT
+                ? Photo.FACING_FRONT
+                : Photo.FACING_BACK;
+    }
+
+    // Report success to the listener
+    private void reportSuccess() {
+        if (mCaptureListener != null) {
+            CaptureListener listener = mCaptureListener;
+            unregisterListener();
+            listener.onCaptureComplete();
+        }
+    }
+
+    // Report error to the listener
+    private void reportError() {
+        if (mCaptureListener != null) {
+            CaptureListener listener = mCaptureListener;
+            unregisterListener();
+            listener.onCaptureError();
+        }
+    }
+
+    // Unregister listener
+    private void unregisterListener() {
+        mCaptureListener = null;
+    }
+}
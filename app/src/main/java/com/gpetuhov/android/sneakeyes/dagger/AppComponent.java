@@ -1,6 +1,10 @@
 package com.gpetuhov.android.sneakeyes.dagger;
 
+import com.gpetuhov.android.sneakeyes.MetricsFragment;
+import com.gpetuhov.android.sneakeyes.MotionWatchService;
 import com.gpetuhov.android.sneakeyes.SettingsFragment;
+import com.gpetuhov.android.sneakeyes.SneakJobService;
+import com.gpetuhov.android.sneakeyes.SneakEyesApp;
 import com.gpetuhov.android.sneakeyes.SneakingService;
 import com.gpetuhov.android.sneakeyes.StartupReceiver;
 
@@ -15,4 +19,8 @@ public interface AppComponent {
     void inject(SneakingService sneakingService);
     void inject(SettingsFragment settingsFragment);
     void inject(StartupReceiver startupReceiver);
+    void inject(SneakEyesApp sneakEyesApp);
+    void inject(SneakJobService sneakJobService);
+    void inject(MetricsFragment metricsFragment);
+    void inject(MotionWatchService motionWatchService);
 }
\ No newline at end of file
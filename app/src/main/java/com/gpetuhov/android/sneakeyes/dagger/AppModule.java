@@ -4,17 +4,28 @@ import android.app.Application;
 import android.content.SharedPreferences;
 import android.support.v7.preference.PreferenceManager;
 
+import com.gpetuhov.android.sneakeyes.AdaptiveEncoder;
+import com.gpetuhov.android.sneakeyes.BitmapPool;
+import com.gpetuhov.android.sneakeyes.CaptureSpool;
+import com.gpetuhov.android.sneakeyes.DuplicatePhotoFilter;
+import com.gpetuhov.android.sneakeyes.GoogleApiClientManager;
 import com.gpetuhov.android.sneakeyes.LocationFetcher;
+import com.gpetuhov.android.sneakeyes.PhotoCompositor;
 import com.gpetuhov.android.sneakeyes.PhotoTaker;
 import com.gpetuhov.android.sneakeyes.PhotoUploader;
+import com.gpetuhov.android.sneakeyes.metrics.MetricsRecorder;
+import com.gpetuhov.android.sneakeyes.uploadcore.StreamingUploader;
 import com.gpetuhov.android.sneakeyes.utils.UtilsPrefs;
+import com.gpetuhov.android.sneakeyes.vk.UploadServerCache;
+import com.gpetuhov.android.sneakeyes.vk.VKRequestGovernor;
 
 import javax.inject.Singleton;
 
 import dagger.Module;
 import dagger.Provides;
 
-// Dagger module tells, what instances will be instantiated
+// Dagger module tells, what instances will be instantiated.
+// Singletons are instantiated on first injection, or on first Lazy.get(), if they are injected as Lazy.
 @Module
 public class AppModule {
 
@@ -50,24 +61,107 @@ public class AppModule {
     // Returns instance of PhotoTaker
     @Provides
     @Singleton
-    PhotoTaker providesPhotoTaker(Application application) {
-        PhotoTaker photoTaker = new PhotoTaker(application);
+    PhotoTaker providesPhotoTaker(Application application, BitmapPool bitmapPool, MetricsRecorder metricsRecorder) {
+        PhotoTaker photoTaker = new PhotoTaker(application, bitmapPool, metricsRecorder);
         return photoTaker;
     }
 
     // Returns instance of PhotoUploader
     @Provides
     @Singleton
-    PhotoUploader providesPhotoUploader() {
-        PhotoUploader photoUploader = new PhotoUploader();
+    PhotoUploader providesPhotoUploader(VKRequestGovernor vkRequestGovernor, StreamingUploader streamingUploader,
+                                        UploadServerCache uploadServerCache, MetricsRecorder metricsRecorder) {
+        PhotoUploader photoUploader =
+                new PhotoUploader(vkRequestGovernor, streamingUploader, uploadServerCache, metricsRecorder);
         return photoUploader;
     }
 
+    // Returns instance of StreamingUploader
+    @Provides
+    @Singleton
+    StreamingUploader providesStreamingUploader() {
+        StreamingUploader streamingUploader = new StreamingUploader();
+        return streamingUploader;
+    }
+
+    // Returns instance of UploadServerCache
+    @Provides
+    @Singleton
+    UploadServerCache providesUploadServerCache(Application application) {
+        UploadServerCache uploadServerCache = new UploadServerCache(application);
+        return uploadServerCache;
+    }
+
+    // Returns instance of VKRequestGovernor
+    @Provides
+    @Singleton
+    VKRequestGovernor providesVKRequestGovernor() {
+        VKRequestGovernor vkRequestGovernor = new VKRequestGovernor();
+        return vkRequestGovernor;
+    }
+
     // Returns instance of LocationFetcher
     @Provides
     @Singleton
-    LocationFetcher providesLocationFetcher(Application application) {
-        LocationFetcher locationFetcher = new LocationFetcher(application);
+    LocationFetcher providesLocationFetcher(Application application, GoogleApiClientManager googleApiClientManager,
+                                            MetricsRecorder metricsRecorder) {
+        LocationFetcher locationFetcher = new LocationFetcher(application, googleApiClientManager, metricsRecorder);
         return locationFetcher;
     }
+
+    // Returns instance of GoogleApiClientManager
+    @Provides
+    @Singleton
+    GoogleApiClientManager providesGoogleApiClientManager(Application application) {
+        GoogleApiClientManager googleApiClientManager = new GoogleApiClientManager(application);
+        return googleApiClientManager;
+    }
+
+    // Returns instance of CaptureSpool
+    @Provides
+    @Singleton
+    CaptureSpool providesCaptureSpool(Application application) {
+        CaptureSpool captureSpool = new CaptureSpool(application);
+        return captureSpool;
+    }
+
+    // Returns instance of BitmapPool
+    @Provides
+    @Singleton
+    BitmapPool providesBitmapPool() {
+        BitmapPool bitmapPool = new BitmapPool(BitmapPool.DEFAULT_MAX_BYTES);
+        return bitmapPool;
+    }
+
+    // Returns instance of AdaptiveEncoder
+    @Provides
+    @Singleton
+    AdaptiveEncoder providesAdaptiveEncoder(Application application) {
+        AdaptiveEncoder adaptiveEncoder = new AdaptiveEncoder(application);
+        return adaptiveEncoder;
+    }
+
+    // Returns instance of DuplicatePhotoFilter
+    @Provides
+    @Singleton
+    DuplicatePhotoFilter providesDuplicatePhotoFilter(Application application) {
+        DuplicatePhotoFilter duplicatePhotoFilter = new DuplicatePhotoFilter(application);
+        return duplicatePhotoFilter;
+    }
+
+    // Returns instance of PhotoCompositor
+    @Provides
+    @Singleton
+    PhotoCompositor providesPhotoCompositor(BitmapPool bitmapPool) {
+        PhotoCompositor photoCompositor = new PhotoCompositor(bitmapPool);
+        return photoCompositor;
+    }
+
+    // Returns instance of MetricsRecorder
+    @Provides
+    @Singleton
+    MetricsRecorder providesMetricsRecorder(Application application) {
+        MetricsRecorder metricsRecorder = new MetricsRecorder(application);
+        return metricsRecorder;
+    }
 }
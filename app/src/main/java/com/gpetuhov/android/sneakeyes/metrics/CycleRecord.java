@@ -0,0 +1,106 @@
+package com.gpetuhov.android.sneakeyes.metrics;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Metrics of one sneak cycle.
+// Every metric may have several samples in one cycle (for example, one for every camera).
+public class CycleRecord {
+
+    // JSON field names
+    private static final String JSON_START_TIME = "startTime";
+    private static final String JSON_TYPE = "type";
+    private static final String JSON_RESULT = "result";
+    private static final String JSON_METRICS = "metrics";
+
+    // Wall clock time, when the cycle started
+    private long mStartTime;
+
+    // Cycle type (capture or drain)
+    private String mType;
+
+    // Cycle result (ok or name of the failed stage)
+    private String mResult;
+
+    // Samples of every metric in recording order
+    private Map<String, List<Long>> mSamples = new LinkedHashMap<>();
+
+    public CycleRecord(long startTime, String type) {
+        mStartTime = startTime;
+        mType = type;
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public String getType() {
+        return mType;
+    }
+
+    public String getResult() {
+        return mResult;
+    }
+
+    public void setResult(String result) {
+        mResult = result;
+    }
+
+    // Add sample of the metric
+    public void addSample(String name, long value) {
+        List<Long> samples = mSamples.get(name);
+
+        if (samples == null) {
+            samples = new ArrayList<>();
+            mSamples.put(name, samples);
+        }
+
+        samples.add(value);
+    }
+
+    // Return samples of every metric
+    public Map<String, List<Long>> getSamples() {
+        return mSamples;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject metrics = new JSONObject();
+        for (Map.Entry<String, List<Long>> entry : mSamples.entrySet()) {
+            metrics.put(entry.getKey(), new JSONArray(entry.getValue()));
+        }
+
+        JSONObject json = new JSONObject();
+        json.put(JSON_START_TIME, mStartTime);
+        json.put(JSON_TYPE, mType);
+        json.put(JSON_RESULT, mResult);
+        json.put(JSON_METRICS, metrics);
+
+        return json;
+    }
+
+    public static CycleRecord fromJson(JSONObject json) throws JSONException {
+        CycleRecord record = new CycleRecord(json.getLong(JSON_START_TIME), json.getString(JSON_TYPE));
+        record.setResult(json.optString(JSON_RESULT, null));
+
+        JSONObject metrics = json.getJSONObject(JSON_METRICS);
+        Iterator<String> names = metrics.keys();
+
+        while (names.hasNext()) {
+            String name = names.next();
+            JSONArray samples = metrics.getJSONArray(name);
+
+            for (int i = 0; i < samples.length(); i++) {
+                record.addSample(name, samples.getLong(i));
+            }
+        }
+
+        return record;
+    }
+}
@@ -0,0 +1,73 @@
+package com.gpetuhov.android.sneakeyes.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Distribution of one metric over recorded cycles (count and percentiles)
+public class MetricSummary {
+
+    private String mName;
+    private int mCount;
+    private long mP50;
+    private long mP90;
+    private long mP99;
+    private long mMax;
+
+    // Create summary of provided samples
+    public MetricSummary(String name, List<Long> samples) {
+        mName = name;
+        mCount = samples.size();
+
+        long[] sorted = new long[samples.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+
+        mP50 = percentile(sorted, 50);
+        mP90 = percentile(sorted, 90);
+        mP99 = percentile(sorted, 99);
+        mMax = sorted.length > 0 ? sorted[sorted.length - 1] : 0;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getP50() {
+        return mP50;
+    }
+
+    public long getP90() {
+        return mP90;
+    }
+
+    public long getP99() {
+        return mP99;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%-16s n=%-4d p50=%-8d p90=%-8d p99=%-8d max=%d",
+                mName, mCount, mP50, mP90, mP99, mMax);
+    }
+
+    // Return percentile of sorted samples (nearest rank method)
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+}
@@ -0,0 +1,268 @@
+package com.gpetuhov.android.sneakeyes.metrics;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+// Records metrics of sneak cycles (stage latencies, bytes uploaded, peak heap, wake duration).
+// Components record samples with record(), samples go into the current cycle (if any).
+// Last cycles are kept in a bounded ring buffer, which is saved to file after every cycle,
+// so metrics survive process restarts.
+// Metrics can be exported as CSV (one row per sample) or JSON (one object per cycle).
+// All methods may be called from any thread.
+
+// Sequence of execution: 1. beginCycle(), 2. record() (many times), 3. endCycle()
+
+public class MetricsRecorder {
+
+    private static final String TAG = "MetricsRecorder";
+
+    // Default number of cycles kept
+    public static final int DEFAULT_CAPACITY = 100;
+
+    // Name of the file with recorded cycles
+    private static final String METRICS_FILE_NAME = "metrics.json";
+
+    // Cycle types
+    public static final String CYCLE_CAPTURE = "capture";
+    public static final String CYCLE_DRAIN = "drain";
+    public static final String CYCLE_MOTION = "motion";
+    // Capture cycle, that uploads photos while taking them
+    public static final String CYCLE_STREAM = "stream";
+
+    // Cycle results
+    public static final String RESULT_OK = "ok";
+
+    // Metric names (durations in milliseconds, sizes in bytes)
+    public static final String STAGE_PREFIX = "stage.";
+    // Camera latencies are recorded per backend (prefix + backend name, for example camera.picture.camera2)
+    public static final String CAMERA_OPEN_PREFIX = "camera.open.";
+    public static final String CAMERA_PREVIEW_PREFIX = "camera.preview.";
+    public static final String CAMERA_PICTURE_PREFIX = "camera.picture.";
+    // Compression of the preview frame to JPEG (instead of picture in preview frame mode)
+    public static final String CAMERA_FRAME_PREFIX = "camera.frame.";
+    public static final String PHOTO_DECODE = "photo.decode";
+    public static final String PHOTO_BYTES = "photo.bytes";
+    // Index of the encoding profile of the cycle (0 is the largest profile)
+    public static final String PHOTO_PROFILE = "photo.profile";
+    public static final String PHOTO_HASH = "photo.hash";
+    public static final String PHOTO_DUPLICATES = "photo.duplicates";
+    public static final String PHOTO_SCORE = "photo.score";
+    public static final String PHOTO_LOW_INFO = "photo.lowinfo";
+    public static final String PHOTO_COMPOSITE = "photo.composite";
+    public static final String LOCATION_FIX = "location.fix";
+    public static final String UPLOAD_PHOTO = "upload.photo";
+    public static final String UPLOAD_POST = "upload.post";
+    public static final String UPLOAD_SERVER_SAVED = "upload.server.saved";
+    public static final String BYTES_UPLOADED = "bytes.uploaded";
+    public static final String HEAP_PEAK = "heap.peak";
+    public static final String WAKE_DURATION = "wake.duration";
+    public static final String STARTUP_APP = "startup.app";
+    public static final String STARTUP_CAPTURE = "startup.capture";
+
+    // Motion watching metrics (per hour of watching)
+    public static final String MOTION_CPU = "motion.cpu";
+    public static final String MOTION_FRAMES = "motion.frames";
+    public static final String MOTION_ANALYZED = "motion.analyzed";
+    public static final String MOTION_TRIGGERS = "motion.triggers";
+    public static final String MOTION_BATTERY = "motion.battery";
+
+    // File with recorded cycles
+    private File mMetricsFile;
+
+    // Maximum number of cycles kept
+    private int mCapacity = DEFAULT_CAPACITY;
+
+    // Recorded cycles from oldest to newest (loaded from file on first access)
+    private LinkedList<CycleRecord> mCycles;
+
+    // Cycle, that is being recorded now
+    private CycleRecord mCurrentCycle;
+
+    public MetricsRecorder(Context context) {
+        mMetricsFile = new File(context.getFilesDir(), METRICS_FILE_NAME);
+    }
+
+    // Set maximum number of cycles kept
+    public synchronized void setCapacity(int capacity) {
+        mCapacity = Math.max(capacity, 1);
+    }
+
+    // Start recording new cycle of provided type
+    public synchronized void beginCycle(String type) {
+        mCurrentCycle = new CycleRecord(System.currentTimeMillis(), type);
+    }
+
+    // Add sample to the current cycle (ignored, if no cycle is being recorded)
+    public synchronized void record(String name, long value) {
+        if (mCurrentCycle != null) {
+            mCurrentCycle.addSample(name, value);
+        }
+    }
+
+    // Finish current cycle with provided result and save it
+    public synchronized void endCycle(String result) {
+        if (mCurrentCycle == null) {
+            return;
+        }
+
+        mCurrentCycle.setResult(result);
+        addCycle(mCurrentCycle);
+        mCurrentCycle = null;
+    }
+
+    // Save cycle, that has been recorded separately
+    // (for example, by long running component, that must not interfere with the current cycle)
+    public synchronized void addCycle(CycleRecord cycle) {
+        List<CycleRecord> cycles = getCyclesInternal();
+        cycles.add(cycle);
+
+        while (cycles.size() > mCapacity) {
+            cycles.remove(0);
+        }
+
+        save();
+    }
+
+    // Return recorded cycles from oldest to newest
+    public synchronized List<CycleRecord> getCycles() {
+        return new ArrayList<>(getCyclesInternal());
+    }
+
+    // Return distribution of every metric over recorded cycles
+    public synchronized List<MetricSummary> getSummaries() {
+        Map<String, List<Long>> allSamples = new LinkedHashMap<>();
+
+        for (CycleRecord cycle : getCyclesInternal()) {
+            for (Map.Entry<String, List<Long>> entry : cycle.getSamples().entrySet()) {
+                List<Long> samples = allSamples.get(entry.getKey());
+
+                if (samples == null) {
+                    samples = new ArrayList<>();
+                    allSamples.put(entry.getKey(), samples);
+                }
+
+                samples.addAll(entry.getValue());
+            }
+        }
+
+        List<MetricSummary> summaries = new ArrayList<>();
+        for (Map.Entry<String, List<Long>> entry : allSamples.entrySet()) {
+            summaries.add(new MetricSummary(entry.getKey(), entry.getValue()));
+        }
+
+        return summaries;
+    }
+
+    // Write recorded cycles to file as CSV (one row per sample)
+    public synchronized void exportCsv(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+
+        try {
+            writer.write("start_time,type,result,metric,value\n");
+
+            for (CycleRecord cycle : getCyclesInternal()) {
+                String prefix = cycle.getStartTime() + "," + cycle.getType() + "," + cycle.getResult() + ",";
+
+                for (Map.Entry<String, List<Long>> entry : cycle.getSamples().entrySet()) {
+                    for (Long value : entry.getValue()) {
+                        writer.write(prefix + entry.getKey() + "," + value + "\n");
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Write recorded cycles to file as JSON array
+    public synchronized void exportJson(File file) throws IOException {
+        try {
+            writeString(file, toJson().toString(2));
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private List<CycleRecord> getCyclesInternal() {
+        if (mCycles == null) {
+            mCycles = new LinkedList<>();
+            load();
+        }
+        return mCycles;
+    }
+
+    private JSONArray toJson() throws JSONException {
+        JSONArray json = new JSONArray();
+        for (CycleRecord cycle : getCyclesInternal()) {
+            json.put(cycle.toJson());
+        }
+        return json;
+    }
+
+    private void save() {
+        try {
+            writeString(mMetricsFile, toJson().toString());
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error saving metrics", e);
+        }
+    }
+
+    private void load() {
+        if (!mMetricsFile.exists()) {
+            return;
+        }
+
+        try {
+            JSONArray json = new JSONArray(readString(mMetricsFile));
+
+            for (int i = 0; i < json.length(); i++) {
+                mCycles.add(CycleRecord.fromJson(json.getJSONObject(i)));
+            }
+        } catch (IOException | JSONException e) {
+            // Broken file, start over
+            Log.e(TAG, "Error loading metrics", e);
+            mCycles.clear();
+        }
+    }
+
+    private static void writeString(File file, String string) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(string);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String readString(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.gpetuhov.android.sneakeyes.pipeline;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Stage, that runs several stages at the same time and completes, when all of them are done.
+// Every inner stage keeps its own deadline.
+// Failure of a required inner stage fails this stage (other inner stages are cancelled),
+// failure of an optional inner stage is ignored.
+// Saved time (sum of inner stage durations minus duration of this stage) is reported.
+public class ParallelStage extends Stage {
+
+    private static final String TAG = "ParallelStage";
+
+    // Handler of the pipeline thread
+    private Handler mHandler;
+
+    // Inner stages
+    private List<Stage> mStages;
+
+    // Inner stages, that are still running
+    private List<Stage> mRunningStages = new ArrayList<>();
+
+    // Incremented on every start and cancel, so that late results are ignored
+    private int mToken;
+
+    private StageCallback mCallback;
+
+    // Start time of this stage and sum of inner stage durations
+    private long mStartTime;
+    private long mSequentialTime;
+
+    // Time saved by running inner stages in parallel during the last run in milliseconds
+    private long mSavedTime;
+
+    public ParallelStage(String name, Handler handler, Stage... stages) {
+        super(name, getMaxDeadline(stages), isAnyRequired(stages));
+        mHandler = handler;
+        mStages = Arrays.asList(stages);
+    }
+
+    // Return time saved by running inner stages in parallel during the last run
+    public long getSavedTime() {
+        return mSavedTime;
+    }
+
+    @Override
+    public void start(StageCallback callback) {
+        mCallback = callback;
+        mStartTime = SystemClock.elapsedRealtime();
+        mSequentialTime = 0;
+        mSavedTime = 0;
+
+        final int token = ++mToken;
+
+        mRunningStages.clear();
+        mRunningStages.addAll(mStages);
+
+        for (final Stage stage : mStages) {
+            // Cancel inner stage, if it doesn't finish before its deadline
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (isRunning(token, stage)) {
+                        Log.w(TAG, "Stage " + stage.getName() + " exceeded deadline of " + stage.getDeadline() + " ms");
+                        stage.cancel();
+                        onInnerStageFinished(stage, false);
+                    }
+                }
+            }, stage.getDeadline());
+
+            stage.start(new StageCallback() {
+                @Override
+                public void onStageComplete() {
+                    postResult(token, stage, true);
+                }
+
+                @Override
+                public void onStageError() {
+                    postResult(token, stage, false);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void cancel() {
+        mToken++;
+
+        for (Stage stage : mRunningStages) {
+            stage.cancel();
+        }
+        mRunningStages.clear();
+    }
+
+    // Pass inner stage result to the pipeline thread
+    private void postResult(final int token, final Stage stage, final boolean success) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isRunning(token, stage)) {
+                    onInnerStageFinished(stage, success);
+                }
+            }
+        });
+    }
+
+    private void onInnerStageFinished(Stage stage, boolean success) {
+        mRunningStages.remove(stage);
+        mSequentialTime += SystemClock.elapsedRealtime() - mStartTime;
+
+        if (!success && stage.isRequired()) {
+            // Nothing to wait for
+            cancel();
+            mCallback.onStageError();
+            return;
+        }
+
+        if (mRunningStages.isEmpty()) {
+            long parallelTime = SystemClock.elapsedRealtime() - mStartTime;
+            mSavedTime = mSequentialTime - parallelTime;
+
+            Log.d(TAG, "Stage " + getName() + " took " + parallelTime + " ms instead of "
+                    + mSequentialTime + " ms (saved " + mSavedTime + " ms)");
+
+            mCallback.onStageComplete();
+        }
+    }
+
+    private boolean isRunning(int token, Stage stage) {
+        return token == mToken && mRunningStages.contains(stage);
+    }
+
+    private static long getMaxDeadline(Stage[] stages) {
+        long maxDeadline = 0;
+        for (Stage stage : stages) {
+            maxDeadline = Math.max(maxDeadline, stage.getDeadline());
+        }
+        return maxDeadline;
+    }
+
+    private static boolean isAnyRequired(Stage[] stages) {
+        for (Stage stage : stages) {
+            if (stage.isRequired()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,231 @@
+package com.gpetuhov.android.sneakeyes.pipeline;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs stages one after another on the thread of the provided Handler.
+// Every stage has its own deadline, and the whole pipeline has end-to-end budget.
+// When the deadline or the budget is reached, current stage is cancelled.
+// Stage results may come from any thread, they are always handled on the pipeline thread.
+// User of Pipeline must implement PipelineListener to receive callbacks.
+// StageListener (optional) is notified about every stage transition.
+
+// Sequence of execution: 1. addStage(), 2. start(), 3. onPipelineComplete() or onPipelineError()
+
+public class Pipeline {
+
+    private static final String TAG = "Pipeline";
+
+    // Handler of the pipeline thread
+    private Handler mHandler;
+
+    // End-to-end budget of the pipeline in milliseconds
+    private long mBudget;
+
+    // Stages in execution order
+    private List<Stage> mStages = new ArrayList<>();
+
+    // Index of the running stage
+    private int mCurrentStage = -1;
+
+    // Incremented on every stage start, so that late results of the previous stages are ignored
+    private int mStageToken;
+
+    // True while the pipeline is running
+    private boolean mRunning;
+
+    // Pipeline start time
+    private long mStartTime;
+
+    // Start time of the running stage
+    private long mStageStartTime;
+
+    // Keeps reference to the listener to Pipeline
+    private PipelineListener mPipelineListener;
+
+    // Keeps reference to the listener to stage transitions
+    private StageListener mStageListener;
+
+    // Runs, when end-to-end budget is over
+    private Runnable mBudgetRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mRunning) {
+                Log.w(TAG, "Pipeline budget of " + mBudget + " ms is over");
+                cancelCurrentStage();
+                finish(false, getCurrentStageName());
+            }
+        }
+    };
+
+    // User of Pipeline must implement this interface to receive callbacks.
+    // Callbacks are called on the pipeline thread.
+    public interface PipelineListener {
+        void onPipelineComplete();
+        void onPipelineError(String failedStageName);
+    }
+
+    // User of Pipeline may implement this interface to receive stage transitions.
+    // Callbacks are called on the pipeline thread.
+    public interface StageListener {
+        void onStageFinished(String stageName, long duration, boolean success);
+    }
+
+    public Pipeline(Handler handler, long budget) {
+        mHandler = handler;
+        mBudget = budget;
+    }
+
+    // Add stage to the end of the pipeline
+    public Pipeline addStage(Stage stage) {
+        mStages.add(stage);
+        return this;
+    }
+
+    // Set listener to stage transitions (must be called before start())
+    public Pipeline setStageListener(StageListener listener) {
+        mStageListener = listener;
+        return this;
+    }
+
+    // Start the pipeline. May be called from any thread.
+    public void start(PipelineListener listener) {
+        mPipelineListener = listener;
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = true;
+                mStartTime = SystemClock.elapsedRealtime();
+                mHandler.postDelayed(mBudgetRunnable, mBudget);
+                startNextStage();
+            }
+        });
+    }
+
+    // Cancel the pipeline. Listener is not called after cancellation.
+    // May be called from any thread.
+    public void cancel() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning) {
+                    cancelCurrentStage();
+                    mPipelineListener = null;
+                    finish(false, getCurrentStageName());
+                }
+            }
+        });
+    }
+
+    private void startNextStage() {
+        mCurrentStage++;
+
+        if (mCurrentStage >= mStages.size()) {
+            // All stages done
+            finish(true, null);
+            return;
+        }
+
+        final Stage stage = mStages.get(mCurrentStage);
+        final int token = ++mStageToken;
+
+        mStageStartTime = SystemClock.elapsedRealtime();
+
+        // Cancel the stage, if it doesn't finish before its deadline
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (isCurrent(token)) {
+                    Log.w(TAG, "Stage " + stage.getName() + " exceeded deadline of " + stage.getDeadline() + " ms");
+                    stage.cancel();
+                    onStageFinished(stage, false);
+                }
+            }
+        }, stage.getDeadline());
+
+        stage.start(new Stage.StageCallback() {
+            @Override
+            public void onStageComplete() {
+                postResult(token, stage, true);
+            }
+
+            @Override
+            public void onStageError() {
+                postResult(token, stage, false);
+            }
+        });
+    }
+
+    // Pass stage result to the pipeline thread
+    private void postResult(final int token, final Stage stage, final boolean success) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCurrent(token)) {
+                    onStageFinished(stage, success);
+                }
+            }
+        });
+    }
+
+    private void onStageFinished(Stage stage, boolean success) {
+        // Results of this stage must not be handled anymore
+        mStageToken++;
+
+        notifyStageFinished(stage, success);
+
+        if (success || !stage.isRequired()) {
+            startNextStage();
+        } else {
+            finish(false, stage.getName());
+        }
+    }
+
+    private void cancelCurrentStage() {
+        if (mCurrentStage >= 0 && mCurrentStage < mStages.size()) {
+            mStageToken++;
+            mStages.get(mCurrentStage).cancel();
+            notifyStageFinished(mStages.get(mCurrentStage), false);
+        }
+    }
+
+    private void notifyStageFinished(Stage stage, boolean success) {
+        if (mStageListener != null) {
+            mStageListener.onStageFinished(stage.getName(), SystemClock.elapsedRealtime() - mStageStartTime, success);
+        }
+    }
+
+    private void finish(boolean success, String failedStageName) {
+        mRunning = false;
+        mHandler.removeCallbacks(mBudgetRunnable);
+
+        Log.d(TAG, "Pipeline " + (success ? "completed" : "failed at " + failedStageName)
+                + " in " + (SystemClock.elapsedRealtime() - mStartTime) + " ms");
+
+        PipelineListener listener = mPipelineListener;
+        mPipelineListener = null;
+
+        if (listener != null) {
+            if (success) {
+                listener.onPipelineComplete();
+            } else {
+                listener.onPipelineError(failedStageName);
+            }
+        }
+    }
+
+    private boolean isCurrent(int token) {
+        return mRunning && token == mStageToken;
+    }
+
+    private String getCurrentStageName() {
+        return mCurrentStage >= 0 && mCurrentStage < mStages.size()
+                ? mStages.get(mCurrentStage).getName()
+                : null;
+    }
+}
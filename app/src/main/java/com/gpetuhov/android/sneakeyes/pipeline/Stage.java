@@ -0,0 +1,51 @@
+package com.gpetuhov.android.sneakeyes.pipeline;
+
+// One asynchronous step of the Pipeline.
+// Stage must report result through StageCallback (from any thread).
+// If the stage doesn't report result before its deadline, it is cancelled.
+// Failure of a required stage stops the pipeline,
+// failure of an optional stage is ignored and the pipeline goes on.
+public abstract class Stage {
+
+    // Stage name (used in logs and metrics)
+    private String mName;
+
+    // Maximum duration of the stage in milliseconds
+    private long mDeadline;
+
+    // True if the pipeline can't go on without this stage
+    private boolean mRequired;
+
+    // Stage reports its result to the pipeline through this interface
+    public interface StageCallback {
+        void onStageComplete();
+        void onStageError();
+    }
+
+    public Stage(String name, long deadline, boolean required) {
+        mName = name;
+        mDeadline = deadline;
+        mRequired = required;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    public boolean isRequired() {
+        return mRequired;
+    }
+
+    // Start stage work. Called on the pipeline thread.
+    public abstract void start(StageCallback callback);
+
+    // Stop stage work and release resources.
+    // Called on the pipeline thread, if deadline is reached or the pipeline is cancelled.
+    public void cancel() {
+        // Nothing to cancel by default
+    }
+}
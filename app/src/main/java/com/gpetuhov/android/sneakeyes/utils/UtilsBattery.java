@@ -0,0 +1,38 @@
+package com.gpetuhov.android.sneakeyes.utils;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+// Battery utilities
+public class UtilsBattery {
+    // Return "true" if the device is connected to a charger
+    public static boolean isCharging(Context context) {
+
+        // Battery status is a sticky broadcast, so no receiver is needed to read it
+        Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+        if (batteryStatus == null) {
+            return false;
+        }
+
+        int plugged = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+
+        return plugged != 0;
+    }
+
+    // Return battery level in percent (or -1, if unknown)
+    public static int getLevel(Context context) {
+        Intent batteryStatus = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+        if (batteryStatus == null) {
+            return -1;
+        }
+
+        int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+
+        return level >= 0 && scale > 0 ? level * 100 / scale : -1;
+    }
+}
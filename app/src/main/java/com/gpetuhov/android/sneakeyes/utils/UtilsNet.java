@@ -3,9 +3,19 @@ package com.gpetuhov.android.sneakeyes.utils;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.telephony.TelephonyManager;
 
 // Network utilities
 public class UtilsNet {
+
+    // Network classes
+    public static final int NETWORK_NONE = 0;
+    public static final int NETWORK_SLOW_MOBILE = 1;   // 2G (GPRS, EDGE, CDMA, 1xRTT, iDEN)
+    public static final int NETWORK_FAST_MOBILE = 2;   // 3G and newer
+    public static final int NETWORK_WIFI = 3;          // WiFi, Ethernet and others
+    public static final int NETWORK_CLASS_COUNT = 4;
+
     // Return "true" if network is available and connected
     public static boolean isNetworkAvailableAndConnected(Context context) {
 
@@ -26,4 +36,39 @@ public class UtilsNet {
 
         return isThereNetworkInfo && isNetworkConnected;
     }
+
+    // Return class of the active network (one of NETWORK_* values)
+    public static int getNetworkClass(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return NETWORK_NONE;
+        }
+
+        if (networkInfo.getType() != ConnectivityManager.TYPE_MOBILE) {
+            return NETWORK_WIFI;
+        }
+
+        switch (networkInfo.getSubtype()) {
+            case TelephonyManager.NETWORK_TYPE_GPRS:
+            case TelephonyManager.NETWORK_TYPE_EDGE:
+            case TelephonyManager.NETWORK_TYPE_CDMA:
+            case TelephonyManager.NETWORK_TYPE_1xRTT:
+            case TelephonyManager.NETWORK_TYPE_IDEN:
+                return NETWORK_SLOW_MOBILE;
+            default:
+                return NETWORK_FAST_MOBILE;
+        }
+    }
+
+    // Return "true" if the active network is metered (user may pay for traffic)
+    public static boolean isNetworkMetered(Context context) {
+        ConnectivityManager connMgr = (ConnectivityManager)
+                context.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+        return ConnectivityManagerCompat.isActiveNetworkMetered(connMgr);
+    }
 }
@@ -42,6 +42,123 @@ public class UtilsPrefs {
         return Integer.parseInt(intervalString);
     }
 
+    // Return true if location must be fetched at the same time with taking photos
+    public boolean isParallelLocationEnabled() {
+        return mSharedPreferences.getBoolean(mContext.getString(R.string.pref_parallel_location_key), true);
+    }
+
+    // Return true if photos must be uploaded while next photos are being taken
+    public boolean isOverlappedUploadEnabled() {
+        return mSharedPreferences.getBoolean(mContext.getString(R.string.pref_overlap_key), false);
+    }
+
+    // Return true if photos must be taken from camera preview frames
+    public boolean isPreviewFrameModeEnabled() {
+        return mSharedPreferences.getBoolean(mContext.getString(R.string.pref_preview_frame_key), false);
+    }
+
+    // Get camera backend from SharedPreferences
+    public String getCameraBackend() {
+        return mSharedPreferences.getString(
+                mContext.getString(R.string.pref_camera_backend_key),
+                mContext.getString(R.string.pref_camera_backend_value_auto));
+    }
+
+    // Return true if photos of several cycles must be posted in one wall post
+    public boolean isBatchPostEnabled() {
+        return mSharedPreferences.getBoolean(mContext.getString(R.string.pref_batch_key), false);
+    }
+
+    // Get maximum number of photos in one batch post from SharedPreferences
+    public int getBatchSize() {
+        String batchSizeString = mSharedPreferences.getString(
+                mContext.getString(R.string.pref_batch_size_key),
+                mContext.getString(R.string.pref_batch_size_value_3));
+
+        return Integer.parseInt(batchSizeString);
+    }
+
+    // Get maximum time (in minutes), that photos wait for batch post, from SharedPreferences
+    public int getBatchWindow() {
+        String batchWindowString = mSharedPreferences.getString(
+                mContext.getString(R.string.pref_batch_window_key),
+                mContext.getString(R.string.pref_batch_window_value_2));
+
+        return Integer.parseInt(batchWindowString);
+    }
+
+    // Return true if photos must be uploaded on unmetered network (WiFi) only
+    public boolean isUnmeteredUploadOnly() {
+        return mSharedPreferences.getBoolean(mContext.getString(R.string.pref_upload_unmetered_key), false);
+    }
+
+    // Return true if photos must be uploaded only while the device is charging
+    public boolean isChargingUploadOnly() {
+        return mSharedPreferences.getBoolean(mContext.getString(R.string.pref_upload_charging_key), false);
+    }
+
+    // Return true if photos of unchanged scenes must not be posted
+    public boolean isDuplicateSkipEnabled() {
+        return mSharedPreferences.getBoolean(mContext.getString(R.string.pref_dedupe_key), false);
+    }
+
+    // Get maximum Hamming distance between perceptual hashes of the same scene from SharedPreferences
+    public int getDuplicateDistance() {
+        String distanceString = mSharedPreferences.getString(
+                mContext.getString(R.string.pref_dedupe_distance_key),
+                mContext.getString(R.string.pref_dedupe_distance_value_2));
+
+        return Integer.parseInt(distanceString);
+    }
+
+    // Return number of wakeups, when nothing could be done
+    public int getWastedWakeupCount() {
+        return mSharedPreferences.getInt(mContext.getString(R.string.pref_wasted_wakeups_key), 0);
+    }
+
+    // Count one more wakeup, when nothing could be done
+    public void incrementWastedWakeupCount() {
+        mSharedPreferences
+                .edit()
+                .putInt(mContext.getString(R.string.pref_wasted_wakeups_key), getWastedWakeupCount() + 1)
+                .apply();
+    }
+
+    // Return true if photos with nothing to see must not be posted
+    public boolean isLowInfoSkipEnabled() {
+        return mSharedPreferences.getBoolean(mContext.getString(R.string.pref_scene_key), false);
+    }
+
+    // Get minimum information score of posted photos from SharedPreferences
+    public int getMinSceneScore() {
+        String scoreString = mSharedPreferences.getString(
+                mContext.getString(R.string.pref_scene_score_key),
+                mContext.getString(R.string.pref_scene_score_value_2));
+
+        return Integer.parseInt(scoreString);
+    }
+
+    // Get mode of combining back and front photos into one from SharedPreferences
+    public String getCompositeMode() {
+        return mSharedPreferences.getString(
+                mContext.getString(R.string.pref_composite_key),
+                mContext.getString(R.string.pref_composite_value_off));
+    }
+
+    // Return true if photos must be posted, when motion is detected in camera preview
+    public boolean isMotionTriggerEnabled() {
+        return mSharedPreferences.getBoolean(mContext.getString(R.string.pref_motion_key), false);
+    }
+
+    // Get minimum share of the frame, that must change to trigger motion capture
+    public float getMotionSensitivity() {
+        String sensitivityString = mSharedPreferences.getString(
+                mContext.getString(R.string.pref_motion_sensitivity_key),
+                mContext.getString(R.string.pref_motion_sensitivity_value_2));
+
+        return Float.parseFloat(sensitivityString);
+    }
+
     // Run true if this is the first run after install
     public boolean isFirstRun() {
         boolean firstRun =
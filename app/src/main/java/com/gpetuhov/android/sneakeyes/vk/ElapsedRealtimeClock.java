@@ -0,0 +1,14 @@
+package com.gpetuhov.android.sneakeyes.vk;
+
+import android.os.SystemClock;
+
+import com.gpetuhov.android.sneakeyes.uploadcore.Clock;
+
+// Clock of uploadcore, that goes on, while the device sleeps
+public class ElapsedRealtimeClock implements Clock {
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,36 @@
+package com.gpetuhov.android.sneakeyes.vk;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.gpetuhov.android.sneakeyes.uploadcore.Scheduler;
+
+// Scheduler of uploadcore, that runs tasks on the Looper thread of the Handler
+public class HandlerScheduler implements Scheduler {
+
+    private Handler mHandler;
+
+    public HandlerScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    // Return scheduler of the calling thread (it must have a Looper)
+    public static HandlerScheduler forCurrentThread() {
+        return new HandlerScheduler(new Handler(Looper.myLooper()));
+    }
+
+    @Override
+    public void post(Runnable task) {
+        mHandler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        mHandler.postDelayed(task, delay);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+}
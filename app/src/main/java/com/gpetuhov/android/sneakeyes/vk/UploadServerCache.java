@@ -0,0 +1,62 @@
+package com.gpetuhov.android.sneakeyes.vk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Keeps wall photo upload server URL (result of photos.getWallUploadServer) of the user,
+// so that it is requested once per TTL instead of once per photo.
+// URL is kept in SharedPreferences, so it survives process restarts between sneak cycles.
+// Cache must be invalidated, when upload to the URL fails or access token changes.
+// All methods may be called from any thread.
+public class UploadServerCache {
+
+    // Time in milliseconds, while cached URL is used
+    public static final long DEFAULT_TTL = 30 * 60 * 1000;
+
+    // Name of SharedPreferences file with cached URL
+    private static final String PREFS_NAME = "upload_server";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_USER_ID = "user_id";
+    private static final String KEY_TIME = "time";
+
+    private SharedPreferences mSharedPreferences;
+
+    private long mTtl = DEFAULT_TTL;
+
+    public UploadServerCache(Context context) {
+        mSharedPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    // Set time in milliseconds, while cached URL is used
+    public synchronized void setTtl(long ttl) {
+        mTtl = ttl;
+    }
+
+    // Return upload URL of the user or null, if there is none or it is expired
+    public synchronized String get(int userId) {
+        String url = mSharedPreferences.getString(KEY_URL, null);
+
+        if (url == null || mSharedPreferences.getInt(KEY_USER_ID, 0) != userId) {
+            return null;
+        }
+
+        // Wall clock is used, because elapsed time restarts on reboot
+        long age = System.currentTimeMillis() - mSharedPreferences.getLong(KEY_TIME, 0);
+
+        return age >= 0 && age < mTtl ? url : null;
+    }
+
+    public synchronized void put(int userId, String url) {
+        mSharedPreferences
+                .edit()
+                .putString(KEY_URL, url)
+                .putInt(KEY_USER_ID, userId)
+                .putLong(KEY_TIME, System.currentTimeMillis())
+                .apply();
+    }
+
+    public synchronized void invalidate() {
+        mSharedPreferences.edit().clear().apply();
+    }
+}
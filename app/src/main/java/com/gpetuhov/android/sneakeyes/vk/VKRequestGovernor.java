@@ -0,0 +1,121 @@
+package com.gpetuhov.android.sneakeyes.vk;
+
+import com.gpetuhov.android.sneakeyes.uploadcore.Cancellable;
+import com.gpetuhov.android.sneakeyes.uploadcore.RequestGovernor;
+import com.gpetuhov.android.sneakeyes.uploadcore.VkApiErrors;
+import com.vk.sdk.api.VKError;
+import com.vk.sdk.api.VKRequest;
+import com.vk.sdk.api.VKResponse;
+
+// Executes VK SDK requests with rate limit, retries and circuit breaker of RequestGovernor (uploadcore).
+// Request is created again by RequestFactory for every attempt,
+// so requests, that must not be repeated (wall.post), must be made idempotent by the factory.
+// Callbacks are called on the thread, that calls execute() (this thread must have a Looper),
+// and never from inside execute() (even if the request is rejected at once).
+
+// Sequence of execution: 1. execute(), 2. RequestFactory.createRequest() (for every attempt),
+// 3. VKRequestListener.onComplete() or onError()
+
+public class VKRequestGovernor extends RequestGovernor<VKResponse, VKError> {
+
+    // Creates new request for every attempt
+    public interface RequestFactory {
+        VKRequest createRequest();
+    }
+
+    // One attempt of VK SDK request
+    private static class VKCall implements Call<VKResponse, VKError> {
+
+        private VKRequest mRequest;
+
+        VKCall(VKRequest request) {
+            mRequest = request;
+        }
+
+        @Override
+        public void execute(final Callback<VKResponse, VKError> callback) {
+            // Retries are made by the governor, not inside VK SDK
+            mRequest.attempts = 1;
+
+            mRequest.executeWithListener(new VKRequest.VKRequestListener() {
+                @Override
+                public void onComplete(VKResponse response) {
+                    callback.onComplete(response);
+                }
+
+                @Override
+                public void onError(VKError error) {
+                    callback.onError(error);
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            mRequest.cancel();
+        }
+    }
+
+    public VKRequestGovernor() {
+        super(new ElapsedRealtimeClock());
+    }
+
+    // Execute request with rate limiting, retries and circuit breaker.
+    // Returned Cancellable can be used to cancel the request.
+    public Cancellable execute(final RequestFactory requestFactory, final VKRequest.VKRequestListener listener) {
+        CallFactory<VKResponse, VKError> callFactory = new CallFactory<VKResponse, VKError>() {
+            @Override
+            public Call<VKResponse, VKError> createCall() {
+                return new VKCall(requestFactory.createRequest());
+            }
+        };
+
+        Callback<VKResponse, VKError> callback = new Callback<VKResponse, VKError>() {
+            @Override
+            public void onComplete(VKResponse response) {
+                listener.onComplete(response);
+            }
+
+            @Override
+            public void onError(VKError error) {
+                listener.onError(error);
+            }
+        };
+
+        return execute(callFactory, callback, HandlerScheduler.forCurrentThread());
+    }
+
+    @Override
+    protected boolean isTemporary(VKError error) {
+        return isTemporaryError(error);
+    }
+
+    @Override
+    protected boolean isRateLimited(VKError error) {
+        return getApiErrorCode(error) == VkApiErrors.TOO_MANY_REQUESTS;
+    }
+
+    @Override
+    protected VKError createRejectedError() {
+        return new VKError(VKError.VK_REQUEST_HTTP_FAILED);
+    }
+
+    // Return true if the request may succeed, if it is repeated
+    // (requests rejected by open circuit breaker fail with temporary error too)
+    public static boolean isTemporaryError(VKError error) {
+        if (error.errorCode == VKError.VK_REQUEST_HTTP_FAILED) {
+            // Network error
+            return true;
+        }
+
+        return VkApiErrors.isTemporary(getApiErrorCode(error));
+    }
+
+    // Return VK API error code or 0, if it is not VK API error
+    private static int getApiErrorCode(VKError error) {
+        if (error.errorCode == VKError.VK_API_ERROR && error.apiError != null) {
+            return error.apiError.errorCode;
+        }
+        return 0;
+    }
+}
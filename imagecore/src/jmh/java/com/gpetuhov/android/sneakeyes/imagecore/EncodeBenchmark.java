@@ -0,0 +1,118 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+// Measures JPEG encoding of downscaled camera images with quality of encoding profiles.
+// On the device JPEG is encoded by Bitmap.compress() (native libjpeg),
+// here ImageIO encoder stands in for it, so absolute numbers differ from the device,
+// but regressions in sampled image size and buffer handling show up the same way.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodeBenchmark {
+
+    // Camera image resolution
+    @Param({TestImages.RES_8MP, TestImages.RES_12MP, TestImages.RES_16MP})
+    public String source;
+
+    // Output dimensions and JPEG quality (HIGH, LOW and MINIMAL encoding profiles)
+    @Param({"1280x960:90", "640x480:75", "320x240:60"})
+    public String profile;
+
+    private int[] mPixels;
+    private int mWidth;
+    private int mHeight;
+    private int mInSampleSize;
+    private float mQuality;
+
+    private PixelSampler mPixelSampler;
+    private BufferedImage mSampledImage;
+    private ByteArrayOutputStream mOut;
+    private ImageWriter mWriter;
+    private ImageWriteParam mWriteParam;
+
+    @Setup
+    public void setUp() {
+        String output = profile.substring(0, profile.indexOf(':'));
+        mQuality = Integer.parseInt(profile.substring(profile.indexOf(':') + 1)) / 100f;
+
+        mWidth = TestImages.parseWidth(source);
+        mHeight = TestImages.parseHeight(source);
+        mPixels = TestImages.createPixels(mWidth, mHeight);
+        mInSampleSize = ScaleMath.calculateInSampleSize(mWidth, mHeight,
+                TestImages.parseWidth(output), TestImages.parseHeight(output));
+
+        mPixelSampler = new PixelSampler();
+        mSampledImage = sample();
+
+        mOut = new ByteArrayOutputStream();
+        mWriter = ImageIO.getImageWritersByFormatName("jpeg").next();
+        mWriteParam = mWriter.getDefaultWriteParam();
+        mWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        mWriteParam.setCompressionQuality(mQuality);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mWriter.dispose();
+    }
+
+    // Encode already downscaled image
+    @Benchmark
+    public int encode() throws IOException {
+        return encode(mSampledImage);
+    }
+
+    // Downscale camera image and encode it (the whole scaling step of the sneak cycle)
+    @Benchmark
+    public int sampleAndEncode() throws IOException {
+        return encode(sample());
+    }
+
+    private BufferedImage sample() {
+        int sampledWidth = ScaleMath.getSampledSize(mWidth, mInSampleSize);
+        int sampledHeight = ScaleMath.getSampledSize(mHeight, mInSampleSize);
+        int[] sampled = mPixelSampler.sample(mPixels, mWidth, mHeight, mInSampleSize);
+
+        if (mSampledImage == null) {
+            mSampledImage = new BufferedImage(sampledWidth, sampledHeight, BufferedImage.TYPE_INT_RGB);
+        }
+        mSampledImage.setRGB(0, 0, sampledWidth, sampledHeight, sampled, 0, sampledWidth);
+
+        return mSampledImage;
+    }
+
+    // Return size of encoded JPEG in bytes
+    private int encode(BufferedImage image) throws IOException {
+        mOut.reset();
+
+        ImageOutputStream imageOut = ImageIO.createImageOutputStream(mOut);
+        try {
+            mWriter.setOutput(imageOut);
+            mWriter.write(null, new IIOImage(image, null, null), mWriteParam);
+        } finally {
+            imageOut.close();
+        }
+
+        return mOut.size();
+    }
+}
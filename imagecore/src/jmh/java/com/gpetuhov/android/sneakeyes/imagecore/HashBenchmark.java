@@ -0,0 +1,72 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Measures perceptual hash of the photo.
+// On the device photo JPEG is decoded with large sample size (so that the smaller side is 32-63 px)
+// and hashed, so "hash" of such image is the added cost besides the small decode.
+// "sampleAndHash" hashes directly from output photo pixels for comparison.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HashBenchmark {
+
+    // Output photo dimensions (HIGH, MEDIUM and MINIMAL encoding profiles)
+    @Param({"1280x960", "800x600", "320x240"})
+    public String output;
+
+    private int[] mPixels;
+    private int mWidth;
+    private int mHeight;
+
+    private int[] mSmallPixels;
+    private int mSmallWidth;
+    private int mSmallHeight;
+
+    private PixelSampler mPixelSampler;
+    private long mHash;
+
+    @Setup
+    public void setUp() {
+        mWidth = TestImages.parseWidth(output);
+        mHeight = TestImages.parseHeight(output);
+        mPixels = TestImages.createPixels(mWidth, mHeight);
+
+        // The same sample size, as PhotoHasher uses on the device
+        int sampleSize = 1;
+        while (Math.min(mWidth, mHeight) / (sampleSize * 2) >= 32) {
+            sampleSize *= 2;
+        }
+
+        mPixelSampler = new PixelSampler();
+        mSmallWidth = ScaleMath.getSampledSize(mWidth, sampleSize);
+        mSmallHeight = ScaleMath.getSampledSize(mHeight, sampleSize);
+        mSmallPixels = mPixelSampler.sample(mPixels, mWidth, mHeight, sampleSize).clone();
+
+        mHash = DHash.compute(mSmallPixels, mSmallWidth, mSmallHeight);
+    }
+
+    @Benchmark
+    public long hash() {
+        return DHash.compute(mSmallPixels, mSmallWidth, mSmallHeight);
+    }
+
+    @Benchmark
+    public long sampleAndHash() {
+        return DHash.compute(mPixels, mWidth, mHeight);
+    }
+
+    @Benchmark
+    public int distance() {
+        return DHash.distance(mHash, ~mHash);
+    }
+}
@@ -0,0 +1,68 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Measures per-frame cost of motion watching: frame differencing and copy into the ring buffer.
+// Multiply by analyzed frames per hour to get CPU time per hour of motion watching.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MotionBenchmark {
+
+    // Low resolution preview sizes
+    @Param({"320x240", "640x480"})
+    public String preview;
+
+    private byte[][] mFrames;
+    private int mWidth;
+    private int mHeight;
+    private int mFrameIndex;
+
+    private MotionDetector mMotionDetector;
+    private FrameRingBuffer mFrameRingBuffer;
+
+    @Setup
+    public void setUp() {
+        mWidth = TestImages.parseWidth(preview);
+        mHeight = TestImages.parseHeight(preview);
+
+        // NV21 frames with sensor noise
+        Random random = new Random(3);
+        mFrames = new byte[4][mWidth * mHeight * 3 / 2];
+        for (byte[] frame : mFrames) {
+            for (int i = 0; i < mWidth * mHeight; i++) {
+                frame[i] = (byte) (i % mWidth * 255 / mWidth + random.nextInt(8));
+            }
+        }
+
+        mMotionDetector = new MotionDetector(MotionDetector.DEFAULT_GRID_WIDTH, MotionDetector.DEFAULT_GRID_HEIGHT);
+        mFrameRingBuffer = new FrameRingBuffer(4);
+    }
+
+    @Benchmark
+    public boolean detect() {
+        mFrameIndex = (mFrameIndex + 1) % mFrames.length;
+        return mMotionDetector.process(mFrames[mFrameIndex], mWidth, mHeight);
+    }
+
+    @Benchmark
+    public int detectAndBuffer() {
+        mFrameIndex = (mFrameIndex + 1) % mFrames.length;
+        byte[] frame = mFrames[mFrameIndex];
+
+        mMotionDetector.process(frame, mWidth, mHeight);
+        mFrameRingBuffer.put(frame, frame.length, mFrameIndex);
+
+        return mFrameRingBuffer.size();
+    }
+}
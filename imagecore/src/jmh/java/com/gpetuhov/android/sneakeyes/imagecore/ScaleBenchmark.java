@@ -0,0 +1,61 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Measures downscale of camera images to output dimensions of encoding profiles.
+// Run with GC profiler (default in build.gradle) to see allocation rate:
+// reusing sampler must allocate (almost) nothing per operation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ScaleBenchmark {
+
+    // Camera image resolution
+    @Param({TestImages.RES_8MP, TestImages.RES_12MP, TestImages.RES_16MP})
+    public String source;
+
+    // Output dimensions (HIGH, MEDIUM, LOW and MINIMAL encoding profiles)
+    @Param({"1280x960", "800x600", "640x480", "320x240"})
+    public String output;
+
+    private int[] mPixels;
+    private int mWidth;
+    private int mHeight;
+    private int mInSampleSize;
+    private PixelSampler mPixelSampler;
+
+    @Setup
+    public void setUp() {
+        mWidth = TestImages.parseWidth(source);
+        mHeight = TestImages.parseHeight(source);
+        mPixels = TestImages.createPixels(mWidth, mHeight);
+        mInSampleSize = ScaleMath.calculateInSampleSize(mWidth, mHeight,
+                TestImages.parseWidth(output), TestImages.parseHeight(output));
+        mPixelSampler = new PixelSampler();
+    }
+
+    @Benchmark
+    public int inSampleSize() {
+        return ScaleMath.calculateInSampleSize(mWidth, mHeight,
+                TestImages.parseWidth(output), TestImages.parseHeight(output));
+    }
+
+    @Benchmark
+    public int[] sampleReusingBuffer() {
+        return mPixelSampler.sample(mPixels, mWidth, mHeight, mInSampleSize);
+    }
+
+    @Benchmark
+    public int[] sampleAllocating() {
+        return new PixelSampler().sample(mPixels, mWidth, mHeight, mInSampleSize);
+    }
+}
@@ -0,0 +1,61 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Measures scene information score of the photo.
+// On the device photo JPEG is decoded with power of 2 sample size (so that the smaller side is 120-239 px),
+// and the small image is scored (face detection runs on the same image and is not measured here).
+// "sampleAndScore" scores directly from output photo pixels for comparison.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SceneBenchmark {
+
+    // Output photo dimensions (HIGH, MEDIUM and MINIMAL encoding profiles)
+    @Param({"1280x960", "800x600", "320x240"})
+    public String output;
+
+    private int[] mPixels;
+    private int mWidth;
+    private int mHeight;
+
+    private int[] mSmallPixels;
+    private int mSmallWidth;
+    private int mSmallHeight;
+
+    @Setup
+    public void setUp() {
+        mWidth = TestImages.parseWidth(output);
+        mHeight = TestImages.parseHeight(output);
+        mPixels = TestImages.createPixels(mWidth, mHeight);
+
+        // The same sample size, as SceneScorer uses on the device
+        int sampleSize = 1;
+        while (Math.min(mWidth, mHeight) / (sampleSize * 2) >= 120) {
+            sampleSize *= 2;
+        }
+
+        mSmallWidth = ScaleMath.getSampledSize(mWidth, sampleSize);
+        mSmallHeight = ScaleMath.getSampledSize(mHeight, sampleSize);
+        mSmallPixels = new PixelSampler().sample(mPixels, mWidth, mHeight, sampleSize).clone();
+    }
+
+    @Benchmark
+    public int score() {
+        return SceneScore.compute(mSmallPixels, mSmallWidth, mSmallHeight);
+    }
+
+    @Benchmark
+    public int sampleAndScore() {
+        return SceneScore.compute(mPixels, mWidth, mHeight);
+    }
+}
@@ -0,0 +1,46 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import java.util.Random;
+
+// Synthetic camera images for benchmarks.
+// Smooth gradients with noise compress like real photos (not like flat color or pure noise).
+class TestImages {
+
+    // Realistic camera resolutions (8, 12 and 16 MP)
+    static final String RES_8MP = "3264x2448";
+    static final String RES_12MP = "4032x3024";
+    static final String RES_16MP = "4608x3456";
+
+    private TestImages() {
+        // Utility class
+    }
+
+    // Return width of "WIDTHxHEIGHT" resolution
+    static int parseWidth(String resolution) {
+        return Integer.parseInt(resolution.substring(0, resolution.indexOf('x')));
+    }
+
+    // Return height of "WIDTHxHEIGHT" resolution
+    static int parseHeight(String resolution) {
+        return Integer.parseInt(resolution.substring(resolution.indexOf('x') + 1));
+    }
+
+    // Return ARGB pixels of the test image (the same for the same dimensions)
+    static int[] createPixels(int width, int height) {
+        Random random = new Random(width * 31L + height);
+        int[] pixels = new int[width * height];
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(16);
+                int r = (x * 255 / width + noise) & 0xff;
+                int g = (y * 255 / height + noise) & 0xff;
+                int b = ((x + y) * 127 / (width + height) + noise) & 0xff;
+
+                pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+
+        return pixels;
+    }
+}
@@ -0,0 +1,64 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+// Perceptual difference hash (dHash) of the image.
+// Image is reduced to 9x8 grayscale, and every bit of 64-bit hash tells,
+// if the pixel is brighter than its right neighbour.
+// Similar images (the same scene with noise, small exposure changes) have hashes
+// with small Hamming distance, so unchanged scenes can be found without comparing pixels.
+public class DHash {
+
+    // Size of the reduced image
+    public static final int WIDTH = 9;
+    public static final int HEIGHT = 8;
+
+    // Maximum distance between hashes
+    public static final int MAX_DISTANCE = 64;
+
+    private DHash() {
+        // Utility class
+    }
+
+    // Return hash of ARGB pixels.
+    // Image should be small already (decoded with large sample size), because every pixel is read.
+    public static long compute(int[] argb, int width, int height) {
+        // Sum luminance of every cell of 9x8 grid (area average)
+        long[] sums = new long[WIDTH * HEIGHT];
+        int[] counts = new int[WIDTH * HEIGHT];
+
+        for (int y = 0; y < height; y++) {
+            int cellRow = y * HEIGHT / height * WIDTH;
+            int rowOffset = y * width;
+
+            for (int x = 0; x < width; x++) {
+                int cell = cellRow + x * WIDTH / width;
+                sums[cell] += luminance(argb[rowOffset + x]);
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                int cell = y * WIDTH + x;
+
+                // Compare averages without division: a / ca > b / cb  <=>  a * cb > b * ca
+                boolean brighter = sums[cell] * counts[cell + 1] > sums[cell + 1] * counts[cell];
+
+                hash = (hash << 1) | (brighter ? 1 : 0);
+            }
+        }
+
+        return hash;
+    }
+
+    // Return number of different bits of the hashes (0 means the same image)
+    public static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    // Return luminance of ARGB pixel (0..255 * 1000)
+    private static int luminance(int pixel) {
+        return 299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff);
+    }
+}
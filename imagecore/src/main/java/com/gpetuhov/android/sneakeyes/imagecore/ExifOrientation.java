@@ -0,0 +1,162 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+// Reads orientation tag from EXIF of JPEG data (APP1 segment, IFD0).
+// Cameras may rotate JPEG pixel data themselves or only write the orientation tag,
+// so the tag tells, how much rotation is still needed to make the photo upright.
+// Only the segments before image data are scanned, JPEG is not decoded.
+public class ExifOrientation {
+
+    // Returned, if JPEG has no orientation tag (or it is mirrored or broken)
+    public static final int UNKNOWN = -1;
+
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+
+    // Size of one IFD entry
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private ExifOrientation() {
+        // Utility class
+    }
+
+    // Return clockwise rotation in degrees (0, 90, 180 or 270), that makes JPEG pixel data upright,
+    // or UNKNOWN, if JPEG has no orientation tag.
+    public static int getRotation(byte[] jpegData) {
+        int orientation = getOrientation(jpegData);
+
+        switch (orientation) {
+            case 1:
+                return 0;
+            case 3:
+                return 180;
+            case 6:
+                return 90;
+            case 8:
+                return 270;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    // Return value of orientation tag (1..8) or 0, if there is no such tag
+    static int getOrientation(byte[] jpegData) {
+        if (jpegData == null || jpegData.length < 4
+                || (jpegData[0] & 0xFF) != MARKER_PREFIX || (jpegData[1] & 0xFF) != MARKER_SOI) {
+            return 0;
+        }
+
+        int offset = 2;
+
+        while (offset + 4 <= jpegData.length) {
+            if ((jpegData[offset] & 0xFF) != MARKER_PREFIX) {
+                return 0;
+            }
+
+            int marker = jpegData[offset + 1] & 0xFF;
+
+            if (marker == MARKER_PREFIX) {
+                // Fill byte
+                offset++;
+                continue;
+            }
+
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                // Image data starts, EXIF must have been before it
+                return 0;
+            }
+
+            // Segment length includes the length field itself
+            int segmentLength = readShort(jpegData, offset + 2, true);
+            int segmentStart = offset + 4;
+            int segmentEnd = offset + 2 + segmentLength;
+
+            if (segmentLength < 2 || segmentEnd > jpegData.length) {
+                return 0;
+            }
+
+            if (marker == MARKER_APP1 && startsWith(jpegData, segmentStart, segmentEnd, EXIF_HEADER)) {
+                return readOrientation(jpegData, segmentStart + EXIF_HEADER.length, segmentEnd);
+            }
+
+            offset = segmentEnd;
+        }
+
+        return 0;
+    }
+
+    // Read orientation tag from IFD0 of TIFF structure between start and end
+    private static int readOrientation(byte[] data, int start, int end) {
+        if (start + 8 > end) {
+            return 0;
+        }
+
+        boolean bigEndian;
+        if (data[start] == 'M' && data[start + 1] == 'M') {
+            bigEndian = true;
+        } else if (data[start] == 'I' && data[start + 1] == 'I') {
+            bigEndian = false;
+        } else {
+            return 0;
+        }
+
+        if (readShort(data, start + 2, bigEndian) != 42) {
+            return 0;
+        }
+
+        long ifdOffset = readInt(data, start + 4, bigEndian);
+        if (ifdOffset < 8 || start + ifdOffset + 2 > end) {
+            return 0;
+        }
+
+        int ifdStart = (int) (start + ifdOffset);
+        int entryCount = readShort(data, ifdStart, bigEndian);
+
+        for (int i = 0; i < entryCount; i++) {
+            int entry = ifdStart + 2 + i * IFD_ENTRY_SIZE;
+
+            if (entry + IFD_ENTRY_SIZE > end) {
+                return 0;
+            }
+
+            if (readShort(data, entry, bigEndian) == TAG_ORIENTATION) {
+                // SHORT value is in the first 2 bytes of the value field
+                return readShort(data, entry + 8, bigEndian);
+            }
+        }
+
+        return 0;
+    }
+
+    private static boolean startsWith(byte[] data, int start, int end, byte[] prefix) {
+        if (start + prefix.length > end) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean bigEndian) {
+        int b0 = data[offset] & 0xFF;
+        int b1 = data[offset + 1] & 0xFF;
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static long readInt(byte[] data, int offset, boolean bigEndian) {
+        long high = readShort(data, bigEndian ? offset : offset + 2, bigEndian);
+        long low = readShort(data, bigEndian ? offset + 2 : offset, bigEndian);
+        return (high << 16) | low;
+    }
+}
@@ -0,0 +1,77 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+// Keeps copies of the last frames (oldest are overwritten).
+// Frame buffers are allocated once and reused, so no allocation is done per frame.
+public class FrameRingBuffer {
+
+    private byte[][] mFrames;
+    private long[] mTimestamps;
+
+    // Index of the next slot to write
+    private int mNext;
+
+    // Number of frames kept
+    private int mSize;
+
+    public FrameRingBuffer(int capacity) {
+        mFrames = new byte[capacity][];
+        mTimestamps = new long[capacity];
+    }
+
+    public int getCapacity() {
+        return mFrames.length;
+    }
+
+    // Return number of frames kept
+    public int size() {
+        return mSize;
+    }
+
+    // Copy frame into the buffer (the oldest frame is overwritten, if the buffer is full)
+    public void put(byte[] frame, int length, long timestamp) {
+        byte[] slot = mFrames[mNext];
+
+        if (slot == null || slot.length != length) {
+            slot = new byte[length];
+            mFrames[mNext] = slot;
+        }
+
+        System.arraycopy(frame, 0, slot, 0, length);
+        mTimestamps[mNext] = timestamp;
+
+        mNext = (mNext + 1) % mFrames.length;
+        mSize = Math.min(mSize + 1, mFrames.length);
+    }
+
+    // Return frame by index (0 is the oldest frame).
+    // Returned array is overwritten by later put() calls.
+    public byte[] get(int index) {
+        return mFrames[getSlot(index)];
+    }
+
+    // Return timestamp of the frame by index (0 is the oldest frame)
+    public long getTimestamp(int index) {
+        return mTimestamps[getSlot(index)];
+    }
+
+    // Remove all frames (buffers are kept for reuse)
+    public void clear() {
+        mSize = 0;
+        mNext = 0;
+    }
+
+    // Release frame buffers
+    public void release() {
+        clear();
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = null;
+        }
+    }
+
+    private int getSlot(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        }
+        return (mNext - mSize + index + mFrames.length) % mFrames.length;
+    }
+}
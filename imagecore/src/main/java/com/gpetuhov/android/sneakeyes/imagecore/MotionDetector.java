@@ -0,0 +1,106 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+// Detects motion by frame differencing of luma (Y plane of NV21 preview frames).
+// Frame is reduced to a coarse grid of cell averages (only every SAMPLE_STEP-th pixel is read),
+// and every cell is compared with the background (running average of previous frames).
+// Motion is reported, if share of changed cells is not less than sensitivity.
+// Slow changes (light, exposure) are absorbed by the background, so they don't trigger motion.
+public class MotionDetector {
+
+    // Default grid size
+    public static final int DEFAULT_GRID_WIDTH = 16;
+    public static final int DEFAULT_GRID_HEIGHT = 12;
+
+    // Default share of changed cells, that means motion
+    public static final float DEFAULT_SENSITIVITY = 0.1f;
+
+    // Minimum luma difference of the changed cell
+    private static final int CELL_THRESHOLD = 24;
+
+    // Only every SAMPLE_STEP-th pixel of every SAMPLE_STEP-th row is read
+    private static final int SAMPLE_STEP = 4;
+
+    private int mGridWidth;
+    private int mGridHeight;
+
+    // Share of changed cells, that means motion
+    private float mSensitivity = DEFAULT_SENSITIVITY;
+
+    // Cell averages of the current frame and the background
+    private int[] mCells;
+    private int[] mCounts;
+    private int[] mBackground;
+    private boolean mHasBackground;
+
+    // Share of changed cells in the last frame
+    private float mLastChangedShare;
+
+    public MotionDetector(int gridWidth, int gridHeight) {
+        mGridWidth = gridWidth;
+        mGridHeight = gridHeight;
+        mCells = new int[gridWidth * gridHeight];
+        mCounts = new int[gridWidth * gridHeight];
+        mBackground = new int[gridWidth * gridHeight];
+    }
+
+    // Set share of changed cells (0..1), that means motion (less is more sensitive)
+    public void setSensitivity(float sensitivity) {
+        mSensitivity = sensitivity;
+    }
+
+    // Return share of changed cells in the last frame
+    public float getLastChangedShare() {
+        return mLastChangedShare;
+    }
+
+    // Forget the background (next frame becomes the background)
+    public void reset() {
+        mHasBackground = false;
+    }
+
+    // Process luma of the frame (first width * height bytes of NV21 frame).
+    // Return true if the frame differs from the background enough.
+    public boolean process(byte[] luma, int width, int height) {
+        int cellCount = mGridWidth * mGridHeight;
+
+        for (int i = 0; i < cellCount; i++) {
+            mCells[i] = 0;
+            mCounts[i] = 0;
+        }
+
+        for (int y = 0; y < height; y += SAMPLE_STEP) {
+            int cellRow = y * mGridHeight / height * mGridWidth;
+            int rowOffset = y * width;
+
+            for (int x = 0; x < width; x += SAMPLE_STEP) {
+                int cell = cellRow + x * mGridWidth / width;
+                mCells[cell] += luma[rowOffset + x] & 0xff;
+                mCounts[cell]++;
+            }
+        }
+
+        int changedCells = 0;
+
+        for (int i = 0; i < cellCount; i++) {
+            int average = mCounts[i] > 0 ? mCells[i] / mCounts[i] : 0;
+
+            if (mHasBackground) {
+                if (Math.abs(average - mBackground[i]) >= CELL_THRESHOLD) {
+                    changedCells++;
+                }
+
+                // Background follows the scene slowly
+                mBackground[i] = (mBackground[i] * 3 + average) / 4;
+            } else {
+                mBackground[i] = average;
+            }
+        }
+
+        boolean hadBackground = mHasBackground;
+        mHasBackground = true;
+
+        mLastChangedShare = (float) changedCells / cellCount;
+
+        return hadBackground && mLastChangedShare >= mSensitivity;
+    }
+}
@@ -0,0 +1,70 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import java.util.Arrays;
+
+// Downscales ARGB pixels by integer sample size (box filter over every sample x sample block).
+// This is the JVM counterpart of the scaling, that BitmapFactory does at decode time,
+// so that the cost of the scaling step can be measured without a device.
+// Destination buffer is reused, if it is large enough, to avoid large allocations on every image.
+public class PixelSampler {
+
+    // Keeps destination pixels between calls
+    private int[] mBuffer;
+
+    // Keeps per-column channel sums of one block row
+    private int[] mSums;
+
+    // Return pixels of the source image, downscaled by sample size.
+    // Returned array is reused by the next call and may be larger than needed
+    // (use ScaleMath.getSampledSize() for the dimensions).
+    public int[] sample(int[] src, int srcWidth, int srcHeight, int inSampleSize) {
+        int destWidth = ScaleMath.getSampledSize(srcWidth, inSampleSize);
+        int destHeight = ScaleMath.getSampledSize(srcHeight, inSampleSize);
+
+        if (mBuffer == null || mBuffer.length < destWidth * destHeight) {
+            mBuffer = new int[destWidth * destHeight];
+        }
+        if (mSums == null || mSums.length < destWidth * 4) {
+            mSums = new int[destWidth * 4];
+        }
+
+        for (int destY = 0; destY < destHeight; destY++) {
+            int srcY0 = destY * inSampleSize;
+            int srcY1 = Math.min(srcY0 + inSampleSize, srcHeight);
+
+            Arrays.fill(mSums, 0, destWidth * 4, 0);
+
+            // Sum channels of every block in this block row
+            for (int srcY = srcY0; srcY < srcY1; srcY++) {
+                int rowOffset = srcY * srcWidth;
+
+                for (int srcX = 0; srcX < srcWidth; srcX++) {
+                    int pixel = src[rowOffset + srcX];
+                    int sumOffset = (srcX / inSampleSize) * 4;
+
+                    mSums[sumOffset] += pixel >>> 24;
+                    mSums[sumOffset + 1] += (pixel >> 16) & 0xff;
+                    mSums[sumOffset + 2] += (pixel >> 8) & 0xff;
+                    mSums[sumOffset + 3] += pixel & 0xff;
+                }
+            }
+
+            // Average every block (edge blocks may be smaller)
+            int blockHeight = srcY1 - srcY0;
+            int destOffset = destY * destWidth;
+
+            for (int destX = 0; destX < destWidth; destX++) {
+                int blockWidth = Math.min(inSampleSize, srcWidth - destX * inSampleSize);
+                int count = blockWidth * blockHeight;
+                int sumOffset = destX * 4;
+
+                mBuffer[destOffset + destX] = ((mSums[sumOffset] / count) << 24)
+                        | ((mSums[sumOffset + 1] / count) << 16)
+                        | ((mSums[sumOffset + 2] / count) << 8)
+                        | (mSums[sumOffset + 3] / count);
+            }
+        }
+
+        return mBuffer;
+    }
+}
@@ -0,0 +1,35 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+// Calculates, how camera images are scaled to output dimensions.
+// Scaling is done by sampling at decode time (BitmapFactory.Options.inSampleSize),
+// so only integer sample sizes are possible.
+// BitmapFactory rounds sample size down to a power of 2, so only powers of 2 are returned.
+public class ScaleMath {
+
+    private ScaleMath() {
+        // Utility class
+    }
+
+    // Return sample size (power of 2), that makes source image close to destination dimensions
+    // (1 means no scaling is needed).
+    // Sample size is calculated along the shorter side of the source image.
+    public static int calculateInSampleSize(int srcWidth, int srcHeight, int destWidth, int destHeight) {
+        int inSampleSize = 1;
+
+        if (srcHeight > destHeight || srcWidth > destWidth) {
+            if (srcWidth > srcHeight) {
+                inSampleSize = Math.round((float) srcHeight / destHeight);
+            } else {
+                inSampleSize = Math.round((float) srcWidth / destWidth);
+            }
+        }
+
+        return Integer.highestOneBit(Math.max(inSampleSize, 1));
+    }
+
+    // Return size of the image side after sampling with power of 2 sample size
+    // (JPEG decoder rounds partial blocks up)
+    public static int getSampledSize(int srcSize, int inSampleSize) {
+        return (srcSize + inSampleSize - 1) / inSampleSize;
+    }
+}
@@ -0,0 +1,79 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+// Information score of the image (how much there is to see on it).
+// Frames of the camera pressed against a table, covered lens or blank ceiling
+// have low contrast and almost no edges, so their score is low.
+// Score is the sum of two halves:
+// - edge energy (mean absolute luminance difference of neighbour pixels above noise floor),
+// - contrast (standard deviation of luminance).
+public class SceneScore {
+
+    // Maximum score
+    public static final int MAX_SCORE = 100;
+
+    // Mean luminance difference of neighbour pixels, that is sensor noise (not edges)
+    private static final int EDGE_NOISE_FLOOR = 2;
+
+    // Edge energy and contrast (0..255 luminance scale), that give full half of the score each
+    private static final int FULL_EDGE_ENERGY = 16;
+    private static final int FULL_CONTRAST = 48;
+
+    private SceneScore() {
+        // Utility class
+    }
+
+    // Return score (0..MAX_SCORE) of ARGB pixels.
+    // Image should be small already (decoded with large sample size), because every pixel is read.
+    public static int compute(int[] argb, int width, int height) {
+        if (width < 2 || height < 2) {
+            return 0;
+        }
+
+        // Luminance of the previous row
+        int[] previousRow = new int[width];
+
+        long sum = 0;
+        long sumOfSquares = 0;
+        long edgeSum = 0;
+        long edgeCount = 0;
+
+        for (int y = 0; y < height; y++) {
+            int rowOffset = y * width;
+            int left = 0;
+
+            for (int x = 0; x < width; x++) {
+                int luma = luminance(argb[rowOffset + x]);
+
+                sum += luma;
+                sumOfSquares += luma * luma;
+
+                if (x > 0) {
+                    edgeSum += Math.abs(luma - left);
+                    edgeCount++;
+                }
+                if (y > 0) {
+                    edgeSum += Math.abs(luma - previousRow[x]);
+                    edgeCount++;
+                }
+
+                previousRow[x] = luma;
+                left = luma;
+            }
+        }
+
+        long pixelCount = (long) width * height;
+        double mean = (double) sum / pixelCount;
+        double contrast = Math.sqrt(Math.max(0, (double) sumOfSquares / pixelCount - mean * mean));
+        double edgeEnergy = Math.max(0, (double) edgeSum / edgeCount - EDGE_NOISE_FLOOR);
+
+        double edgeScore = Math.min(1, edgeEnergy / FULL_EDGE_ENERGY);
+        double contrastScore = Math.min(1, contrast / FULL_CONTRAST);
+
+        return (int) Math.round((edgeScore + contrastScore) * MAX_SCORE / 2);
+    }
+
+    // Return luminance of ARGB pixel (0..255)
+    private static int luminance(int pixel) {
+        return (299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff)) / 1000;
+    }
+}
@@ -0,0 +1,107 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Tests of perceptual hash (run with ./gradlew :imagecore:test)
+public class DHashTest {
+
+    private static final int WIDTH = 72;
+    private static final int HEIGHT = 64;
+
+    @Test
+    public void distance_countsDifferentBits() {
+        assertEquals(0, DHash.distance(0x1234L, 0x1234L));
+        assertEquals(1, DHash.distance(0L, 1L));
+        assertEquals(DHash.MAX_DISTANCE, DHash.distance(0L, -1L));
+    }
+
+    @Test
+    public void compute_identicalImages_haveZeroDistance() {
+        int[] pixels = createGradient(0);
+
+        long hash1 = DHash.compute(pixels, WIDTH, HEIGHT);
+        long hash2 = DHash.compute(pixels.clone(), WIDTH, HEIGHT);
+
+        assertEquals(0, DHash.distance(hash1, hash2));
+    }
+
+    @Test
+    public void compute_smallNoise_givesSmallDistance() {
+        long hash1 = DHash.compute(createGradient(0), WIDTH, HEIGHT);
+        long hash2 = DHash.compute(addNoise(createGradient(0), 4), WIDTH, HEIGHT);
+
+        assertTrue(DHash.distance(hash1, hash2) <= 4);
+    }
+
+    @Test
+    public void compute_brightnessChange_givesZeroDistance() {
+        long hash1 = DHash.compute(createGradient(0), WIDTH, HEIGHT);
+        long hash2 = DHash.compute(createGradient(40), WIDTH, HEIGHT);
+
+        assertEquals(0, DHash.distance(hash1, hash2));
+    }
+
+    @Test
+    public void compute_differentScenes_giveLargeDistance() {
+        long hash1 = DHash.compute(createGradient(0), WIDTH, HEIGHT);
+        long hash2 = DHash.compute(mirror(createGradient(0)), WIDTH, HEIGHT);
+
+        assertEquals(DHash.MAX_DISTANCE, DHash.distance(hash1, hash2));
+    }
+
+    @Test
+    public void compute_flatImage_givesZeroHash() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, 0xff808080);
+
+        assertEquals(0L, DHash.compute(pixels, WIDTH, HEIGHT));
+    }
+
+    // Return gray pixels, that get brighter from left to right
+    private static int[] createGradient(int brightness) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixels[y * WIDTH + x] = gray(x * 3 + brightness);
+            }
+        }
+
+        return pixels;
+    }
+
+    // Return pixels mirrored horizontally
+    private static int[] mirror(int[] pixels) {
+        int[] mirrored = new int[pixels.length];
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                mirrored[y * WIDTH + x] = pixels[y * WIDTH + WIDTH - 1 - x];
+            }
+        }
+
+        return mirrored;
+    }
+
+    // Add random noise (-amplitude..amplitude) to gray pixels
+    private static int[] addNoise(int[] pixels, int amplitude) {
+        Random random = new Random(1);
+
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = gray((pixels[i] & 0xff) + random.nextInt(2 * amplitude + 1) - amplitude);
+        }
+
+        return pixels;
+    }
+
+    private static int gray(int value) {
+        int v = Math.max(0, Math.min(255, value));
+        return 0xff000000 | (v << 16) | (v << 8) | v;
+    }
+}
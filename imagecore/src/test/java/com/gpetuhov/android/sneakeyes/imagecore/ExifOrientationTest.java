@@ -0,0 +1,104 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+
+// Tests of EXIF orientation reading (run with ./gradlew :imagecore:test)
+public class ExifOrientationTest {
+
+    @Test
+    public void getRotation_mapsOrientationTag() {
+        assertEquals(0, ExifOrientation.getRotation(createJpeg(1, true)));
+        assertEquals(90, ExifOrientation.getRotation(createJpeg(6, true)));
+        assertEquals(180, ExifOrientation.getRotation(createJpeg(3, true)));
+        assertEquals(270, ExifOrientation.getRotation(createJpeg(8, true)));
+    }
+
+    @Test
+    public void getRotation_readsLittleEndianExif() {
+        assertEquals(90, ExifOrientation.getRotation(createJpeg(6, false)));
+        assertEquals(270, ExifOrientation.getRotation(createJpeg(8, false)));
+    }
+
+    @Test
+    public void getRotation_unknown_withoutExif() {
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDA, 0, 2, (byte) 0xFF, (byte) 0xD9};
+        assertEquals(ExifOrientation.UNKNOWN, ExifOrientation.getRotation(jpeg));
+    }
+
+    @Test
+    public void getRotation_unknown_forMirroredOrientation() {
+        assertEquals(ExifOrientation.UNKNOWN, ExifOrientation.getRotation(createJpeg(2, true)));
+    }
+
+    @Test
+    public void getRotation_unknown_forBrokenData() {
+        assertEquals(ExifOrientation.UNKNOWN, ExifOrientation.getRotation(null));
+        assertEquals(ExifOrientation.UNKNOWN, ExifOrientation.getRotation(new byte[]{1, 2, 3, 4, 5}));
+
+        // Segment length points beyond the end of data
+        byte[] jpeg = createJpeg(6, true);
+        byte[] truncated = new byte[20];
+        System.arraycopy(jpeg, 0, truncated, 0, truncated.length);
+        assertEquals(ExifOrientation.UNKNOWN, ExifOrientation.getRotation(truncated));
+    }
+
+    // Return JPEG header with APP1 EXIF segment, that has one IFD0 entry (orientation tag)
+    private static byte[] createJpeg(int orientation, boolean bigEndian) {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        tiff.write(bigEndian ? 'M' : 'I');
+        tiff.write(bigEndian ? 'M' : 'I');
+        writeShort(tiff, 42, bigEndian);
+        writeInt(tiff, 8, bigEndian);
+        writeShort(tiff, 1, bigEndian);
+        writeShort(tiff, 0x0112, bigEndian);
+        writeShort(tiff, 3, bigEndian);
+        writeInt(tiff, 1, bigEndian);
+        writeShort(tiff, orientation, bigEndian);
+        writeShort(tiff, 0, bigEndian);
+        writeInt(tiff, 0, bigEndian);
+
+        byte[] exif = {'E', 'x', 'i', 'f', 0, 0};
+        int segmentLength = 2 + exif.length + tiff.size();
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        jpeg.write(0xFF);
+        jpeg.write(0xD8);
+        jpeg.write(0xFF);
+        jpeg.write(0xE1);
+        writeShort(jpeg, segmentLength, true);
+        jpeg.write(exif, 0, exif.length);
+        byte[] tiffData = tiff.toByteArray();
+        jpeg.write(tiffData, 0, tiffData.length);
+        jpeg.write(0xFF);
+        jpeg.write(0xDA);
+        writeShort(jpeg, 2, true);
+        jpeg.write(0xFF);
+        jpeg.write(0xD9);
+
+        return jpeg.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value, boolean bigEndian) {
+        if (bigEndian) {
+            out.write((value >> 8) & 0xFF);
+            out.write(value & 0xFF);
+        } else {
+            out.write(value & 0xFF);
+            out.write((value >> 8) & 0xFF);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value, boolean bigEndian) {
+        if (bigEndian) {
+            writeShort(out, (value >> 16) & 0xFFFF, true);
+            writeShort(out, value & 0xFFFF, true);
+        } else {
+            writeShort(out, value & 0xFFFF, false);
+            writeShort(out, (value >> 16) & 0xFFFF, false);
+        }
+    }
+}
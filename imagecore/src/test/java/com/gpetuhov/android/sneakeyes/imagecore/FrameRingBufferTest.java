@@ -0,0 +1,94 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+// Tests of pre-event frame buffer (run with ./gradlew :imagecore:test)
+public class FrameRingBufferTest {
+
+    @Test
+    public void get_returnsFramesOldestFirst_beforeWrapAround() {
+        FrameRingBuffer buffer = new FrameRingBuffer(3);
+        buffer.put(frame(1), 4, 10);
+        buffer.put(frame(2), 4, 20);
+
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.get(0)[0]);
+        assertEquals(2, buffer.get(1)[0]);
+        assertEquals(10, buffer.getTimestamp(0));
+        assertEquals(20, buffer.getTimestamp(1));
+    }
+
+    @Test
+    public void put_overwritesOldestFrame_afterWrapAround() {
+        FrameRingBuffer buffer = new FrameRingBuffer(3);
+
+        for (int i = 1; i <= 5; i++) {
+            buffer.put(frame(i), 4, i * 10);
+        }
+
+        // Frames 1 and 2 are overwritten
+        assertEquals(3, buffer.size());
+
+        for (int index = 0; index < 3; index++) {
+            assertEquals(index + 3, buffer.get(index)[0]);
+            assertEquals((index + 3) * 10, buffer.getTimestamp(index));
+        }
+    }
+
+    @Test
+    public void put_copiesFrame() {
+        FrameRingBuffer buffer = new FrameRingBuffer(2);
+        byte[] frame = frame(1);
+        buffer.put(frame, 4, 0);
+
+        frame[0] = 9;
+
+        assertEquals(1, buffer.get(0)[0]);
+    }
+
+    @Test
+    public void put_reusesSlotBuffers() {
+        FrameRingBuffer buffer = new FrameRingBuffer(2);
+        buffer.put(frame(1), 4, 0);
+        byte[] slot = buffer.get(0);
+
+        buffer.put(frame(2), 4, 0);
+        buffer.put(frame(3), 4, 0);
+
+        // Frame 3 is written to the slot of frame 1
+        assertSame(slot, buffer.get(1));
+        assertEquals(3, slot[0]);
+    }
+
+    @Test
+    public void clear_removesFrames() {
+        FrameRingBuffer buffer = new FrameRingBuffer(2);
+        buffer.put(frame(1), 4, 0);
+        buffer.clear();
+        buffer.put(frame(2), 4, 0);
+
+        assertEquals(1, buffer.size());
+        assertEquals(2, buffer.get(0)[0]);
+    }
+
+    @Test
+    public void get_outOfRange_throws() {
+        FrameRingBuffer buffer = new FrameRingBuffer(2);
+        buffer.put(frame(1), 4, 0);
+
+        try {
+            buffer.get(1);
+            fail("IndexOutOfBoundsException expected");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] frame(int value) {
+        return new byte[] {(byte) value, 0, 0, 0};
+    }
+}
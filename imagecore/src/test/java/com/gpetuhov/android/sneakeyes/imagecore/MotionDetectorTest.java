@@ -0,0 +1,91 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Tests of frame differencing (run with ./gradlew :imagecore:test)
+public class MotionDetectorTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    @Test
+    public void process_firstFrame_becomesBackground() {
+        MotionDetector detector = createDetector();
+
+        assertFalse(detector.process(createFrame(50), WIDTH, HEIGHT));
+        assertEquals(0, detector.getLastChangedShare(), 0);
+    }
+
+    @Test
+    public void process_unchangedScene_isNotMotion() {
+        MotionDetector detector = createDetector();
+        detector.process(createFrame(50), WIDTH, HEIGHT);
+
+        assertFalse(detector.process(createFrame(50), WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void process_slowLightChange_isNotMotion() {
+        MotionDetector detector = createDetector();
+
+        for (int luma = 50; luma <= 150; luma += 5) {
+            assertFalse(detector.process(createFrame(luma), WIDTH, HEIGHT));
+        }
+    }
+
+    @Test
+    public void process_objectInFrame_isMotion() {
+        MotionDetector detector = createDetector();
+        detector.process(createFrame(50), WIDTH, HEIGHT);
+
+        byte[] frame = createFrame(50);
+        fillRect(frame, 0, 0, WIDTH / 2, HEIGHT / 2, 200);
+
+        assertTrue(detector.process(frame, WIDTH, HEIGHT));
+        assertEquals(0.25f, detector.getLastChangedShare(), 0.01f);
+    }
+
+    @Test
+    public void process_smallChange_isBelowSensitivity() {
+        MotionDetector detector = createDetector();
+        detector.process(createFrame(50), WIDTH, HEIGHT);
+
+        // One cell of 16x12 grid changes
+        byte[] frame = createFrame(50);
+        fillRect(frame, 0, 0, WIDTH / 16, HEIGHT / 12, 200);
+
+        assertFalse(detector.process(frame, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void reset_forgetsBackground() {
+        MotionDetector detector = createDetector();
+        detector.process(createFrame(50), WIDTH, HEIGHT);
+        detector.reset();
+
+        assertFalse(detector.process(createFrame(200), WIDTH, HEIGHT));
+    }
+
+    private static MotionDetector createDetector() {
+        return new MotionDetector(MotionDetector.DEFAULT_GRID_WIDTH, MotionDetector.DEFAULT_GRID_HEIGHT);
+    }
+
+    // Return NV21 frame with the same luma in every pixel
+    private static byte[] createFrame(int luma) {
+        byte[] frame = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(frame, 0, WIDTH * HEIGHT, (byte) luma);
+        return frame;
+    }
+
+    private static void fillRect(byte[] frame, int left, int top, int width, int height, int luma) {
+        for (int y = top; y < top + height; y++) {
+            Arrays.fill(frame, y * WIDTH + left, y * WIDTH + left + width, (byte) luma);
+        }
+    }
+}
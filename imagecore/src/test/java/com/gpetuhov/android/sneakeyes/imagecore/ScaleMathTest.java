@@ -0,0 +1,55 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+// Tests of sample size calculation (run with ./gradlew :imagecore:test)
+public class ScaleMathTest {
+
+    @Test
+    public void calculateInSampleSize_noScaling_whenSourceIsNotLarger() {
+        assertEquals(1, ScaleMath.calculateInSampleSize(640, 480, 800, 600));
+        assertEquals(1, ScaleMath.calculateInSampleSize(800, 600, 800, 600));
+    }
+
+    @Test
+    public void calculateInSampleSize_exactPowerOf2() {
+        assertEquals(4, ScaleMath.calculateInSampleSize(4000, 3000, 1000, 750));
+        assertEquals(2, ScaleMath.calculateInSampleSize(1600, 1200, 800, 600));
+    }
+
+    @Test
+    public void calculateInSampleSize_roundsDownToPowerOf2() {
+        // 2448 / 800 rounds to 3, BitmapFactory would use 2
+        assertEquals(2, ScaleMath.calculateInSampleSize(3264, 2448, 800, 800));
+
+        // 3456 / 600 rounds to 6
+        assertEquals(4, ScaleMath.calculateInSampleSize(4608, 3456, 800, 600));
+    }
+
+    @Test
+    public void calculateInSampleSize_usesShorterSide() {
+        // Landscape and portrait sources give the same sample size
+        assertEquals(4, ScaleMath.calculateInSampleSize(4000, 3000, 1000, 750));
+        assertEquals(4, ScaleMath.calculateInSampleSize(3000, 4000, 750, 1000));
+    }
+
+    @Test
+    public void calculateInSampleSize_isAtLeastOne_whenOnlyLongerSideIsLarger() {
+        // Shorter side is smaller than destination, so the ratio rounds to 0
+        assertEquals(1, ScaleMath.calculateInSampleSize(1000, 250, 800, 600));
+    }
+
+    @Test
+    public void getSampledSize_roundsPartialBlocksUp() {
+        assertEquals(1000, ScaleMath.getSampledSize(4000, 4));
+        assertEquals(1001, ScaleMath.getSampledSize(4001, 4));
+        assertEquals(1, ScaleMath.getSampledSize(3, 4));
+    }
+
+    @Test
+    public void getSampledSize_sampleSizeOne_keepsSize() {
+        assertEquals(2448, ScaleMath.getSampledSize(2448, 1));
+    }
+}
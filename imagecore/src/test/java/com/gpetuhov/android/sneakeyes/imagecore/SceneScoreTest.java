@@ -0,0 +1,79 @@
+package com.gpetuhov.android.sneakeyes.imagecore;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Tests of scene information score (run with ./gradlew :imagecore:test)
+public class SceneScoreTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void compute_tooSmallImage_givesZero() {
+        assertEquals(0, SceneScore.compute(new int[] {0xffffffff}, 1, 1));
+        assertEquals(0, SceneScore.compute(new int[] {0xff000000, 0xffffffff}, 2, 1));
+    }
+
+    @Test
+    public void compute_flatImage_givesZero() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        Arrays.fill(pixels, 0xff404040);
+
+        assertEquals(0, SceneScore.compute(pixels, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void compute_sensorNoise_givesLowScore() {
+        Random random = new Random(1);
+        int[] pixels = new int[WIDTH * HEIGHT];
+
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = gray(40 + random.nextInt(3));
+        }
+
+        assertTrue(SceneScore.compute(pixels, WIDTH, HEIGHT) < 10);
+    }
+
+    @Test
+    public void compute_checkerboard_givesMaxScore() {
+        int[] pixels = new int[WIDTH * HEIGHT];
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                pixels[y * WIDTH + x] = gray(((x / 4 + y / 4) % 2) * 255);
+            }
+        }
+
+        assertEquals(SceneScore.MAX_SCORE, SceneScore.compute(pixels, WIDTH, HEIGHT));
+    }
+
+    @Test
+    public void compute_moreDetail_givesHigherScore() {
+        int[] smooth = new int[WIDTH * HEIGHT];
+        int[] detailed = new int[WIDTH * HEIGHT];
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                smooth[y * WIDTH + x] = gray(x);
+                detailed[y * WIDTH + x] = gray(x + ((x / 2) % 2) * 40);
+            }
+        }
+
+        int smoothScore = SceneScore.compute(smooth, WIDTH, HEIGHT);
+        int detailedScore = SceneScore.compute(detailed, WIDTH, HEIGHT);
+
+        assertTrue(detailedScore > smoothScore);
+        assertTrue(detailedScore <= SceneScore.MAX_SCORE);
+    }
+
+    private static int gray(int value) {
+        int v = Math.max(0, Math.min(255, value));
+        return 0xff000000 | (v << 16) | (v << 8) | v;
+    }
+}
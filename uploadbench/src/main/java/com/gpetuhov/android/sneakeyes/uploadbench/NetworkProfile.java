@@ -0,0 +1,62 @@
+package com.gpetuhov.android.sneakeyes.uploadbench;
+
+import java.util.Locale;
+
+// Network conditions, that StubVkServer simulates:
+// round trip latency, uplink bandwidth (shared by all requests) and share of failed requests.
+public class NetworkProfile {
+
+    public static final NetworkProfile WIFI = new NetworkProfile("wifi", 20, 2 * 1024 * 1024, 0);
+    public static final NetworkProfile LTE = new NetworkProfile("lte", 60, 1024 * 1024, 0.01f);
+    public static final NetworkProfile HSPA = new NetworkProfile("hspa", 150, 256 * 1024, 0.02f);
+    public static final NetworkProfile EDGE = new NetworkProfile("edge", 500, 25 * 1024, 0.05f);
+    public static final NetworkProfile LOSSY = new NetworkProfile("lossy", 100, 512 * 1024, 0.2f);
+
+    // All profiles from the fastest to the slowest
+    public static final NetworkProfile[] PROFILES = {WIFI, LTE, HSPA, LOSSY, EDGE};
+
+    private String mName;
+    private long mLatency;
+    private long mBandwidth;
+    private float mErrorRate;
+
+    // Latency in milliseconds, bandwidth in bytes per second, error rate 0..1
+    public NetworkProfile(String name, long latency, long bandwidth, float errorRate) {
+        mName = name;
+        mLatency = latency;
+        mBandwidth = bandwidth;
+        mErrorRate = errorRate;
+    }
+
+    // Return profile with provided name or null
+    public static NetworkProfile forName(String name) {
+        for (NetworkProfile profile : PROFILES) {
+            if (profile.getName().equals(name)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getLatency() {
+        return mLatency;
+    }
+
+    public long getBandwidth() {
+        return mBandwidth;
+    }
+
+    public float getErrorRate() {
+        return mErrorRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s (%d ms, %d KB/s, %.0f%% errors)",
+                mName, mLatency, mBandwidth / 1024, mErrorRate * 100);
+    }
+}
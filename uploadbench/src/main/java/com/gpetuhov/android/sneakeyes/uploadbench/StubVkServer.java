@@ -0,0 +1,419 @@
+package com.gpetuhov.android.sneakeyes.uploadbench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Local stand-in for the part of VK API, that is used to post photos to the wall:
+// 1. GET /method/photos.getWallUploadServer - returns upload URL
+// 2. POST /upload - multipart photo upload, returns server, photo and hash
+//    (like VK upload server, not wrapped into "response", and fails with HTTP errors only)
+// 3. GET /method/photos.saveWallPhoto - returns saved photo ID
+// 4. GET /method/wall.post - returns post ID (post with the same guid is published only once)
+// Every request is delayed by network latency, uploads are limited by shared uplink bandwidth,
+// and requests fail at random according to NetworkProfile (HTTP 503 or VK "internal error").
+// Like VK, the server allows only limited number of API requests per second
+// and returns "too many requests" error otherwise.
+
+// Sequence of execution: 1. start(), 2. setNetworkProfile(), 3. requests, 4. stop()
+
+public class StubVkServer {
+
+    // VK allows 3 API requests per second
+    public static final int DEFAULT_RATE_LIMIT = 3;
+
+    // VK API error codes
+    private static final int API_ERROR_TOO_MANY_REQUESTS = 6;
+    private static final int API_ERROR_INTERNAL = 10;
+
+    // Size of the chunk, in which upload body is read
+    private static final int CHUNK_SIZE = 8192;
+
+    // Owner of all photos and posts
+    private static final int USER_ID = 1;
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    private volatile NetworkProfile mNetworkProfile = NetworkProfile.WIFI;
+    private int mRateLimit = DEFAULT_RATE_LIMIT;
+
+    private final Random mRandom = new Random(42);
+
+    // Time, when the uplink is free for the next chunk
+    private long mUplinkFreeTime;
+
+    // Times of API requests during the last second
+    private final LinkedList<Long> mRequestTimes = new LinkedList<>();
+
+    // Uploaded photos waiting for saveWallPhoto (photo -> hash) and guids of published posts
+    private final Map<String, String> mUploadedPhotos = new HashMap<>();
+    private final Set<String> mPostGuids = new HashSet<>();
+
+    private int mNextId = 1;
+
+    // Statistics
+    private int mRequestCount;
+    private int mInjectedErrorCount;
+    private int mThrottledCount;
+    private int mPostCount;
+    private int mDuplicatePostCount;
+    private long mUploadedBytes;
+
+    // Start the server on a free local port
+    public void start() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mExecutor);
+
+        mServer.createContext("/method/photos.getWallUploadServer", new ApiHandler() {
+            @Override
+            Object handle(Map<String, String> params) throws JSONException {
+                JSONObject response = new JSONObject();
+                response.put("upload_url", getBaseUrl() + "/upload");
+                response.put("album_id", -14);
+                response.put("user_id", USER_ID);
+                return response;
+            }
+        });
+
+        mServer.createContext("/upload", new UploadHandler());
+
+        mServer.createContext("/method/photos.saveWallPhoto", new ApiHandler() {
+            @Override
+            Object handle(Map<String, String> params) throws JSONException {
+                return savePhoto(params.get("photo"), params.get("hash"));
+            }
+        });
+
+        mServer.createContext("/method/wall.post", new ApiHandler() {
+            @Override
+            Object handle(Map<String, String> params) throws JSONException {
+                return post(params.get("guid"));
+            }
+        });
+
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    // Return URL of the server (without trailing slash)
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort();
+    }
+
+    public void setNetworkProfile(NetworkProfile networkProfile) {
+        mNetworkProfile = networkProfile;
+    }
+
+    // Set maximum number of API requests per second (0 means no limit)
+    public synchronized void setRateLimit(int rateLimit) {
+        mRateLimit = rateLimit;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized int getInjectedErrorCount() {
+        return mInjectedErrorCount;
+    }
+
+    public synchronized int getThrottledCount() {
+        return mThrottledCount;
+    }
+
+    public synchronized int getPostCount() {
+        return mPostCount;
+    }
+
+    // Return number of posts, that were sent again with the same guid (and not published)
+    public synchronized int getDuplicatePostCount() {
+        return mDuplicatePostCount;
+    }
+
+    public synchronized long getUploadedBytes() {
+        return mUploadedBytes;
+    }
+
+    // Clear statistics (uploaded photos and posts are kept)
+    public synchronized void resetStatistics() {
+        mRequestCount = 0;
+        mInjectedErrorCount = 0;
+        mThrottledCount = 0;
+        mPostCount = 0;
+        mDuplicatePostCount = 0;
+        mUploadedBytes = 0;
+    }
+
+    // Return true if the request should fail according to network profile
+    private synchronized boolean injectError() {
+        mRequestCount++;
+
+        if (mRandom.nextFloat() < mNetworkProfile.getErrorRate()) {
+            mInjectedErrorCount++;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized boolean nextBoolean() {
+        return mRandom.nextBoolean();
+    }
+
+    // Return true if there were too many API requests during the last second
+    private synchronized boolean isRateLimited() {
+        long now = System.currentTimeMillis();
+
+        while (!mRequestTimes.isEmpty() && now - mRequestTimes.getFirst() >= 1000) {
+            mRequestTimes.removeFirst();
+        }
+
+        if (mRateLimit > 0 && mRequestTimes.size() >= mRateLimit) {
+            mThrottledCount++;
+            return true;
+        }
+
+        mRequestTimes.addLast(now);
+        return false;
+    }
+
+    // Wait, until the chunk passes the uplink (the uplink is shared by all uploads)
+    private void transfer(int bytes) throws InterruptedException {
+        long chunkTime = bytes * 1000L / mNetworkProfile.getBandwidth();
+        long doneTime;
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            mUplinkFreeTime = Math.max(mUplinkFreeTime, now) + chunkTime;
+            doneTime = mUplinkFreeTime;
+            mUploadedBytes += bytes;
+        }
+
+        long delay = doneTime - System.currentTimeMillis();
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    private synchronized JSONObject upload() throws JSONException {
+        String photo = "photo" + (mNextId++);
+        String hash = Integer.toHexString(photo.hashCode());
+        mUploadedPhotos.put(photo, hash);
+
+        // Photo list is a JSON string inside JSON, like VK returns it
+        JSONObject response = new JSONObject();
+        response.put("server", 1);
+        response.put("photo", new JSONArray().put(new JSONObject().put("photo", photo)).toString());
+        response.put("hash", hash);
+        return response;
+    }
+
+    private synchronized Object savePhoto(String photoList, String hash) throws JSONException {
+        String photo = photoList != null
+                ? new JSONArray(photoList).getJSONObject(0).getString("photo")
+                : null;
+
+        if (photo == null || hash == null || !hash.equals(mUploadedPhotos.remove(photo))) {
+            return apiError(100, "One of the parameters specified was missing or invalid");
+        }
+
+        JSONObject saved = new JSONObject();
+        saved.put("id", mNextId++);
+        saved.put("owner_id", USER_ID);
+        return new JSONArray().put(saved);
+    }
+
+    private synchronized Object post(String guid) throws JSONException {
+        if (guid != null && !mPostGuids.add(guid)) {
+            // VK doesn't publish the post with the same guid twice
+            mDuplicatePostCount++;
+        } else {
+            mPostCount++;
+        }
+
+        return new JSONObject().put("post_id", mNextId++);
+    }
+
+    private static ApiError apiError(int code, String message) {
+        return new ApiError(code, message);
+    }
+
+    // Error response of VK API
+    private static class ApiError {
+        private int mCode;
+        private String mMessage;
+
+        ApiError(int code, String message) {
+            mCode = code;
+            mMessage = message;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject error = new JSONObject();
+            error.put("error_code", mCode);
+            error.put("error_msg", mMessage);
+            return new JSONObject().put("error", error);
+        }
+    }
+
+    // Base handler: simulates latency and errors and writes JSON response
+    private abstract class BaseHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Thread.sleep(mNetworkProfile.getLatency());
+
+                // Request body goes through the network even if the request fails
+                long bodySize = drain(exchange.getRequestBody(), isUpload());
+
+                Object result;
+
+                if (injectError()) {
+                    if (isUpload() || nextBoolean()) {
+                        // Connection level failure
+                        exchange.sendResponseHeaders(503, -1);
+                        return;
+                    }
+
+                    result = apiError(API_ERROR_INTERNAL, "Internal server error");
+                } else {
+                    result = handleRequest(exchange, bodySize);
+                }
+
+                JSONObject json = toJson(result);
+
+                byte[] body = json.toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            } catch (InterruptedException | JSONException e) {
+                exchange.sendResponseHeaders(500, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        // Return true if request body is limited by uplink bandwidth
+        abstract boolean isUpload();
+
+        // Return response of VK API
+        JSONObject toJson(Object result) throws JSONException {
+            return result instanceof ApiError
+                    ? ((ApiError) result).toJson()
+                    : new JSONObject().put("response", result);
+        }
+
+        // Return result object or ApiError
+        abstract Object handleRequest(HttpExchange exchange, long bodySize) throws IOException, JSONException;
+
+        // Read request body (through the uplink, if throttled) and return its size
+        private long drain(InputStream in, boolean throttled) throws IOException, InterruptedException {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long total = 0;
+            int count;
+
+            while ((count = in.read(buffer)) != -1) {
+                if (throttled) {
+                    transfer(count);
+                }
+                total += count;
+            }
+
+            in.close();
+            return total;
+        }
+    }
+
+    // Handler of VK API method
+    private abstract class ApiHandler extends BaseHandler {
+
+        @Override
+        boolean isUpload() {
+            return false;
+        }
+
+        @Override
+        Object handleRequest(HttpExchange exchange, long bodySize) throws IOException, JSONException {
+            if (isRateLimited()) {
+                return apiError(API_ERROR_TOO_MANY_REQUESTS, "Too many requests per second");
+            }
+
+            return handle(parseQuery(exchange.getRequestURI().getRawQuery()));
+        }
+
+        abstract Object handle(Map<String, String> params) throws JSONException;
+    }
+
+    // Handler of photo upload (upload server is not rate limited)
+    private class UploadHandler extends BaseHandler {
+
+        @Override
+        boolean isUpload() {
+            return true;
+        }
+
+        @Override
+        Object handleRequest(HttpExchange exchange, long bodySize) throws JSONException {
+            if (bodySize == 0) {
+                // Upload server returns empty photo list, if it doesn't accept the file
+                return new JSONObject().put("server", 1).put("photo", "[]").put("hash", "");
+            }
+
+            return upload();
+        }
+
+        // Upload server response is not wrapped into "response"
+        @Override
+        JSONObject toJson(Object result) {
+            return (JSONObject) result;
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<>();
+
+        if (query == null) {
+            return params;
+        }
+
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+
+            if (separator > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+            }
+        }
+
+        return params;
+    }
+}
@@ -0,0 +1,191 @@
+package com.gpetuhov.android.sneakeyes.uploadbench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// End-to-end upload benchmark.
+// Starts StubVkServer and runs sneak cycles (UploadFlow, the wall post flow of the app)
+// one after another under every network profile.
+// Reports cycles per second, p50 and p99 cycle time, HTTP requests per cycle (with retries),
+// getWallUploadServer requests saved by upload URL cache, failures, retries and duplicate posts.
+// Options:
+//   --cycles N        number of cycles per profile (default 20)
+//   --photos N        photos per cycle (default 2, front and back camera)
+//   --photo-bytes N   size of one photo (default 120000, about MEDIUM encoding profile)
+//   --profile NAME    run one profile only (wifi, lte, hspa, lossy, edge)
+//   --no-rate-limit   don't limit API requests per second on the server
+//   --no-upload-server-cache  don't keep upload URL between photos
+//   --capture-ms N    time of taking one photo before its upload can start (default 0)
+//   --overlap         start upload of every photo as soon as it is taken (streaming post)
+//   --composite       post photos of the cycle as one composite photo (PhotoCompositor side by side mode),
+//                     its size is the sum of photo sizes
+public class UploadBenchmark {
+
+    private static final int DEFAULT_CYCLES = 20;
+    private static final int DEFAULT_PHOTOS = 2;
+    private static final int DEFAULT_PHOTO_BYTES = 120000;
+
+    public static void main(String[] args) throws Exception {
+        int cycles = DEFAULT_CYCLES;
+        int photoCount = DEFAULT_PHOTOS;
+        int photoBytes = DEFAULT_PHOTO_BYTES;
+        NetworkProfile[] profiles = NetworkProfile.PROFILES;
+        boolean rateLimit = true;
+        boolean composite = false;
+        boolean uploadServerCache = true;
+        long captureTime = 0;
+        boolean overlap = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--cycles":
+                    cycles = Integer.parseInt(args[++i]);
+                    break;
+                case "--photos":
+                    photoCount = Integer.parseInt(args[++i]);
+                    break;
+                case "--photo-bytes":
+                    photoBytes = Integer.parseInt(args[++i]);
+                    break;
+                case "--profile":
+                    NetworkProfile profile = NetworkProfile.forName(args[++i]);
+                    if (profile == null) {
+                        throw new IllegalArgumentException("Unknown profile " + args[i]);
+                    }
+                    profiles = new NetworkProfile[] {profile};
+                    break;
+                case "--no-rate-limit":
+                    rateLimit = false;
+                    break;
+                case "--no-upload-server-cache":
+                    uploadServerCache = false;
+                    break;
+                case "--capture-ms":
+                    captureTime = Long.parseLong(args[++i]);
+                    break;
+                case "--overlap":
+                    overlap = true;
+                    break;
+                case "--composite":
+                    composite = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        // Failures are counted in the table, don't log every one of them
+        Logger.getLogger("").setLevel(Level.SEVERE);
+
+        // Photos are uploaded from files, like from CaptureSpool in the app.
+        // Photo contents don't matter for the server, only the size.
+        List<File> photos = new ArrayList<>();
+        Random random = new Random(1);
+        if (composite) {
+            // Side by side composite is about as large as the photos together
+            photos.add(createPhotoFile(random, photoBytes * photoCount));
+        } else {
+            for (int i = 0; i < photoCount; i++) {
+                photos.add(createPhotoFile(random, photoBytes));
+            }
+        }
+
+        StubVkServer server = new StubVkServer();
+        server.start();
+        server.setRateLimit(rateLimit ? StubVkServer.DEFAULT_RATE_LIMIT : 0);
+
+        System.out.println(String.format(Locale.US, "%d cycles x %d photos x %d bytes%s, capture %d ms%s, server %s",
+                cycles, photoCount, photoBytes, composite ? " (composite)" : "",
+                captureTime, overlap ? " (overlapped)" : "", server.getBaseUrl()));
+        System.out.println(String.format(Locale.US, "%-8s %9s %8s %8s %9s %11s %7s %8s %9s %9s",
+                "profile", "cycles/s", "p50 ms", "p99 ms", "req/cycle", "saved/cycle",
+                "failed", "retries", "throttled", "dup posts"));
+
+        try {
+            for (NetworkProfile profile : profiles) {
+                runProfile(server, profile, cycles, photos, uploadServerCache, captureTime, overlap);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void runProfile(StubVkServer server, NetworkProfile profile,
+                                   int cycles, List<File> photos, boolean uploadServerCache,
+                                   long captureTime, boolean overlap)
+            throws InterruptedException {
+        server.setNetworkProfile(profile);
+        server.resetStatistics();
+
+        UploadFlow uploadFlow = new UploadFlow(server.getBaseUrl());
+        uploadFlow.setUploadServerCacheEnabled(uploadServerCache);
+        uploadFlow.setCaptureTime(captureTime);
+        uploadFlow.setOverlapEnabled(overlap);
+
+        long[] durations = new long[cycles];
+        int failed = 0;
+        int retries = 0;
+        int savedServerRequests = 0;
+
+        long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < cycles; i++) {
+            UploadFlow.CycleResult result = uploadFlow.runCycle(photos);
+
+            durations[i] = result.getDuration();
+            retries += uploadFlow.getRetryCount();
+            savedServerRequests += uploadFlow.getSavedServerRequests();
+
+            if (!result.isPosted() || result.getPostedPhotos() < photos.size()) {
+                failed++;
+            }
+        }
+
+        long totalTime = Math.max(System.currentTimeMillis() - startTime, 1);
+        uploadFlow.shutdown();
+
+        Arrays.sort(durations);
+
+        System.out.println(String.format(Locale.US, "%-8s %9.3f %8d %8d %9.1f %11.1f %7d %8d %9d %9d",
+                profile.getName(), cycles * 1000.0 / totalTime,
+                percentile(durations, 50), percentile(durations, 99),
+                (double) server.getRequestCount() / cycles, (double) savedServerRequests / cycles,
+                failed, retries, server.getThrottledCount(), server.getDuplicatePostCount()));
+    }
+
+    // Return temporary file with provided number of random bytes (deleted on exit)
+    private static File createPhotoFile(Random random, int size) throws IOException {
+        byte[] contents = new byte[size];
+        random.nextBytes(contents);
+
+        File file = File.createTempFile("photo", ".jpg");
+        file.deleteOnExit();
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+
+    // Return percentile of sorted values (nearest rank method, like MetricSummary)
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+}
@@ -0,0 +1,543 @@
+package com.gpetuhov.android.sneakeyes.uploadbench;
+
+import com.gpetuhov.android.sneakeyes.uploadcore.Cancellable;
+import com.gpetuhov.android.sneakeyes.uploadcore.Clock;
+import com.gpetuhov.android.sneakeyes.uploadcore.RequestGovernor;
+import com.gpetuhov.android.sneakeyes.uploadcore.Scheduler;
+import com.gpetuhov.android.sneakeyes.uploadcore.StreamingUploader;
+import com.gpetuhov.android.sneakeyes.uploadcore.VkApiErrors;
+import com.gpetuhov.android.sneakeyes.uploadcore.WallPostFlow;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Wall post flow of the app (WallPostFlow, RequestGovernor and StreamingUploader of uploadcore),
+// that runs on JVM against StubVkServer.
+// PhotoUploader makes VK API requests with VK SDK (which always talks to api.vk.com),
+// so this subclass makes them as plain HTTP GET requests to the stub instead,
+// and keeps upload URL in memory for UPLOAD_SERVER_TTL (like UploadServerCache).
+// The flow runs on its own event loop thread (like PhotoUploader on the sneaking thread),
+// API requests are sent on the worker threads and their results are posted back to the loop.
+// If capture time is set, every photo is "taken" for this time before it is available,
+// and its upload starts after all photos are taken or at once in overlapped mode
+// (streaming post of SneakingService).
+
+// Sequence of execution: 1. runCycle() (many times), 2. shutdown()
+
+public class UploadFlow extends WallPostFlow {
+
+    // The same as UploadServerCache default
+    private static final long UPLOAD_SERVER_TTL = 30 * 60 * 1000;
+
+    // Number of threads, that send API requests
+    private static final int API_THREADS = DEFAULT_MAX_CONCURRENT_UPLOADS;
+
+    private static final int TIMEOUT = 30000;
+
+    // Error codes of requests, that didn't get VK API response
+    private static final int NETWORK_ERROR = -1;
+    private static final int BROKEN_RESPONSE = -2;
+
+    private static final String MESSAGE = "#SneakEyesApp";
+
+    // Monotonic time in milliseconds
+    private static final Clock CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    };
+
+    private String mBaseUrl;
+
+    private StreamingUploader mStreamingUploader;
+    private ApiGovernor mApiGovernor = new ApiGovernor();
+
+    // Thread of the flow and threads of API requests
+    private EventLoop mEventLoop = new EventLoop();
+    private ExecutorService mApiExecutor = Executors.newFixedThreadPool(API_THREADS);
+
+    // Cached upload URL (used on the event loop only)
+    private volatile boolean mUploadServerCacheEnabled = true;
+    private String mUploadUrl;
+    private long mUploadUrlTime;
+
+    // Simulated time of taking one photo in milliseconds
+    private long mCaptureTime;
+
+    // True if photo upload starts as soon as the photo is taken
+    private boolean mOverlapEnabled;
+
+    // Released, when the wall post of current cycle is made or fails
+    private CountDownLatch mCycleLatch;
+    private boolean mPosted;
+
+    // Number of retries (API requests and uploads) during the last cycle
+    private int mRetryCount;
+
+    // Result of one sneak cycle
+    public static class CycleResult {
+        private long mDuration;
+        private int mPostedPhotos;
+        private boolean mPosted;
+
+        CycleResult(long duration, int postedPhotos, boolean posted) {
+            mDuration = duration;
+            mPostedPhotos = postedPhotos;
+            mPosted = posted;
+        }
+
+        // Return cycle time in milliseconds
+        public long getDuration() {
+            return mDuration;
+        }
+
+        public int getPostedPhotos() {
+            return mPostedPhotos;
+        }
+
+        public boolean isPosted() {
+            return mPosted;
+        }
+    }
+
+    // VK API error or error of the request, that didn't get VK API response
+    private static class ApiError {
+        private int mCode;
+        private String mMessage;
+
+        ApiError(int code, String message) {
+            mCode = code;
+            mMessage = message;
+        }
+
+        @Override
+        public String toString() {
+            return "API error " + mCode + ": " + mMessage;
+        }
+    }
+
+    // Governor of the app with HTTP requests to StubVkServer
+    private class ApiGovernor extends RequestGovernor<Object, ApiError> {
+
+        ApiGovernor() {
+            super(CLOCK);
+        }
+
+        @Override
+        protected boolean isTemporary(ApiError error) {
+            return isTemporaryError(error);
+        }
+
+        @Override
+        protected boolean isRateLimited(ApiError error) {
+            return error.mCode == VkApiErrors.TOO_MANY_REQUESTS;
+        }
+
+        @Override
+        protected ApiError createRejectedError() {
+            return new ApiError(NETWORK_ERROR, "Circuit breaker open");
+        }
+    }
+
+    // One attempt of VK API request.
+    // Request is sent on API thread, its result is posted to the event loop.
+    private class ApiCall implements RequestGovernor.Call<Object, ApiError> {
+
+        private String mUrl;
+        private Future<?> mFuture;
+
+        ApiCall(String url) {
+            mUrl = url;
+        }
+
+        @Override
+        public void execute(final RequestGovernor.Callback<Object, ApiError> callback) {
+            mFuture = mApiExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Object response = null;
+                    ApiError error;
+
+                    try {
+                        JSONObject json = new JSONObject(get(mUrl));
+                        JSONObject apiError = json.optJSONObject("error");
+
+                        if (apiError != null) {
+                            error = new ApiError(apiError.optInt("error_code"), apiError.optString("error_msg"));
+                        } else {
+                            response = json.get("response");
+                            error = null;
+                        }
+                    } catch (IOException e) {
+                        error = new ApiError(NETWORK_ERROR, e.toString());
+                    } catch (JSONException e) {
+                        error = new ApiError(BROKEN_RESPONSE, e.toString());
+                    }
+
+                    final Object result = response;
+                    final ApiError resultError = error;
+
+                    mEventLoop.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (resultError != null) {
+                                callback.onError(resultError);
+                            } else {
+                                callback.onComplete(result);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        public void cancel() {
+            mFuture.cancel(true);
+        }
+    }
+
+    // Converts VK API response into the result, that WallPostFlow expects
+    private abstract static class ResultAdapter<T> implements RequestGovernor.Callback<Object, ApiError> {
+
+        private ApiCallback<T> mCallback;
+
+        ResultAdapter(ApiCallback<T> callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onComplete(Object response) {
+            mCallback.onResult(convert(response));
+        }
+
+        @Override
+        public void onError(ApiError error) {
+            mCallback.onError(error.toString(), isTemporaryError(error));
+        }
+
+        abstract T convert(Object response);
+    }
+
+    // Runs tasks one after another on one thread (like Handler of the sneaking thread in the app)
+    private static class EventLoop implements Scheduler {
+
+        private ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+        // Pending posts of every task (guarded by this)
+        private final Map<Runnable, List<Post>> mPosts = new HashMap<>();
+
+        // One post of the task
+        private class Post implements Runnable {
+            private Runnable mTask;
+            private Future<?> mFuture;
+
+            Post(Runnable task) {
+                mTask = task;
+            }
+
+            @Override
+            public void run() {
+                synchronized (EventLoop.this) {
+                    List<Post> posts = mPosts.get(mTask);
+
+                    if (posts == null || !posts.remove(this)) {
+                        // Removed by removeCallbacks()
+                        return;
+                    }
+
+                    if (posts.isEmpty()) {
+                        mPosts.remove(mTask);
+                    }
+                }
+
+                mTask.run();
+            }
+        }
+
+        @Override
+        public void post(Runnable task) {
+            postDelayed(task, 0);
+        }
+
+        @Override
+        public synchronized void postDelayed(Runnable task, long delay) {
+            List<Post> posts = mPosts.get(task);
+
+            if (posts == null) {
+                posts = new ArrayList<>();
+                mPosts.put(task, posts);
+            }
+
+            Post post = new Post(task);
+            posts.add(post);
+            post.mFuture = mExecutor.schedule(post, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public synchronized void removeCallbacks(Runnable task) {
+            List<Post> posts = mPosts.remove(task);
+
+            if (posts != null) {
+                for (Post post : posts) {
+                    post.mFuture.cancel(false);
+                }
+            }
+        }
+
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    public UploadFlow(String baseUrl) {
+        this(baseUrl, new StreamingUploader());
+    }
+
+    private UploadFlow(String baseUrl, StreamingUploader streamingUploader) {
+        super(streamingUploader, CLOCK);
+        mBaseUrl = baseUrl;
+        mStreamingUploader = streamingUploader;
+    }
+
+    public void shutdown() {
+        mEventLoop.shutdown();
+        mApiExecutor.shutdownNow();
+        mStreamingUploader.shutdown();
+    }
+
+    // Return number of retries (API requests and uploads) during the last cycle
+    public int getRetryCount() {
+        return mRetryCount;
+    }
+
+    // Request upload URL for every photo (like before UploadServerCache).
+    // Photos, that start while the request is in flight, still share its URL (like in the app).
+    public void setUploadServerCacheEnabled(boolean uploadServerCacheEnabled) {
+        mUploadServerCacheEnabled = uploadServerCacheEnabled;
+    }
+
+    // Set time of taking one photo in milliseconds (photos are taken one after another)
+    public void setCaptureTime(long captureTime) {
+        mCaptureTime = captureTime;
+    }
+
+    // Start upload of every photo as soon as it is taken (not after all photos are taken)
+    public void setOverlapEnabled(boolean overlapEnabled) {
+        mOverlapEnabled = overlapEnabled;
+    }
+
+    // Take photos, upload them and post them to the wall. Blocks until the cycle is finished.
+    public CycleResult runCycle(final List<File> photos) throws InterruptedException {
+        int retryCount = getTotalRetryCount();
+
+        mCycleLatch = new CountDownLatch(1);
+        mPosted = false;
+
+        long startTime = CLOCK.now();
+
+        if (mOverlapEnabled) {
+            // Streaming post: every photo is uploaded as soon as it is taken
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    beginStreamingUploads();
+                }
+            });
+
+            for (final File photo : photos) {
+                // Camera is busy with this photo
+                Thread.sleep(mCaptureTime);
+
+                mEventLoop.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        addStreamingPhoto(photo);
+                    }
+                });
+            }
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    finishStreamingUploads(MESSAGE);
+                }
+            });
+        } else {
+            for (int i = 0; i < photos.size(); i++) {
+                // Camera is busy with this photo
+                Thread.sleep(mCaptureTime);
+            }
+
+            mEventLoop.post(new Runnable() {
+                @Override
+                public void run() {
+                    startUploads(photos, MESSAGE);
+                }
+            });
+        }
+
+        // Flow state is written on the event loop before the latch is released
+        mCycleLatch.await();
+
+        long duration = CLOCK.now() - startTime;
+        mRetryCount = getTotalRetryCount() - retryCount;
+
+        return new CycleResult(duration, mPosted ? getPostedPhotos() : 0, mPosted);
+    }
+
+    @Override
+    protected Cancellable requestUploadUrl(ApiCallback<String> callback) {
+        return callApi("photos.getWallUploadServer", "", new ResultAdapter<String>(callback) {
+            @Override
+            String convert(Object response) {
+                return response instanceof JSONObject ? ((JSONObject) response).optString("upload_url") : null;
+            }
+        });
+    }
+
+    @Override
+    protected Cancellable saveWallPhoto(int server, String photo, String hash, ApiCallback<String> callback) {
+        String params = "server=" + server
+                + "&photo=" + encode(photo)
+                + "&hash=" + encode(hash);
+
+        return callApi("photos.saveWallPhoto", params, new ResultAdapter<String>(callback) {
+            @Override
+            String convert(Object response) {
+                JSONObject saved = response instanceof JSONArray ? ((JSONArray) response).optJSONObject(0) : null;
+                return saved != null ? "photo" + saved.optInt("owner_id") + "_" + saved.optInt("id") : null;
+            }
+        });
+    }
+
+    @Override
+    protected Cancellable post(String attachments, String message, String guid, ApiCallback<Void> callback) {
+        String params = "attachments=" + encode(attachments)
+                + "&message=" + encode(message)
+                + "&guid=" + encode(guid);
+
+        return callApi("wall.post", params, new ResultAdapter<Void>(callback) {
+            @Override
+            Void convert(Object response) {
+                return null;
+            }
+        });
+    }
+
+    @Override
+    protected String getCachedUploadUrl() {
+        if (!mUploadServerCacheEnabled || mUploadUrl == null
+                || CLOCK.now() - mUploadUrlTime >= UPLOAD_SERVER_TTL) {
+            return null;
+        }
+        return mUploadUrl;
+    }
+
+    @Override
+    protected void cacheUploadUrl(String uploadUrl) {
+        mUploadUrl = uploadUrl;
+        mUploadUrlTime = CLOCK.now();
+    }
+
+    @Override
+    protected void invalidateUploadUrl() {
+        mUploadUrl = null;
+    }
+
+    @Override
+    protected Scheduler getCallbackScheduler() {
+        return mEventLoop;
+    }
+
+    @Override
+    protected void onPostSuccess() {
+        mPosted = true;
+        mCycleLatch.countDown();
+    }
+
+    @Override
+    protected void onPostError() {
+        mPosted = false;
+        mCycleLatch.countDown();
+    }
+
+    // Execute VK API request with the governor (called on the event loop)
+    private Cancellable callApi(final String method, final String params,
+                                RequestGovernor.Callback<Object, ApiError> callback) {
+        RequestGovernor.CallFactory<Object, ApiError> callFactory = new RequestGovernor.CallFactory<Object, ApiError>() {
+            @Override
+            public RequestGovernor.Call<Object, ApiError> createCall() {
+                return new ApiCall(mBaseUrl + "/method/" + method + "?" + params);
+            }
+        };
+
+        return mApiGovernor.execute(callFactory, callback, mEventLoop);
+    }
+
+    private int getTotalRetryCount() {
+        return mApiGovernor.getRetryCount() + mStreamingUploader.getRetryCount();
+    }
+
+    // Return true if the request may succeed, if it is repeated (like VKRequestGovernor.isTemporaryError())
+    private static boolean isTemporaryError(ApiError error) {
+        return error.mCode == NETWORK_ERROR || VkApiErrors.isTemporary(error.mCode);
+    }
+
+    private static String get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + connection.getResponseCode());
+            }
+
+            InputStream in = connection.getInputStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                return out.toString("UTF-8");
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.gpetuhov.android.sneakeyes.uploadcore;
+
+// Request or upload in flight
+public interface Cancellable {
+    // Stop the operation. Its callback is not called after cancellation.
+    void cancel();
+}
@@ -0,0 +1,7 @@
+package com.gpetuhov.android.sneakeyes.uploadcore;
+
+// Source of monotonic time in milliseconds
+// (SystemClock.elapsedRealtime() in the app, System.nanoTime() based on JVM).
+public interface Clock {
+    long now();
+}
@@ -0,0 +1,408 @@
+package com.gpetuhov.android.sneakeyes.uploadcore;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+// Executes VK requests on behalf of their users:
+// - token bucket keeps request rate within VK limit (3 requests per second),
+// - failed requests are retried with exponential backoff and jitter, if the error is temporary
+//   (network error, "too many requests per second", VK internal error),
+// - circuit breaker fails requests at once, while VK looks unavailable
+//   (after several consecutive temporary errors), and lets one trial request through after cooldown.
+// Call is created again by CallFactory for every attempt,
+// so requests, that must not be repeated (wall.post), must be made idempotent by the factory.
+// Subclass knows, how to send requests and classify their errors
+// (VKRequestGovernor in the app, plain HTTP in uploadbench).
+// Callbacks are called through the Scheduler, that is passed to execute(),
+// and never from inside execute() (even if the request is rejected at once).
+// Calls must deliver their results through the same Scheduler.
+// Counters are guarded by this governor, because attempts may run on different threads.
+
+// Sequence of execution: 1. execute(), 2. CallFactory.createCall() (for every attempt),
+// 3. Call.execute(), 4. Callback.onComplete() or onError()
+
+public abstract class RequestGovernor<R, E> {
+
+    private static final Logger LOG = Logger.getLogger("RequestGovernor");
+
+    // Token bucket: VK allows 3 requests per second
+    public static final int DEFAULT_BUCKET_SIZE = 3;
+    public static final long DEFAULT_TOKEN_INTERVAL = 1000 / DEFAULT_BUCKET_SIZE;
+
+    // Maximum number of attempts of one request (first attempt and retries)
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    // Backoff delays in milliseconds
+    private static final long BASE_RETRY_DELAY = 1000;
+    private static final long MAX_RETRY_DELAY = 30000;
+
+    // Circuit breaker opens after this number of consecutive temporary errors
+    public static final int DEFAULT_BREAKER_THRESHOLD = 5;
+
+    // Time in milliseconds, while open circuit breaker fails requests at once
+    public static final long DEFAULT_BREAKER_COOLDOWN = 5 * 60 * 1000;
+
+    // Circuit breaker states
+    private static final int BREAKER_CLOSED = 0;
+    private static final int BREAKER_OPEN = 1;
+    private static final int BREAKER_HALF_OPEN = 2;
+
+    // One attempt of the request
+    public interface Call<R, E> {
+        void execute(Callback<R, E> callback);
+        void cancel();
+    }
+
+    // Creates new call for every attempt
+    public interface CallFactory<R, E> {
+        Call<R, E> createCall();
+    }
+
+    public interface Callback<R, E> {
+        void onComplete(R result);
+        void onError(E error);
+    }
+
+    private Clock mClock;
+
+    private Random mRandom = new Random();
+
+    // Token bucket state
+    private int mBucketSize = DEFAULT_BUCKET_SIZE;
+    private long mTokenInterval = DEFAULT_TOKEN_INTERVAL;
+    private float mTokens = DEFAULT_BUCKET_SIZE;
+    private long mLastRefillTime;
+
+    private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    // Circuit breaker state
+    private int mBreakerThreshold = DEFAULT_BREAKER_THRESHOLD;
+    private long mBreakerCooldown = DEFAULT_BREAKER_COOLDOWN;
+    private int mBreakerState = BREAKER_CLOSED;
+    private int mConsecutiveErrors;
+    private long mBreakerOpenTime;
+    private boolean mTrialRequestInFlight;
+
+    // Counters (guarded by this)
+    private int mRequestCount;
+    private int mRetryCount;
+    private int mThrottleCount;
+    private int mBreakerTripCount;
+    private int mRejectedCount;
+
+    // One request with all its attempts
+    public class Attempt implements Runnable, Cancellable {
+
+        private CallFactory<R, E> mCallFactory;
+        private Callback<R, E> mCallback;
+
+        // Scheduler of the thread, that called execute()
+        private Scheduler mScheduler;
+
+        // Number of attempts made
+        private int mAttemptNumber;
+
+        // Call of the current attempt
+        private Call<R, E> mCall;
+
+        // True if this request is the trial request of half-open circuit breaker
+        private boolean mTrialRequest;
+
+        private boolean mCancelled;
+
+        Attempt(CallFactory<R, E> callFactory, Callback<R, E> callback, Scheduler scheduler) {
+            mCallFactory = callFactory;
+            mCallback = callback;
+            mScheduler = scheduler;
+        }
+
+        // Stop the request. Callback is not called after cancellation.
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mScheduler.removeCallbacks(this);
+
+            if (mCall != null) {
+                mCall.cancel();
+                mCall = null;
+            }
+
+            if (mTrialRequest) {
+                onTrialRequestFinished();
+            }
+        }
+
+        // Return number of attempts made
+        public int getAttemptNumber() {
+            return mAttemptNumber;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+
+            if (!mTrialRequest && !allowRequest()) {
+                // VK looks unavailable, don't wait for network timeout.
+                // Error is posted, so that the caller gets it after execute() returns.
+                onRequestRejected();
+                mScheduler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mCancelled) {
+                            mCallback.onError(createRejectedError());
+                        }
+                    }
+                });
+                return;
+            }
+
+            mTrialRequest = mTrialRequest || isTrialRequest();
+
+            long tokenDelay = takeToken();
+
+            if (tokenDelay > 0) {
+                // Wait for the token
+                onRequestThrottled();
+                mScheduler.postDelayed(this, tokenDelay);
+                return;
+            }
+
+            mAttemptNumber++;
+            onRequestSent();
+
+            mCall = mCallFactory.createCall();
+
+            mCall.execute(new Callback<R, E>() {
+                @Override
+                public void onComplete(R result) {
+                    if (mCancelled) {
+                        return;
+                    }
+
+                    mCall = null;
+                    onRequestSuccess(Attempt.this);
+                    mCallback.onComplete(result);
+                }
+
+                @Override
+                public void onError(E error) {
+                    if (mCancelled) {
+                        return;
+                    }
+
+                    mCall = null;
+                    onRequestError(Attempt.this, error);
+                }
+            });
+        }
+
+        private void retry(long delay) {
+            mScheduler.postDelayed(this, delay);
+        }
+    }
+
+    protected RequestGovernor(Clock clock) {
+        mClock = clock;
+        mLastRefillTime = clock.now();
+    }
+
+    // Return true if the request may succeed, if it is repeated
+    protected abstract boolean isTemporary(E error);
+
+    // Return true if the request failed, because requests per second limit is exceeded
+    protected abstract boolean isRateLimited(E error);
+
+    // Return temporary error, that requests rejected by open circuit breaker fail with
+    protected abstract E createRejectedError();
+
+    // Execute request with rate limiting, retries and circuit breaker.
+    // Callback is called through provided scheduler.
+    // Returned Attempt can be used to cancel the request.
+    public Attempt execute(CallFactory<R, E> callFactory, Callback<R, E> callback, Scheduler scheduler) {
+        Attempt attempt = new Attempt(callFactory, callback, scheduler);
+        attempt.run();
+        return attempt;
+    }
+
+    // Set token bucket size and interval between tokens in milliseconds
+    public synchronized void setRateLimit(int bucketSize, long tokenInterval) {
+        mBucketSize = bucketSize;
+        mTokenInterval = tokenInterval;
+        mTokens = Math.min(mTokens, bucketSize);
+    }
+
+    // Set maximum number of attempts of one request
+    public void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = Math.max(maxAttempts, 1);
+    }
+
+    // Set number of consecutive errors, that opens circuit breaker, and breaker cooldown in milliseconds
+    public synchronized void setBreakerParameters(int breakerThreshold, long breakerCooldown) {
+        mBreakerThreshold = breakerThreshold;
+        mBreakerCooldown = breakerCooldown;
+    }
+
+    // Return number of requests sent (including retries)
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    // Return number of retries
+    public synchronized int getRetryCount() {
+        return mRetryCount;
+    }
+
+    // Return number of times requests waited for rate limiter
+    public synchronized int getThrottleCount() {
+        return mThrottleCount;
+    }
+
+    // Return number of times circuit breaker opened
+    public synchronized int getBreakerTripCount() {
+        return mBreakerTripCount;
+    }
+
+    // Return number of requests failed by open circuit breaker
+    public synchronized int getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    // Return true if circuit breaker is open (VK looks unavailable)
+    public synchronized boolean isBreakerOpen() {
+        return mBreakerState == BREAKER_OPEN
+                && mClock.now() - mBreakerOpenTime < mBreakerCooldown;
+    }
+
+    // Return 0, if a token is taken, or time in milliseconds until the next token
+    private synchronized long takeToken() {
+        long now = mClock.now();
+        mTokens = Math.min(mBucketSize, mTokens + (float) (now - mLastRefillTime) / mTokenInterval);
+        mLastRefillTime = now;
+
+        if (mTokens >= 1) {
+            mTokens--;
+            return 0;
+        }
+
+        return (long) Math.ceil((1 - mTokens) * mTokenInterval);
+    }
+
+    // Return false, if circuit breaker doesn't let the request through
+    private synchronized boolean allowRequest() {
+        switch (mBreakerState) {
+            case BREAKER_OPEN:
+                if (mClock.now() - mBreakerOpenTime < mBreakerCooldown) {
+                    return false;
+                }
+                // Cooldown is over, let one trial request through
+                LOG.fine("Circuit breaker half-open");
+                mBreakerState = BREAKER_HALF_OPEN;
+                mTrialRequestInFlight = false;
+                return allowRequest();
+
+            case BREAKER_HALF_OPEN:
+                return !mTrialRequestInFlight;
+
+            default:
+                return true;
+        }
+    }
+
+    // Return true, if the request, that has just been allowed, is the trial request
+    private synchronized boolean isTrialRequest() {
+        if (mBreakerState == BREAKER_HALF_OPEN && !mTrialRequestInFlight) {
+            mTrialRequestInFlight = true;
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void onRequestSent() {
+        mRequestCount++;
+    }
+
+    private synchronized void onRequestRetried() {
+        mRetryCount++;
+    }
+
+    private synchronized void onRequestThrottled() {
+        mThrottleCount++;
+    }
+
+    private synchronized void onRequestRejected() {
+        mRejectedCount++;
+    }
+
+    private synchronized void onTrialRequestFinished() {
+        mTrialRequestInFlight = false;
+    }
+
+    private synchronized void onRequestSuccess(Attempt attempt) {
+        mConsecutiveErrors = 0;
+
+        if (attempt.mTrialRequest) {
+            attempt.mTrialRequest = false;
+            mTrialRequestInFlight = false;
+
+            if (mBreakerState == BREAKER_HALF_OPEN) {
+                LOG.fine("Circuit breaker closed");
+                mBreakerState = BREAKER_CLOSED;
+            }
+        }
+    }
+
+    private void onRequestError(Attempt attempt, E error) {
+        boolean temporary = isTemporary(error);
+
+        if (temporary) {
+            recordTemporaryError(attempt);
+        }
+
+        boolean retry = temporary
+                && attempt.mAttemptNumber < mMaxAttempts
+                && !isBreakerOpen();
+
+        if (retry) {
+            long delay = getRetryDelay(attempt.mAttemptNumber, isRateLimited(error));
+            LOG.fine("Retrying in " + delay + " ms after error: " + error);
+
+            onRequestRetried();
+            attempt.retry(delay);
+        } else {
+            attempt.mCallback.onError(error);
+        }
+    }
+
+    private synchronized void recordTemporaryError(Attempt attempt) {
+        mConsecutiveErrors++;
+
+        boolean failedTrial = attempt.mTrialRequest && mBreakerState == BREAKER_HALF_OPEN;
+
+        if (attempt.mTrialRequest) {
+            attempt.mTrialRequest = false;
+            mTrialRequestInFlight = false;
+        }
+
+        if (failedTrial || (mBreakerState == BREAKER_CLOSED && mConsecutiveErrors >= mBreakerThreshold)) {
+            LOG.warning("Circuit breaker open after " + mConsecutiveErrors + " consecutive errors");
+            mBreakerState = BREAKER_OPEN;
+            mBreakerOpenTime = mClock.now();
+            mBreakerTripCount++;
+        }
+    }
+
+    // Return exponential backoff delay with full jitter
+    private synchronized long getRetryDelay(int attemptNumber, boolean rateLimited) {
+        long maxDelay = Math.min(MAX_RETRY_DELAY, BASE_RETRY_DELAY << (attemptNumber - 1));
+        long delay = (long) (mRandom.nextDouble() * maxDelay);
+
+        if (rateLimited) {
+            // Rate limit window is one second
+            delay = Math.max(delay, BASE_RETRY_DELAY);
+        }
+
+        return delay;
+    }
+}
@@ -0,0 +1,11 @@
+package com.gpetuhov.android.sneakeyes.uploadcore;
+
+// Runs tasks one after another on one thread (Handler of a Looper thread in the app).
+// Callbacks of RequestGovernor, StreamingUploader and WallPostFlow are delivered through it.
+public interface Scheduler {
+    void post(Runnable task);
+    void postDelayed(Runnable task, long delay);
+
+    // Remove pending posts of the task
+    void removeCallbacks(Runnable task);
+}
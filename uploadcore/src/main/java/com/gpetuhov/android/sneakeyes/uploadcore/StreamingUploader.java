@@ -0,0 +1,297 @@
+package com.gpetuhov.android.sneakeyes.uploadcore;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+// Uploads JPEG files to VK upload server (URL returned by photos.getWallUploadServer)
+// as multipart/form-data request.
+// File is streamed from disk through FileChannel into fixed-length request body
+// (HttpURLConnection doesn't buffer the body then), using small reusable buffers.
+// So memory used by the upload doesn't depend on photo size.
+// Network errors and HTTP 5xx (and 429) are retried with exponential backoff and full jitter.
+// Other HTTP errors (4xx) are reported at once, because repeating the same request won't help.
+// Upload server is not VK API, so uploads are not rate limited.
+// Callbacks are called through the Scheduler, that is passed to upload().
+
+// Sequence of execution: 1. upload(), 2. UploadListener.onUploaded() or onUploadError()
+
+public class StreamingUploader {
+
+    private static final Logger LOG = Logger.getLogger("StreamingUploader");
+
+    // Maximum number of uploads running at the same time (more are queued)
+    public static final int MAX_CONCURRENT_UPLOADS = 4;
+
+    // Size of the buffer, in which file is read
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // Maximum number of attempts of one upload (first attempt and retries)
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Backoff delays in milliseconds
+    private static final long BASE_RETRY_DELAY = 1000;
+
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    // Not defined in HttpURLConnection
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final String BOUNDARY = "SneakEyesBoundary";
+
+    // Name of the multipart field, that VK upload server expects
+    private static final String PHOTO_FIELD_NAME = "photo";
+
+    private ExecutorService mExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS);
+
+    private Random mRandom = new Random();
+
+    // Buffers, that are not in use (no more than MAX_CONCURRENT_UPLOADS are ever allocated)
+    private final LinkedList<ByteBuffer> mBuffers = new LinkedList<>();
+
+    // Number of retries (guarded by this)
+    private int mRetryCount;
+
+    // User of StreamingUploader must implement this interface to receive callbacks
+    public interface UploadListener {
+        // Response of the upload server (server, photo and hash)
+        void onUploaded(JSONObject response);
+        void onUploadError(Exception e);
+    }
+
+    // Upload server responded with HTTP error
+    public static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private int mResponseCode;
+
+        HttpStatusException(int responseCode) {
+            super("HTTP " + responseCode);
+            mResponseCode = responseCode;
+        }
+
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        // Return true if the server may accept the same request later
+        public boolean isTemporary() {
+            return mResponseCode >= 500 || mResponseCode == HTTP_TOO_MANY_REQUESTS;
+        }
+    }
+
+    // One upload with all its attempts
+    public class Upload implements Runnable, Cancellable {
+
+        private String mUploadUrl;
+        private File mFile;
+        private UploadListener mListener;
+
+        // Scheduler of the thread, that called upload()
+        private Scheduler mScheduler;
+
+        private Future<?> mFuture;
+
+        private volatile boolean mCancelled;
+
+        Upload(String uploadUrl, File file, UploadListener listener, Scheduler scheduler) {
+            mUploadUrl = uploadUrl;
+            mFile = file;
+            mListener = listener;
+            mScheduler = scheduler;
+        }
+
+        // Stop the upload. Listener is not called after cancellation.
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mFuture.cancel(true);
+        }
+
+        // Method is called on the executor thread
+        @Override
+        public void run() {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    JSONObject response = post(mUploadUrl, mFile);
+                    reportSuccess(response);
+                    return;
+                } catch (IOException e) {
+                    if (!isTemporaryError(e) || mCancelled || attempt >= MAX_ATTEMPTS) {
+                        reportError(e);
+                        return;
+                    }
+
+                    onUploadRetried();
+                    long delay = getRetryDelay(attempt);
+                    LOG.fine("Retrying upload in " + delay + " ms after error: " + e);
+
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException interrupted) {
+                        // Cancelled
+                        return;
+                    }
+                } catch (JSONException e) {
+                    // Upload server response is broken, repeating won't help
+                    reportError(e);
+                    return;
+                }
+            }
+        }
+
+        private void reportSuccess(final JSONObject response) {
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mListener.onUploaded(response);
+                    }
+                }
+            });
+        }
+
+        private void reportError(final Exception e) {
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCancelled) {
+                        mListener.onUploadError(e);
+                    }
+                }
+            });
+        }
+    }
+
+    // Return true if the upload may succeed, if it is repeated.
+    // Network errors are temporary, HTTP errors are temporary only if they are 5xx or 429,
+    // broken responses (JSONException) are permanent.
+    public static boolean isTemporaryError(Exception e) {
+        if (e instanceof HttpStatusException) {
+            return ((HttpStatusException) e).isTemporary();
+        }
+        return e instanceof IOException;
+    }
+
+    // Upload file to the upload server. Listener is called through provided scheduler.
+    // Returned Upload can be used to cancel the upload.
+    public Upload upload(String uploadUrl, File file, UploadListener listener, Scheduler scheduler) {
+        Upload upload = new Upload(uploadUrl, file, listener, scheduler);
+        upload.mFuture = mExecutor.submit(upload);
+        return upload;
+    }
+
+    // Return number of retries
+    public synchronized int getRetryCount() {
+        return mRetryCount;
+    }
+
+    // Stop all uploads and the upload threads
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    // Send file as multipart request and return parsed response
+    private JSONObject post(String uploadUrl, File file) throws IOException, JSONException {
+        byte[] head = ("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + PHOTO_FIELD_NAME + "\"; filename=\"" + file.getName() + "\"\r\n"
+                + "Content-Type: image/jpeg\r\n\r\n").getBytes("UTF-8");
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8");
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(uploadUrl).openConnection();
+
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+
+            // Body is sent as it is written (not collected in memory to count its length)
+            connection.setFixedLengthStreamingMode((int) (head.length + file.length() + tail.length));
+
+            FileChannel in = new FileInputStream(file).getChannel();
+            ByteBuffer buffer = obtainBuffer();
+
+            try {
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(head);
+
+                    while (in.read(buffer) != -1) {
+                        out.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                    }
+
+                    out.write(tail);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                releaseBuffer(buffer);
+                in.close();
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new HttpStatusException(responseCode);
+            }
+
+            return new JSONObject(readResponse(connection));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private synchronized ByteBuffer obtainBuffer() {
+        ByteBuffer buffer = mBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private synchronized void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        mBuffers.add(buffer);
+    }
+
+    private synchronized void onUploadRetried() {
+        mRetryCount++;
+    }
+
+    // Return exponential backoff delay with full jitter
+    private synchronized long getRetryDelay(int attempt) {
+        return (long) (mRandom.nextDouble() * (BASE_RETRY_DELAY << (attempt - 1)));
+    }
+
+    // Response of the upload server is small JSON
+    private static String readResponse(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
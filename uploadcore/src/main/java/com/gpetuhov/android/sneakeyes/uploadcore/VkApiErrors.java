@@ -0,0 +1,26 @@
+package com.gpetuhov.android.sneakeyes.uploadcore;
+
+// VK API error codes, that matter for retries
+public class VkApiErrors {
+
+    public static final int UNKNOWN = 1;
+    public static final int TOO_MANY_REQUESTS = 6;
+    public static final int INTERNAL = 10;
+
+    private VkApiErrors() {
+        // Utility class
+    }
+
+    // Return true if the request may succeed, if it is repeated.
+    // Authorization, access, captcha, flood control and other errors are permanent.
+    public static boolean isTemporary(int apiErrorCode) {
+        switch (apiErrorCode) {
+            case UNKNOWN:
+            case TOO_MANY_REQUESTS:
+            case INTERNAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package com.gpetuhov.android.sneakeyes.uploadcore;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+// Uploads photos (JPEG files) of one VK wall post and makes the post.
+// Photos are uploaded concurrently (up to mMaxConcurrentUploads at the same time), and one wall post
+// is made, when the last upload finishes. If some photos fail to upload, the rest of them are still posted.
+// In streaming mode photos are added one by one, while the next photos are being taken,
+// and uploaded at once (beginStreamingUploads(), addStreamingPhoto(), finishStreamingUploads()).
+// Upload URL is taken from the cache, if possible, and only one photos.getWallUploadServer request
+// is made at a time (other photos wait for its result).
+// Files are streamed to the upload server by StreamingUploader.
+// Wall post has unique guid, so that retried post is not published twice.
+// Subclass makes VK API requests (with RequestGovernor) and keeps upload URL cache:
+// PhotoUploader in the app (VK SDK), UploadFlow in uploadbench (plain HTTP to StubVkServer).
+// Flow is confined to the thread of getCallbackScheduler(): all methods must be called on it,
+// and all callbacks of the subclass must be delivered to it.
+
+// Sequence of execution: 1. startUploads(), 2. PhotoUpload.start() for every photo,
+// 3. makePost(), 4. onPostSuccess() or onPostError()
+// Streaming mode: 1. beginStreamingUploads(), 2. addStreamingPhoto() for every photo (PhotoUpload.start()),
+// 3. finishStreamingUploads(), 4. makePost(), 5. onPostSuccess() or onPostError()
+
+public abstract class WallPostFlow {
+
+    private static final Logger LOG = Logger.getLogger("WallPostFlow");
+
+    // Default maximum number of photos uploaded at the same time
+    public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 4;
+
+    // Maximum number of attachments in one VK wall post
+    public static final int MAX_ATTACHMENTS = 10;
+
+    // Result of one VK API request
+    protected interface ApiCallback<T> {
+        void onResult(T result);
+
+        // Temporary error may go away, if the request is repeated later
+        void onError(String error, boolean temporary);
+    }
+
+    // Streams JPEG files to VK upload server
+    private StreamingUploader mStreamingUploader;
+
+    private Clock mClock;
+
+    // Keeps JPEG files of the photos to upload
+    private List<File> mPhotos;
+
+    // Keeps message of the wall post
+    private String mMessage;
+
+    // Keeps attachments (photo<owner>_<id>) of uploaded photos.
+    // Photos are kept in capture order, failed uploads are left null.
+    private List<String> mAttachments;
+
+    // True while photos of streaming post are being added
+    private boolean mStreamOpen;
+
+    // True while wall.post request is in flight (VK may have published the post already)
+    private boolean mWallPostInFlight;
+
+    // File transfers of current post: number of running transfers, start of the period,
+    // when at least one transfer is running, total time of such periods and bytes transferred
+    private int mActiveTransfers;
+    private long mTransferStartTime;
+    private long mTransferTime;
+    private long mTransferBytes;
+
+    // Maximum number of photos uploaded at the same time
+    private int mMaxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+
+    // Index of the next photo to start uploading
+    private int mNextPhotoIndex;
+
+    // Number of uploads in flight
+    private int mPendingUploads;
+
+    // True if some request of current upload failed with temporary error
+    // (network error, VK unavailable), so the same photos may be posted later
+    private boolean mTemporaryError;
+
+    // Number of failed uploads
+    private int mFailedUploads;
+
+    // Number of photos attached to the last post
+    private int mPostedPhotos;
+
+    // Keeps requests and file uploads in flight, so that they can be cancelled
+    private List<Cancellable> mRequests = new ArrayList<>();
+
+    // Photo uploads waiting for photos.getWallUploadServer request in flight
+    private List<PhotoUpload> mWaitingForUploadServer = new ArrayList<>();
+
+    // Number of photos.getWallUploadServer requests saved by the cache and request sharing
+    private int mSavedServerRequests;
+
+    // Incremented on every upload start and cancellation,
+    // so that results of the previous uploads are ignored.
+    private int mUploadGeneration;
+
+    // Uploads one photo to VK server in 3 steps:
+    // 1. photos.getWallUploadServer (VK request) returns upload URL
+    //    (skipped, if URL is cached or requested for another photo already),
+    // 2. JPEG file is streamed to the upload URL (StreamingUploader), server returns server, photo and hash,
+    // 3. photos.saveWallPhoto (VK request) with server, photo and hash returns saved photo attachment.
+    private class PhotoUpload {
+
+        // JPEG file of the photo
+        private File mFile;
+
+        // Index of the photo in capture order
+        private int mPhotoIndex;
+
+        // Generation of uploads, this photo belongs to
+        private int mGeneration;
+
+        // Time, when upload started (including retries)
+        private long mStartTime;
+
+        // True if upload URL was taken from the cache
+        private boolean mCachedUploadUrl;
+
+        // True if upload has been repeated with new upload URL
+        private boolean mRepeated;
+
+        PhotoUpload(File file, int photoIndex, int generation) {
+            mFile = file;
+            mPhotoIndex = photoIndex;
+            mGeneration = generation;
+            mStartTime = mClock.now();
+        }
+
+        void start() {
+            String uploadUrl = getCachedUploadUrl();
+
+            if (uploadUrl != null) {
+                // No photos.getWallUploadServer request for this photo
+                mCachedUploadUrl = true;
+                mSavedServerRequests++;
+                uploadFile(uploadUrl);
+            } else {
+                mCachedUploadUrl = false;
+                requestUploadServer(this);
+            }
+        }
+
+        private void uploadFile(String uploadUrl) {
+            beginTransfer();
+
+            mRequests.add(mStreamingUploader.upload(uploadUrl, mFile, new StreamingUploader.UploadListener() {
+                @Override
+                public void onUploaded(JSONObject response) {
+                    if (mGeneration != mUploadGeneration) {
+                        return;
+                    }
+
+                    endTransfer(mFile.length());
+
+                    String photo = response.optString("photo");
+
+                    // Upload server returns empty photo list, if it didn't accept the file
+                    if (photo.isEmpty() || "[]".equals(photo)) {
+                        onUploadServerError("photo not accepted by upload server", false);
+                    } else {
+                        savePhoto(response.optInt("server"), photo, response.optString("hash"));
+                    }
+                }
+
+                @Override
+                public void onUploadError(Exception e) {
+                    if (mGeneration != mUploadGeneration) {
+                        return;
+                    }
+
+                    endTransfer(0);
+
+                    onUploadServerError(e.toString(), StreamingUploader.isTemporaryError(e));
+                }
+            }, getCallbackScheduler()));
+        }
+
+        private void savePhoto(int server, String photo, String hash) {
+            mRequests.add(saveWallPhoto(server, photo, hash, new ApiCallback<String>() {
+                @Override
+                public void onResult(String attachment) {
+                    if (mGeneration != mUploadGeneration) {
+                        return;
+                    }
+
+                    // Photo is saved. Keep its attachment in capture order.
+                    if (attachment == null || attachment.isEmpty()) {
+                        PhotoUpload.this.onError("photo not saved", false);
+                        return;
+                    }
+
+                    mAttachments.set(mPhotoIndex, attachment);
+                    onPhotoUploaded(mClock.now() - mStartTime);
+
+                    onUploadFinished();
+                }
+
+                @Override
+                public void onError(String error, boolean temporary) {
+                    if (mGeneration != mUploadGeneration) {
+                        return;
+                    }
+
+                    PhotoUpload.this.onError(error, temporary);
+                }
+            }));
+        }
+
+        // Upload URL may be expired, don't use it any more.
+        // If it was taken from the cache, upload once more with new URL.
+        private void onUploadServerError(String error, boolean temporary) {
+            invalidateUploadUrl();
+
+            if (mCachedUploadUrl && !mRepeated) {
+                LOG.fine("Cached upload URL failed (" + error + "), requesting new one");
+                mRepeated = true;
+                mCachedUploadUrl = false;
+                mSavedServerRequests--;
+                requestUploadServer(this);
+            } else {
+                onError(error, temporary);
+            }
+        }
+
+        // Error uploading photo to server.
+        // Other photos are still posted.
+        private void onError(String error, boolean temporary) {
+            LOG.warning("Error uploading photo " + mPhotoIndex + ": " + error);
+            mFailedUploads++;
+            mTemporaryError |= temporary;
+
+            onUploadFinished();
+        }
+    }
+
+    protected WallPostFlow(StreamingUploader streamingUploader, Clock clock) {
+        mStreamingUploader = streamingUploader;
+        mClock = clock;
+    }
+
+    // Request upload URL (photos.getWallUploadServer). Empty URL is an error.
+    protected abstract Cancellable requestUploadUrl(ApiCallback<String> callback);
+
+    // Save uploaded photo (photos.saveWallPhoto) and return its attachment (null, if it is not saved)
+    protected abstract Cancellable saveWallPhoto(int server, String photo, String hash, ApiCallback<String> callback);
+
+    // Make wall post (wall.post) with comma separated attachments, message and guid
+    protected abstract Cancellable post(String attachments, String message, String guid, ApiCallback<Void> callback);
+
+    // Return cached upload URL or null, if there is none or it is expired
+    protected abstract String getCachedUploadUrl();
+
+    protected abstract void cacheUploadUrl(String uploadUrl);
+
+    protected abstract void invalidateUploadUrl();
+
+    // Return scheduler of the thread, the flow is confined to
+    protected abstract Scheduler getCallbackScheduler();
+
+    // Wall post is made
+    protected abstract void onPostSuccess();
+
+    // No photos uploaded or wall post failed
+    protected abstract void onPostError();
+
+    // Photo is uploaded and saved in provided time in milliseconds (including retries)
+    protected void onPhotoUploaded(long duration) {
+    }
+
+    // All uploads are finished, provided number of photos.getWallUploadServer requests has been saved
+    protected void onUploadsFinished(int savedServerRequests) {
+    }
+
+    // Wall post is made in provided time in milliseconds (including retries)
+    protected void onPostMade(long duration) {
+    }
+
+    // Return true if the last upload has failed with permanent error only
+    // (repeating it with the same photos won't help).
+    // Valid in onPostError().
+    public boolean isErrorPermanent() {
+        return !mTemporaryError;
+    }
+
+    // Return true if wall post of current upload has been sent, and its result is not known yet.
+    // Must be checked before cancellation: if the upload is cancelled now, the post may still be published.
+    public boolean isWallPostInFlight() {
+        return mWallPostInFlight;
+    }
+
+    // Return number of bytes of the files, uploaded to the upload server for the last post
+    public long getTransferBytes() {
+        return mTransferBytes;
+    }
+
+    // Return time in milliseconds, while files of the last post were being uploaded to the upload server
+    // (concurrent uploads are counted once, VK API requests are not counted)
+    public long getTransferTime() {
+        return mTransferTime;
+    }
+
+    // Return number of photos attached to the last post
+    public int getPostedPhotos() {
+        return mPostedPhotos;
+    }
+
+    // Return number of photos.getWallUploadServer requests saved by the cache and request sharing
+    // during the last post
+    public int getSavedServerRequests() {
+        return mSavedServerRequests;
+    }
+
+    // Set maximum number of photos uploaded at the same time (1 means sequential upload)
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        mMaxConcurrentUploads = Math.max(maxConcurrentUploads, 1);
+    }
+
+    // Return true while photos of streaming post are being added
+    protected boolean isStreamOpen() {
+        return mStreamOpen;
+    }
+
+    // Upload photos and make wall post with provided message, when the last upload is finished
+    protected void startUploads(List<File> photos, String message) {
+        mTemporaryError = false;
+        mPhotos = new ArrayList<>(photos);
+        mMessage = message;
+
+        if (mPhotos.isEmpty()) {
+            onPostError();
+            return;
+        }
+
+        resetUploads();
+
+        for (int i = 0; i < mPhotos.size(); i++) {
+            mAttachments.add(null);
+        }
+
+        startUploadPhotosToServer();
+    }
+
+    // Start streaming post. Photos are added by addStreamingPhoto() and uploaded at once,
+    // wall post is made, when finishStreamingUploads() is called and all uploads are finished.
+    protected void beginStreamingUploads() {
+        mPhotos = new ArrayList<>();
+        mMessage = null;
+        mStreamOpen = true;
+
+        resetUploads();
+    }
+
+    // Add photo to streaming post and start uploading it (if not too many uploads are in flight)
+    protected void addStreamingPhoto(File photo) {
+        mPhotos.add(photo);
+        mAttachments.add(null);
+
+        startUploadPhotosToServer();
+    }
+
+    // No more photos will be added. Make wall post with provided message, when all uploads are finished.
+    protected void finishStreamingUploads(String message) {
+        mMessage = message;
+        mStreamOpen = false;
+
+        if (mPhotos.isEmpty()) {
+            onPostError();
+        } else if (mPendingUploads == 0 && mNextPhotoIndex == mPhotos.size()) {
+            // All photos are uploaded already
+            postUploadedPhotos();
+        }
+    }
+
+    // Stop uploading. Results of requests in flight are ignored.
+    protected void cancelUploads() {
+        mStreamOpen = false;
+        mWallPostInFlight = false;
+
+        // Results of uploads in flight will be ignored
+        mUploadGeneration++;
+
+        for (Cancellable request : mRequests) {
+            request.cancel();
+        }
+        mRequests.clear();
+        mWaitingForUploadServer.clear();
+    }
+
+    private void resetUploads() {
+        mAttachments = new ArrayList<>();
+        mNextPhotoIndex = 0;
+        mPendingUploads = 0;
+        mFailedUploads = 0;
+        mPostedPhotos = 0;
+        mTemporaryError = false;
+        mUploadGeneration++;
+        mRequests.clear();
+        mWaitingForUploadServer.clear();
+        mSavedServerRequests = 0;
+        mWallPostInFlight = false;
+        mActiveTransfers = 0;
+        mTransferTime = 0;
+        mTransferBytes = 0;
+    }
+
+    private void beginTransfer() {
+        if (mActiveTransfers == 0) {
+            mTransferStartTime = mClock.now();
+        }
+        mActiveTransfers++;
+    }
+
+    private void endTransfer(long bytes) {
+        mTransferBytes += bytes;
+        mActiveTransfers--;
+
+        if (mActiveTransfers == 0) {
+            mTransferTime += mClock.now() - mTransferStartTime;
+        }
+    }
+
+    // Start uploading photos, until mMaxConcurrentUploads uploads are in flight
+    private void startUploadPhotosToServer() {
+        while (mPendingUploads < mMaxConcurrentUploads && mNextPhotoIndex < mPhotos.size()) {
+            File photo = mPhotos.get(mNextPhotoIndex);
+            int photoIndex = mNextPhotoIndex++;
+            mPendingUploads++;
+
+            new PhotoUpload(photo, photoIndex, mUploadGeneration).start();
+        }
+    }
+
+    // Request upload URL for the photo upload.
+    // Only one request is made at a time, other photos wait for its result.
+    private void requestUploadServer(PhotoUpload photoUpload) {
+        boolean requestInFlight = !mWaitingForUploadServer.isEmpty();
+        mWaitingForUploadServer.add(photoUpload);
+
+        if (requestInFlight) {
+            // Photo will use URL of the request in flight
+            mSavedServerRequests++;
+            return;
+        }
+
+        final int generation = mUploadGeneration;
+
+        mRequests.add(requestUploadUrl(new ApiCallback<String>() {
+            @Override
+            public void onResult(String uploadUrl) {
+                if (generation != mUploadGeneration) {
+                    return;
+                }
+
+                List<PhotoUpload> waitingUploads = new ArrayList<>(mWaitingForUploadServer);
+                mWaitingForUploadServer.clear();
+
+                if (uploadUrl == null || uploadUrl.isEmpty()) {
+                    for (PhotoUpload waitingUpload : waitingUploads) {
+                        waitingUpload.onError("no upload URL", false);
+                    }
+                    return;
+                }
+
+                cacheUploadUrl(uploadUrl);
+
+                for (PhotoUpload waitingUpload : waitingUploads) {
+                    waitingUpload.uploadFile(uploadUrl);
+                }
+            }
+
+            @Override
+            public void onError(String error, boolean temporary) {
+                if (generation != mUploadGeneration) {
+                    return;
+                }
+
+                List<PhotoUpload> waitingUploads = new ArrayList<>(mWaitingForUploadServer);
+                mWaitingForUploadServer.clear();
+
+                for (PhotoUpload waitingUpload : waitingUploads) {
+                    waitingUpload.onError(error, temporary);
+                }
+            }
+        }));
+    }
+
+    // Method is called, when upload of one photo is finished (successfully or not)
+    private void onUploadFinished() {
+        mPendingUploads--;
+
+        // Start next photo, if there are any
+        startUploadPhotosToServer();
+
+        if (mPendingUploads > 0 || mStreamOpen) {
+            // Wait for other uploads (or for more photos of streaming post)
+            return;
+        }
+
+        postUploadedPhotos();
+    }
+
+    // Method is called, when all uploads are finished
+    private void postUploadedPhotos() {
+        onUploadsFinished(mSavedServerRequests);
+
+        // Collect uploaded photos in capture order.
+        StringBuilder attachments = new StringBuilder();
+        int postedPhotos = 0;
+
+        for (String attachment : mAttachments) {
+            if (attachment != null) {
+                if (attachments.length() > 0) {
+                    attachments.append(',');
+                }
+                attachments.append(attachment);
+                postedPhotos++;
+            }
+        }
+
+        if (postedPhotos > 0) {
+            if (mFailedUploads > 0) {
+                LOG.warning("Posting " + postedPhotos + " of " + mPhotos.size() + " photos");
+            }
+
+            mPostedPhotos = postedPhotos;
+
+            // Make wall post with attached photos
+            makePost(attachments.toString());
+        } else {
+            // No photos uploaded
+            onPostError();
+        }
+    }
+
+    // Make post with provided attachments and message.
+    // The same guid is sent on every attempt, so VK publishes the post only once.
+    private void makePost(String attachments) {
+        final int generation = mUploadGeneration;
+        final long postStartTime = mClock.now();
+
+        mWallPostInFlight = true;
+
+        mRequests.add(post(attachments, mMessage, UUID.randomUUID().toString(), new ApiCallback<Void>() {
+            @Override
+            public void onResult(Void result) {
+                if (generation != mUploadGeneration) {
+                    return;
+                }
+
+                // Post was added
+                mWallPostInFlight = false;
+                onPostMade(mClock.now() - postStartTime);
+                onPostSuccess();
+            }
+
+            @Override
+            public void onError(String error, boolean temporary) {
+                if (generation != mUploadGeneration) {
+                    return;
+                }
+
+                // Error (retries are over or error is permanent)
+                mWallPostInFlight = false;
+                mTemporaryError |= temporary;
+                LOG.warning("Error posting to wall: " + error);
+                onPostError();
+            }
+        }));
+    }
+}
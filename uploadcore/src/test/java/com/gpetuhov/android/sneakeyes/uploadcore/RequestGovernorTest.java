@@ -0,0 +1,304 @@
+package com.gpetuhov.android.sneakeyes.uploadcore;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Tests of rate limit, retries and circuit breaker (run with ./gradlew :uploadcore:test)
+public class RequestGovernorTest {
+
+    private static final int TEMPORARY_ERROR = VkApiErrors.INTERNAL;
+    private static final int PERMANENT_ERROR = 15;
+    private static final int REJECTED_ERROR = -1;
+
+    @Test
+    public void execute_success_callsBackAfterExecuteReturns() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        TestGovernor governor = new TestGovernor(clock);
+        Results results = new Results();
+
+        governor.execute(new Calls(scheduler, 0), results, scheduler);
+
+        assertEquals(0, results.mCompleted);
+        scheduler.runUntilIdle();
+
+        assertEquals(1, results.mCompleted);
+        assertEquals(1, governor.getRequestCount());
+    }
+
+    @Test
+    public void execute_temporaryError_isRetriedUntilAttemptsAreOver() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        TestGovernor governor = new TestGovernor(clock);
+        Results results = new Results();
+
+        governor.execute(new Calls(scheduler, TEMPORARY_ERROR, TEMPORARY_ERROR, TEMPORARY_ERROR, TEMPORARY_ERROR),
+                results, scheduler);
+        scheduler.runUntilIdle();
+
+        assertEquals(RequestGovernor.DEFAULT_MAX_ATTEMPTS, governor.getRequestCount());
+        assertEquals(RequestGovernor.DEFAULT_MAX_ATTEMPTS - 1, governor.getRetryCount());
+        assertEquals(1, results.mErrors.size());
+        assertEquals(TEMPORARY_ERROR, (int) results.mErrors.get(0));
+    }
+
+    @Test
+    public void execute_temporaryErrorThenSuccess_completes() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        TestGovernor governor = new TestGovernor(clock);
+        Results results = new Results();
+
+        governor.execute(new Calls(scheduler, TEMPORARY_ERROR, 0), results, scheduler);
+        scheduler.runUntilIdle();
+
+        assertEquals(1, results.mCompleted);
+        assertEquals(1, governor.getRetryCount());
+    }
+
+    @Test
+    public void execute_permanentError_isNotRetried() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        TestGovernor governor = new TestGovernor(clock);
+        Results results = new Results();
+
+        governor.execute(new Calls(scheduler, PERMANENT_ERROR, 0), results, scheduler);
+        scheduler.runUntilIdle();
+
+        assertEquals(1, governor.getRequestCount());
+        assertEquals(0, results.mCompleted);
+        assertEquals(PERMANENT_ERROR, (int) results.mErrors.get(0));
+    }
+
+    @Test
+    public void execute_burst_isThrottledByTokenBucket() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        TestGovernor governor = new TestGovernor(clock);
+        Results results = new Results();
+
+        for (int i = 0; i < RequestGovernor.DEFAULT_BUCKET_SIZE + 1; i++) {
+            governor.execute(new Calls(scheduler, 0), results, scheduler);
+        }
+
+        assertEquals(RequestGovernor.DEFAULT_BUCKET_SIZE, governor.getRequestCount());
+        assertEquals(1, governor.getThrottleCount());
+
+        scheduler.runUntilIdle();
+
+        assertEquals(RequestGovernor.DEFAULT_BUCKET_SIZE + 1, results.mCompleted);
+        assertTrue(clock.now() >= RequestGovernor.DEFAULT_TOKEN_INTERVAL);
+    }
+
+    @Test
+    public void execute_openBreaker_rejectsAndLetsTrialThroughAfterCooldown() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        TestGovernor governor = new TestGovernor(clock);
+        governor.setMaxAttempts(1);
+        governor.setBreakerParameters(2, 1000);
+        Results results = new Results();
+
+        governor.execute(new Calls(scheduler, TEMPORARY_ERROR), results, scheduler);
+        governor.execute(new Calls(scheduler, TEMPORARY_ERROR), results, scheduler);
+        scheduler.runUntilIdle();
+
+        assertTrue(governor.isBreakerOpen());
+        assertEquals(1, governor.getBreakerTripCount());
+
+        // Rejected at once, without a request
+        governor.execute(new Calls(scheduler, 0), results, scheduler);
+        scheduler.runUntilIdle();
+
+        assertEquals(2, governor.getRequestCount());
+        assertEquals(1, governor.getRejectedCount());
+        assertEquals(REJECTED_ERROR, (int) results.mErrors.get(2));
+
+        // Trial request after cooldown closes the breaker
+        clock.advance(1000);
+        governor.execute(new Calls(scheduler, 0), results, scheduler);
+        scheduler.runUntilIdle();
+
+        assertFalse(governor.isBreakerOpen());
+        assertEquals(1, results.mCompleted);
+    }
+
+    @Test
+    public void cancel_pendingRetry_callbackIsNotCalled() {
+        FakeClock clock = new FakeClock();
+        FakeScheduler scheduler = new FakeScheduler(clock);
+        TestGovernor governor = new TestGovernor(clock);
+        Results results = new Results();
+
+        RequestGovernor<Void, Integer>.Attempt attempt =
+                governor.execute(new Calls(scheduler, TEMPORARY_ERROR, 0), results, scheduler);
+
+        // Deliver the first error, retry is pending
+        scheduler.runNext();
+        attempt.cancel();
+        scheduler.runUntilIdle();
+
+        assertEquals(1, governor.getRequestCount());
+        assertEquals(0, results.mCompleted);
+        assertTrue(results.mErrors.isEmpty());
+    }
+
+    // Errors are VK API error codes
+    private static class TestGovernor extends RequestGovernor<Void, Integer> {
+
+        TestGovernor(Clock clock) {
+            super(clock);
+        }
+
+        @Override
+        protected boolean isTemporary(Integer error) {
+            return error == REJECTED_ERROR || VkApiErrors.isTemporary(error);
+        }
+
+        @Override
+        protected boolean isRateLimited(Integer error) {
+            return error == VkApiErrors.TOO_MANY_REQUESTS;
+        }
+
+        @Override
+        protected Integer createRejectedError() {
+            return REJECTED_ERROR;
+        }
+    }
+
+    // Creates calls, that end with provided error codes one after another (0 is success)
+    private static class Calls implements RequestGovernor.CallFactory<Void, Integer> {
+
+        private FakeScheduler mScheduler;
+        private int[] mResults;
+        private int mNextResult;
+
+        Calls(FakeScheduler scheduler, int... results) {
+            mScheduler = scheduler;
+            mResults = results;
+        }
+
+        @Override
+        public RequestGovernor.Call<Void, Integer> createCall() {
+            final int result = mResults[mNextResult++];
+
+            return new RequestGovernor.Call<Void, Integer>() {
+                @Override
+                public void execute(final RequestGovernor.Callback<Void, Integer> callback) {
+                    mScheduler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (result == 0) {
+                                callback.onComplete(null);
+                            } else {
+                                callback.onError(result);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void cancel() {
+                }
+            };
+        }
+    }
+
+    private static class Results implements RequestGovernor.Callback<Void, Integer> {
+
+        private int mCompleted;
+        private List<Integer> mErrors = new ArrayList<>();
+
+        @Override
+        public void onComplete(Void result) {
+            mCompleted++;
+        }
+
+        @Override
+        public void onError(Integer error) {
+            mErrors.add(error);
+        }
+    }
+
+    private static class FakeClock implements Clock {
+
+        private long mNow;
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+
+        void advance(long time) {
+            mNow += time;
+        }
+    }
+
+    // Runs posted tasks in time order and moves the clock to every task
+    private static class FakeScheduler implements Scheduler {
+
+        private FakeClock mClock;
+        private List<Runnable> mTasks = new ArrayList<>();
+        private List<Long> mTimes = new ArrayList<>();
+
+        FakeScheduler(FakeClock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public void post(Runnable task) {
+            postDelayed(task, 0);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delay) {
+            long time = mClock.now() + delay;
+
+            // Tasks with the same time run in post order
+            int index = 0;
+            while (index < mTimes.size() && mTimes.get(index) <= time) {
+                index++;
+            }
+
+            mTasks.add(index, task);
+            mTimes.add(index, time);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            Iterator<Runnable> tasks = mTasks.iterator();
+            Iterator<Long> times = mTimes.iterator();
+
+            while (tasks.hasNext()) {
+                times.next();
+                if (tasks.next() == task) {
+                    tasks.remove();
+                    times.remove();
+                }
+            }
+        }
+
+        void runNext() {
+            Runnable task = mTasks.remove(0);
+            long time = mTimes.remove(0);
+
+            mClock.advance(Math.max(time - mClock.now(), 0));
+            task.run();
+        }
+
+        void runUntilIdle() {
+            while (!mTasks.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+}